@@ -0,0 +1,78 @@
+package com.zbiljic.switchz.benchmarks;
+
+import com.zbiljic.switchz.PathMatcher;
+import com.zbiljic.switchz.TreeNode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures building a complete route table with {@link TreeNode#add(String, Object)} and
+ * {@link PathMatcher#addPath(String, Object)}, one path at a time, and with
+ * {@link TreeNode#addAll(Map)} and {@link PathMatcher#addAll(Map)}, all paths at once.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+public class BuildBenchmark {
+
+  @Param({"GITHUB", "PARSE", "GPLUS", "GENERATED"})
+  RouteSet routeSet;
+
+  String[] paths;
+  Map<String, String> values;
+
+  @Setup
+  public void setUp() {
+    paths = routeSet.paths();
+    values = new LinkedHashMap<>();
+    for (String path : paths) {
+      values.put(path, path);
+    }
+  }
+
+  @Benchmark
+  public TreeNode<String> treeNodeAdd() {
+    TreeNode<String> tree = new TreeNode<>();
+    for (String path : paths) {
+      tree.add(path, path);
+    }
+    return tree;
+  }
+
+  @Benchmark
+  public PathMatcher<String> pathMatcherAddPath() {
+    PathMatcher<String> matcher = new PathMatcher<>();
+    for (String path : paths) {
+      matcher.addPath(path, path);
+    }
+    return matcher;
+  }
+
+  @Benchmark
+  public TreeNode<String> treeNodeAddAll() {
+    TreeNode<String> tree = new TreeNode<>();
+    tree.addAll(values);
+    return tree;
+  }
+
+  @Benchmark
+  public PathMatcher<String> pathMatcherAddAll() {
+    return new PathMatcher<String>().addAll(values);
+  }
+}
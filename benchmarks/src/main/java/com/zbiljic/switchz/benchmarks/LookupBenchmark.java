@@ -0,0 +1,198 @@
+package com.zbiljic.switchz.benchmarks;
+
+import com.zbiljic.switchz.CompiledTree;
+import com.zbiljic.switchz.MutableNodeMatch;
+import com.zbiljic.switchz.NodeMatch;
+import com.zbiljic.switchz.PathMatcher;
+import com.zbiljic.switchz.SlashMatching;
+import com.zbiljic.switchz.TreeNode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures a single lookup in {@link TreeNode#get(String)}, {@link CompiledTree#get(String)} and
+ * {@link PathMatcher#match(String)}, and their variants which fill in a reused
+ * {@link MutableNodeMatch}, also with a path matcher which caches the paths without parameters
+ * and with one which samples lookups for adaptive ordering.
+ * Raw request bytes are looked up in {@link CompiledTree} directly, and after decoding them into a
+ * string first. Upper-cased requests are corrected with
+ * {@link TreeNode#findCaseInsensitivePath(CharSequence, boolean)}.
+ * <p>
+ * Every invocation routes the next request of the route set, so the numbers are the average over
+ * all routes of the set. Run with {@code -prof gc} to get the bytes allocated per lookup
+ * ({@code gc.alloc.rate.norm}).
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+public class LookupBenchmark {
+
+  @Param({"GITHUB", "PARSE", "GPLUS", "GENERATED", "WIDE"})
+  RouteSet routeSet;
+
+  TreeNode<String> tree;
+  CompiledTree<String> compiled;
+  PathMatcher<String> matcher;
+  PathMatcher<String> cachedMatcher;
+  PathMatcher<String> adaptiveMatcher;
+  MutableNodeMatch<String> match;
+
+  String[] requests;
+  String[] misses;
+  String[] upperCase;
+  /** All requests UTF-8 encoded, in one array and in one direct buffer. */
+  byte[] requestBytes;
+  ByteBuffer requestBuffer;
+  int[] offsets;
+  int[] lengths;
+  int index;
+
+  @Setup
+  public void setUp() {
+    tree = new TreeNode<>();
+    matcher = new PathMatcher<>("default");
+    cachedMatcher = new PathMatcher<>("default", SlashMatching.TOLERANT, 1024);
+    adaptiveMatcher = new PathMatcher<>("default");
+    adaptiveMatcher.setAdaptiveOrdering(64);
+    for (String path : routeSet.paths()) {
+      tree.add(path, path);
+      matcher.addPath(path, path);
+      cachedMatcher.addPath(path, path);
+      adaptiveMatcher.addPath(path, path);
+    }
+    compiled = tree.compile();
+
+    match = new MutableNodeMatch<>();
+
+    requests = routeSet.requests();
+    misses = new String[requests.length];
+    upperCase = new String[requests.length];
+    for (int i = 0; i < requests.length; i++) {
+      misses[i] = "/not-found" + requests[i];
+      upperCase[i] = requests[i].toUpperCase(Locale.ROOT);
+    }
+
+    offsets = new int[requests.length];
+    lengths = new int[requests.length];
+    requestBytes = new byte[0];
+    for (int i = 0; i < requests.length; i++) {
+      byte[] bytes = requests[i].getBytes(StandardCharsets.UTF_8);
+      offsets[i] = requestBytes.length;
+      lengths[i] = bytes.length;
+      requestBytes = Arrays.copyOf(requestBytes, requestBytes.length + bytes.length);
+      System.arraycopy(bytes, 0, requestBytes, offsets[i], bytes.length);
+    }
+    requestBuffer = ByteBuffer.allocateDirect(requestBytes.length);
+    requestBuffer.put(requestBytes);
+  }
+
+  private int next() {
+    int i = index;
+    index = (i + 1 == requests.length) ? 0 : i + 1;
+    return i;
+  }
+
+  @Benchmark
+  @OutputTimeUnit(TimeUnit.NANOSECONDS)
+  public NodeMatch<String> treeNodeGet() {
+    return tree.get(requests[next()]);
+  }
+
+  @Benchmark
+  @OutputTimeUnit(TimeUnit.NANOSECONDS)
+  public NodeMatch<String> pathMatcherMatch() {
+    return matcher.match(requests[next()]);
+  }
+
+  @Benchmark
+  @OutputTimeUnit(TimeUnit.NANOSECONDS)
+  public NodeMatch<String> pathMatcherMiss() {
+    return matcher.match(misses[next()]);
+  }
+
+  @Benchmark
+  @OutputTimeUnit(TimeUnit.NANOSECONDS)
+  public NodeMatch<String> treeNodeGetInto() {
+    return tree.get(requests[next()], match);
+  }
+
+  @Benchmark
+  @OutputTimeUnit(TimeUnit.NANOSECONDS)
+  public NodeMatch<String> pathMatcherMatchInto() {
+    return matcher.match(requests[next()], match);
+  }
+
+  @Benchmark
+  @OutputTimeUnit(TimeUnit.NANOSECONDS)
+  public NodeMatch<String> cachedPathMatcherMatch() {
+    return cachedMatcher.match(requests[next()]);
+  }
+
+  @Benchmark
+  @OutputTimeUnit(TimeUnit.NANOSECONDS)
+  public NodeMatch<String> cachedPathMatcherMatchInto() {
+    return cachedMatcher.match(requests[next()], match);
+  }
+
+  @Benchmark
+  @OutputTimeUnit(TimeUnit.NANOSECONDS)
+  public NodeMatch<String> adaptivePathMatcherMatch() {
+    return adaptiveMatcher.match(requests[next()]);
+  }
+
+  @Benchmark
+  @OutputTimeUnit(TimeUnit.NANOSECONDS)
+  public NodeMatch<String> compiledTreeGet() {
+    return compiled.get(requests[next()]);
+  }
+
+  @Benchmark
+  @OutputTimeUnit(TimeUnit.NANOSECONDS)
+  public NodeMatch<String> compiledTreeGetInto() {
+    return compiled.get(requests[next()], match);
+  }
+
+  @Benchmark
+  @OutputTimeUnit(TimeUnit.NANOSECONDS)
+  public NodeMatch<String> compiledTreeGetDecoded() {
+    int i = next();
+    return compiled.get(new String(requestBytes, offsets[i], lengths[i], StandardCharsets.UTF_8), match);
+  }
+
+  @Benchmark
+  @OutputTimeUnit(TimeUnit.NANOSECONDS)
+  public NodeMatch<String> compiledTreeGetBytes() {
+    int i = next();
+    return compiled.get(requestBytes, offsets[i], lengths[i], match);
+  }
+
+  @Benchmark
+  @OutputTimeUnit(TimeUnit.NANOSECONDS)
+  public NodeMatch<String> compiledTreeGetBuffer() {
+    int i = next();
+    return compiled.get(requestBuffer, offsets[i], lengths[i], match);
+  }
+
+  @Benchmark
+  @OutputTimeUnit(TimeUnit.NANOSECONDS)
+  public String treeNodeFindCaseInsensitivePath() {
+    return tree.findCaseInsensitivePath(upperCase[next()], true);
+  }
+}
@@ -0,0 +1,59 @@
+package com.zbiljic.switchz.benchmarks;
+
+import com.zbiljic.switchz.CompiledTree;
+import com.zbiljic.switchz.TreeNode;
+import com.zbiljic.switchz.TreeNodeUtil;
+
+/**
+ * Prints the estimated heap used per route by a {@link TreeNode} and by the {@link CompiledTree}
+ * compiled from it, for every route set and for a generated route table with about 50k routes.
+ * <p>
+ * The path text is the length of the path patterns themselves, one byte per char, for comparison.
+ * The values are shared by both trees and are not counted. The TreeNode figure includes the owner
+ * field of each node, a reference kept for copy-on-write editing which a compiled tree does not
+ * need, so part of the difference is the cost of keeping the tree editable.
+ */
+public final class MemoryReport {
+
+  /** The number of tenants of the large generated route table, 7 routes each. */
+  private static final int LARGE_TENANTS = 7200;
+
+  private MemoryReport() { /* No instance methods */ }
+
+  public static void main(String[] args) {
+    System.out.format("%-12s %8s %8s %12s %12s %12s%n",
+      "routes", "count", "nodes", "path text/r", "TreeNode/r", "compiled/r");
+    for (RouteSet routeSet : RouteSet.values()) {
+      report(routeSet.name(), routeSet.paths());
+    }
+
+    String[][] large = RouteSet.generated(LARGE_TENANTS);
+    String[] paths = new String[large.length];
+    for (int i = 0; i < large.length; i++) {
+      paths[i] = large[i][1];
+    }
+    report("GENERATED-L", paths);
+  }
+
+  private static void report(String name, String[] paths) {
+    TreeNode<String> tree = new TreeNode<>();
+    for (String path : paths) {
+      tree.add(path, path);
+    }
+    CompiledTree<String> compiled = tree.compile();
+
+    System.out.format("%-12s %8d %8d %12.1f %12.1f %12.1f%n",
+      name, paths.length, compiled.size(),
+      (double) pathText(paths) / paths.length,
+      (double) TreeNodeUtil.memoryFootprint(tree) / paths.length,
+      (double) compiled.memoryFootprint() / paths.length);
+  }
+
+  private static long pathText(String[] paths) {
+    long length = 0;
+    for (String path : paths) {
+      length += path.length();
+    }
+    return length;
+  }
+}
@@ -0,0 +1,100 @@
+package com.zbiljic.switchz.benchmarks;
+
+import com.zbiljic.switchz.MethodMatcher;
+import com.zbiljic.switchz.MutableNodeMatch;
+import com.zbiljic.switchz.NodeMatch;
+import com.zbiljic.switchz.TreeNode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures a single lookup of a method and a path in {@link MethodMatcher}, compared to a map of
+ * method names to trees, and the lookup of the methods allowed for a path.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+public class MethodLookupBenchmark {
+
+  @Param({"GITHUB", "PARSE", "GPLUS", "GENERATED"})
+  RouteSet routeSet;
+
+  Map<String, TreeNode<String>> trees;
+  MethodMatcher<String> matcher;
+  MutableNodeMatch<String> match;
+
+  String[] methods;
+  String[] requests;
+  int index;
+
+  @Setup
+  public void setUp() {
+    String[][] routes = routeSet.routes();
+
+    trees = new HashMap<>();
+    matcher = new MethodMatcher<>();
+    methods = new String[routes.length];
+    requests = new String[routes.length];
+    for (int i = 0; i < routes.length; i++) {
+      String method = routes[i][0];
+      String path = routes[i][1];
+      trees.computeIfAbsent(method, m -> new TreeNode<>()).add(path, path);
+      matcher.addPath(method, path, path);
+
+      // a new string, as read from a request
+      methods[i] = new String(method.toCharArray());
+      requests[i] = RouteSet.toRequest(path);
+    }
+
+    match = new MutableNodeMatch<>();
+  }
+
+  private int next() {
+    int i = index;
+    index = (i + 1 == requests.length) ? 0 : i + 1;
+    return i;
+  }
+
+  @Benchmark
+  @OutputTimeUnit(TimeUnit.NANOSECONDS)
+  public NodeMatch<String> mapOfTreesGet() {
+    int i = next();
+    return trees.get(methods[i]).get(requests[i]);
+  }
+
+  @Benchmark
+  @OutputTimeUnit(TimeUnit.NANOSECONDS)
+  public NodeMatch<String> methodMatcherMatch() {
+    int i = next();
+    return matcher.match(methods[i], requests[i]);
+  }
+
+  @Benchmark
+  @OutputTimeUnit(TimeUnit.NANOSECONDS)
+  public NodeMatch<String> methodMatcherMatchInto() {
+    int i = next();
+    return matcher.match(methods[i], requests[i], match);
+  }
+
+  @Benchmark
+  @OutputTimeUnit(TimeUnit.NANOSECONDS)
+  public Set<String> methodMatcherAllowedMethods() {
+    return matcher.allowedMethods(requests[next()]);
+  }
+}
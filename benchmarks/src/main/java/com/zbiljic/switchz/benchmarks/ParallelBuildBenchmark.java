@@ -0,0 +1,72 @@
+package com.zbiljic.switchz.benchmarks;
+
+import com.zbiljic.switchz.TreeNode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures building a large generated route table with {@link TreeNode#addAll(Map, ForkJoinPool)}
+ * in pools of different sizes, compared to {@link TreeNode#addAll(Map)}, to show how the build
+ * scales across cores.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+public class ParallelBuildBenchmark {
+
+  /** The number of tenants of the generated route table, 7 routes each. */
+  @Param({"7200", "72000"})
+  int tenants;
+
+  @Param({"1", "2", "4", "8"})
+  int parallelism;
+
+  Map<String, String> values;
+  ForkJoinPool pool;
+
+  @Setup
+  public void setUp() {
+    values = new LinkedHashMap<>();
+    for (String[] route : RouteSet.generated(tenants)) {
+      values.put(route[1], route[1]);
+    }
+    pool = new ForkJoinPool(parallelism);
+  }
+
+  @TearDown
+  public void tearDown() {
+    pool.shutdown();
+  }
+
+  @Benchmark
+  public TreeNode<String> treeNodeAddAll() {
+    TreeNode<String> tree = new TreeNode<>();
+    tree.addAll(values);
+    return tree;
+  }
+
+  @Benchmark
+  public TreeNode<String> treeNodeAddAllParallel() {
+    TreeNode<String> tree = new TreeNode<>();
+    tree.addAll(values, pool);
+    return tree;
+  }
+}
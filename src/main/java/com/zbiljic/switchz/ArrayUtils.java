@@ -289,6 +289,61 @@ class ArrayUtils {
     return newArray;
   }
 
+  /**
+   * Inserts the specified element at the specified position in a copy of the array. Shifts the
+   * element currently at that position (if any) and any subsequent elements to the right.
+   * <p>
+   * <pre>
+   * ArrayUtils.add(["a"], 0, "b")      = ["b", "a"]
+   * ArrayUtils.add(["a", "b"], 1, "c") = ["a", "c", "b"]
+   * ArrayUtils.add(["a", "b"], 2, "c") = ["a", "b", "c"]
+   * </pre>
+   *
+   * @param <T>     the component type of the array
+   * @param array   the array to add the element to, must not be {@code null}
+   * @param index   the position of the new element
+   * @param element the object to add
+   * @return A new array containing the existing elements and the new element
+   * @throws IndexOutOfBoundsException if the index is out of range (index &lt; 0 || index &gt;
+   *                                   array.length)
+   */
+  public static <T> T[] add(final T[] array, final int index, final T element) {
+    if (index < 0 || index > array.length) {
+      throw new IndexOutOfBoundsException("Index: " + index + ", Length: " + array.length);
+    }
+    final T[] newArray = Arrays.copyOf(array, array.length + 1);
+    System.arraycopy(array, index, newArray, index + 1, array.length - index);
+    newArray[index] = element;
+    return newArray;
+  }
+
+  /**
+   * Inserts the specified element at the specified position in a copy of the array. Shifts the
+   * element currently at that position (if any) and any subsequent elements to the right.
+   * <p>
+   * <pre>
+   * ArrayUtils.add(['a'], 0, 'b')      = ['b', 'a']
+   * ArrayUtils.add(['a', 'b'], 1, 'c') = ['a', 'c', 'b']
+   * ArrayUtils.add(['a', 'b'], 2, 'c') = ['a', 'b', 'c']
+   * </pre>
+   *
+   * @param array   the array to add the element to, must not be {@code null}
+   * @param index   the position of the new element
+   * @param element the char to add
+   * @return A new array containing the existing elements and the new element
+   * @throws IndexOutOfBoundsException if the index is out of range (index &lt; 0 || index &gt;
+   *                                   array.length)
+   */
+  public static char[] add(final char[] array, final int index, final char element) {
+    if (index < 0 || index > array.length) {
+      throw new IndexOutOfBoundsException("Index: " + index + ", Length: " + array.length);
+    }
+    final char[] newArray = Arrays.copyOf(array, array.length + 1);
+    System.arraycopy(array, index, newArray, index + 1, array.length - index);
+    newArray[index] = element;
+    return newArray;
+  }
+
   /**
    * Returns a copy of the given array of size 1 greater than the argument.
    * The last value of the array is left to the default value.
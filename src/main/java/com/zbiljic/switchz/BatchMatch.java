@@ -0,0 +1,328 @@
+package com.zbiljic.switchz;
+
+import java.util.Arrays;
+
+/**
+ * The matches of a batch of paths, filled in by {@link PathMatcher#match(String[], BatchMatch)}, so
+ * it can be reused for many batches.
+ * <p>
+ * The matches are kept in arrays indexed by the position of the path in the batch, instead of one
+ * match object per path: the value and matched path of each path, and the parameters as offsets
+ * into the path, so a batch of any size allocates nothing once the arrays are large enough.
+ * Parameter values are only created when requested.
+ * <p>
+ * Instances are not thread-safe.
+ *
+ * @param <T> the value type
+ */
+public final class BatchMatch<T> {
+
+  private static final int MATCHED = 1;
+  private static final int TRAILING_SLASH_REDIRECT = 2;
+
+  /** Ranges of at most this many paths are sorted by insertion sort. */
+  private static final int INSERTION_SORT_THRESHOLD = 16;
+
+  private static final String[] EMPTY_STRING_ARRAY = new String[0];
+
+  private static final int[] EMPTY_INT_ARRAY = new int[0];
+
+  String[] paths = EMPTY_STRING_ARRAY;
+  int size;
+  /** The indices of the paths, sorted by path. */
+  int[] order = EMPTY_INT_ARRAY;
+
+  private Object[] values = new Object[0];
+  private String[] matched = EMPTY_STRING_ARRAY;
+  private String[] routes = EMPTY_STRING_ARRAY;
+  private byte[] flags = new byte[0];
+  private int[] paramCounts = EMPTY_INT_ARRAY;
+  /** The maximum number of parameters of a path; each path has room for that many. */
+  private int stride;
+  /** The wildcard of each captured parameter, {@code stride} per path. */
+  private String[] wildcards = EMPTY_STRING_ARRAY;
+  /** The start and end offset of each captured parameter, {@code stride} pairs per path. */
+  private int[] offsets = EMPTY_INT_ARRAY;
+
+  /**
+   * Clears this batch before it is filled in with the matches of the given paths, with room for
+   * the given number of parameters per path, and sorts the paths.
+   */
+  void reset(String[] paths, int maxParams) {
+    for (String path : paths) {
+      if (path == null) {
+        throw new NullPointerException("paths cannot contain null");
+      }
+    }
+
+    final int size = paths.length;
+    if (values.length < size) {
+      values = new Object[size];
+      matched = new String[size];
+      routes = new String[size];
+      flags = new byte[size];
+      paramCounts = new int[size];
+      order = new int[size];
+    }
+    if (wildcards.length < size * maxParams) {
+      wildcards = new String[size * maxParams];
+      offsets = new int[size * maxParams * 2];
+    }
+    this.paths = paths;
+    this.size = size;
+    this.stride = maxParams;
+
+    for (int i = 0; i < size; i++) {
+      order[i] = i;
+    }
+    sort(0, size, 0);
+  }
+
+  /**
+   * Sorts the indices in the given range, whose paths are equal up to the given depth, by path.
+   * This is a multikey quicksort, which partitions by one char at a time, so the chars of a common
+   * prefix are compared once per partition rather than once per comparison.
+   */
+  private void sort(int from, int to, int depth) {
+    while (to - from > INSERTION_SORT_THRESHOLD) {
+      final int pivot = charAt(order[(from + to) >>> 1], depth);
+      int lt = from;
+      int gt = to - 1;
+      int i = from;
+      while (i <= gt) {
+        final int c = charAt(order[i], depth);
+        if (c < pivot) {
+          swap(lt++, i++);
+        } else if (c > pivot) {
+          swap(i, gt--);
+        } else {
+          i++;
+        }
+      }
+      sort(from, lt, depth);
+      if (pivot >= 0) {
+        sort(lt, gt + 1, depth + 1);
+      }
+      from = gt + 1;
+    }
+
+    for (int i = from + 1; i < to; i++) {
+      final int index = order[i];
+      int j = i - 1;
+      while (j >= from && paths[order[j]].compareTo(paths[index]) > 0) {
+        order[j + 1] = order[j];
+        j--;
+      }
+      order[j + 1] = index;
+    }
+  }
+
+  private int charAt(int index, int depth) {
+    final String path = paths[index];
+    return depth < path.length() ? path.charAt(depth) : -1;
+  }
+
+  private void swap(int i, int j) {
+    final int index = order[i];
+    order[i] = order[j];
+    order[j] = index;
+  }
+
+  /**
+   * Sets the match of the path at the given index.
+   */
+  void set(int index, NodeMatch<T> match) {
+    values[index] = match.value;
+    matched[index] = match.matched;
+    routes[index] = match.route;
+    flags[index] = (byte) (MATCHED | (match.trailingSlashRedirect ? TRAILING_SLASH_REDIRECT : 0));
+    final int count = match.paramCount;
+    paramCounts[index] = count;
+    if (count > 0) {
+      System.arraycopy(match.wildcards, 0, wildcards, index * stride, count);
+      System.arraycopy(match.offsets, 0, offsets, index * stride * 2, count * 2);
+    }
+  }
+
+  /**
+   * Sets the path at the given index as not matched.
+   */
+  void setDefault(int index, T defaultHandler, boolean trailingSlashRedirect) {
+    values[index] = defaultHandler;
+    matched[index] = "";
+    routes[index] = null;
+    flags[index] = (byte) (trailingSlashRedirect ? TRAILING_SLASH_REDIRECT : 0);
+    paramCounts[index] = 0;
+  }
+
+  /**
+   * Sets the match of the path at the given index to the match of an equal path.
+   */
+  void copy(int from, int to) {
+    values[to] = values[from];
+    matched[to] = matched[from];
+    routes[to] = routes[from];
+    flags[to] = flags[from];
+    final int count = paramCounts[from];
+    paramCounts[to] = count;
+    if (count > 0) {
+      System.arraycopy(wildcards, from * stride, wildcards, to * stride, count);
+      System.arraycopy(offsets, from * stride * 2, offsets, to * stride * 2, count * 2);
+    }
+  }
+
+  /**
+   * Returns the path the value of the path at the given index was registered with, or
+   * {@code null} if none matched.
+   */
+  String getRoute(int index) {
+    return routes[index];
+  }
+
+  /**
+   * Returns whether the path at the given index matched a registered path.
+   */
+  boolean isMatched(int index) {
+    return (flags[index] & MATCHED) != 0;
+  }
+
+  /**
+   * Returns the number of paths in the batch.
+   *
+   * @return the number of paths
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Returns the path at the given index.
+   *
+   * @param index the index of the path in the batch
+   * @return the path
+   */
+  public String getPath(int index) {
+    checkIndex(index);
+    return paths[index];
+  }
+
+  /**
+   * Returns the registered path the path at the given index matched.
+   *
+   * @param index the index of the path in the batch
+   * @return the matched path, empty if none matched
+   */
+  public String getMatched(int index) {
+    checkIndex(index);
+    return matched[index];
+  }
+
+  /**
+   * Returns the value the path at the given index matched.
+   *
+   * @param index the index of the path in the batch
+   * @return the value, the default handler if none matched
+   */
+  @SuppressWarnings("unchecked")
+  public T getValue(int index) {
+    checkIndex(index);
+    return (T) values[index];
+  }
+
+  /**
+   * Returns whether a trailing slash redirect is recommended for the path at the given index.
+   *
+   * @param index the index of the path in the batch
+   * @return whether a trailing slash redirect is recommended
+   * @see NodeMatch#isTrailingSlashRedirect()
+   */
+  public boolean isTrailingSlashRedirect(int index) {
+    checkIndex(index);
+    return (flags[index] & TRAILING_SLASH_REDIRECT) != 0;
+  }
+
+  /**
+   * Returns the number of parameters captured from the path at the given index.
+   *
+   * @param index the index of the path in the batch
+   * @return the number of parameters
+   */
+  public int getParameterCount(int index) {
+    checkIndex(index);
+    return paramCounts[index];
+  }
+
+  /**
+   * Returns the name of a parameter captured from the path at the given index.
+   *
+   * @param index the index of the path in the batch
+   * @param param the index of the parameter
+   * @return the parameter name
+   */
+  public String getParameterName(int index, int param) {
+    checkParameterIndex(index, param);
+    return TreeNodeUtil.wildcardName(wildcards[index * stride + param]);
+  }
+
+  /**
+   * Returns the offset within the path at the given index where the value of a parameter starts.
+   *
+   * @param index the index of the path in the batch
+   * @param param the index of the parameter
+   * @return the start offset (inclusive)
+   */
+  public int getParameterStart(int index, int param) {
+    checkParameterIndex(index, param);
+    return offsets[(index * stride + param) * 2];
+  }
+
+  /**
+   * Returns the offset within the path at the given index where the value of a parameter ends.
+   *
+   * @param index the index of the path in the batch
+   * @param param the index of the parameter
+   * @return the end offset (exclusive)
+   */
+  public int getParameterEnd(int index, int param) {
+    checkParameterIndex(index, param);
+    return offsets[(index * stride + param) * 2 + 1];
+  }
+
+  /**
+   * Returns the value of a parameter captured from the path at the given index.
+   *
+   * @param index the index of the path in the batch
+   * @param param the index of the parameter
+   * @return the parameter value
+   */
+  public String getParameterValue(int index, int param) {
+    return paths[index].substring(getParameterStart(index, param), getParameterEnd(index, param));
+  }
+
+  private void checkIndex(int index) {
+    if (index < 0 || index >= size) {
+      throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+    }
+  }
+
+  private void checkParameterIndex(int index, int param) {
+    checkIndex(index);
+    if (param < 0 || param >= paramCounts[index]) {
+      throw new IndexOutOfBoundsException("Index: " + param + ", Size: " + paramCounts[index]);
+    }
+  }
+
+  /**
+   * Returns a string representation of this object; useful for testing and debugging.
+   *
+   * @return A string representation of this object.
+   * @see Object#toString()
+   */
+  @Override
+  public String toString() {
+    return "BatchMatch{" +
+      "paths=" + Arrays.toString(Arrays.copyOf(paths, size)) +
+      ", matched=" + Arrays.toString(Arrays.copyOf(matched, size)) +
+      '}';
+  }
+}
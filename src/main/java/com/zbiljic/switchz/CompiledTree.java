@@ -0,0 +1,879 @@
+package com.zbiljic.switchz;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An immutable radix tree, compiled from a {@link TreeNode}.
+ * <p>
+ * A {@code TreeNode} is laid out for insertion: every node is a separate object with its own path
+ * string and child arrays. A compiled tree stores the same nodes in a few flat arrays instead, which
+ * are laid out for lookups. Nodes are numbered in breadth-first order, so the children of a node
+ * are a contiguous range of node numbers, and all edge labels are packed into a single string. A
+ * lookup therefore only reads array elements, and neighbouring nodes share cache lines.
+ * <p>
+ * The next child of a node is found by scanning its index chars, which is the fastest way for the
+ * few children most nodes have. Nodes with many children get a jump table from ASCII chars to
+ * children instead, so a lookup takes the same time regardless of the number of siblings.
+ * <p>
+ * Lookups behave exactly like {@link TreeNode#get(String)}. The labels are also kept UTF-8 encoded,
+ * so raw request bytes can be looked up straight from a {@code byte[]} or {@code ByteBuffer},
+ * without decoding them into a string first. Instances are thread-safe.
+ * <p>
+ * The layout is also compact: a node takes a few array elements instead of an object with its own
+ * label string and child arrays, and arrays which would only hold copies of other arrays or
+ * {@code null}s are shared or left out, as are equal label strings and constraints.
+ * {@link #memoryFootprint()} estimates the heap a tree uses, to be compared with
+ * {@link TreeNodeUtil#memoryFootprint(TreeNode)}.
+ *
+ * @param <T> the value type
+ */
+public final class CompiledTree<T> {
+
+  // node types, same order as NodeType
+  private static final int STATIC = 0;
+  private static final int ROOT = 1;
+  private static final int PARAM = 2;
+  private static final int CATCH_ALL = 3;
+
+  private static final int TYPE_MASK = 0x3;
+  private static final int WILD_CHILD = 0x4;
+
+  /** The number of children above which a node gets a jump table. */
+  private static final int JUMP_TABLE_FANOUT = 8;
+  /** The number of entries of a jump table, one for each ASCII char. */
+  private static final int JUMP_TABLE_SIZE = 128;
+
+  /** All edge labels, concatenated. */
+  private final String labels;
+  /** The label of node {@code i} is {@code labels.substring(labelStart[i], labelStart[i + 1])}. */
+  private final int[] labelStart;
+  /** The children of node {@code i} are the nodes {@code childStart[i] .. childStart[i + 1]). */
+  private final int[] childStart;
+  /**
+   * The indexed children of node {@code i} are the nodes before {@code wildcardStart[i]}, the
+   * others are its wildcard children.
+   */
+  private final int[] wildcardStart;
+  /** The first char of node {@code i} as indexed by its parent. */
+  private final char[] indices;
+  /** The type and the wildcard child flag of each node. */
+  private final byte[] flags;
+  /** The value of each node. */
+  private final Object[] values;
+  /** The path of each node with a value and of each wildcard node; {@code null} otherwise. */
+  private final String[] paths;
+  /**
+   * The constraint of each param node; {@code null} if it has none, or for all nodes if no node
+   * has one.
+   */
+  private final ParamConstraint[] constraints;
+  /** Maximum number of parameters of any path. */
+  private final int maxParams;
+  /** The jump table of node {@code i} starts at {@code jumpTables[jumpTableStart[i]]}, or -1. */
+  private final int[] jumpTableStart;
+  /** The child of each node with a jump table for each ASCII char, 0 if there is none. */
+  private final int[] jumpTables;
+
+  /** All edge labels, UTF-8 encoded and concatenated; {@code null} if they cannot be encoded. */
+  private final byte[] byteLabels;
+  /**
+   * The encoded label of node {@code i} starts at {@code byteLabels[byteLabelStart[i]]}; the same
+   * array as {@link #labelStart} if all labels are ASCII.
+   */
+  private final int[] byteLabelStart;
+  /** The first byte of the encoded first char of node {@code i} as indexed by its parent. */
+  private final byte[] byteIndices;
+
+  CompiledTree(TreeNode<T> root) {
+    // number the nodes in breadth-first order
+    int count = 0;
+    int labelLength = 0;
+    Deque<TreeNode<T>> queue = new ArrayDeque<>();
+    queue.add(root);
+    TreeNode<?>[] nodes = new TreeNode<?>[16];
+    while (!queue.isEmpty()) {
+      TreeNode<T> node = queue.poll();
+      if (count == nodes.length) {
+        nodes = Arrays.copyOf(nodes, count * 2);
+      }
+      nodes[count++] = node;
+      labelLength += node.path.length();
+      queue.addAll(Arrays.asList(node.children));
+    }
+
+    int jumpTableCount = 0;
+    for (int i = 0; i < count; i++) {
+      if (nodes[i].indices.length > JUMP_TABLE_FANOUT) {
+        jumpTableCount++;
+      }
+    }
+
+    char[] labels = new char[labelLength];
+    this.labelStart = new int[count + 1];
+    this.childStart = new int[count + 1];
+    this.wildcardStart = new int[count];
+    this.indices = new char[count];
+    this.flags = new byte[count];
+    this.values = new Object[count];
+    this.paths = new String[count];
+    ParamConstraint[] constraints = new ParamConstraint[count];
+    this.maxParams = root.maxParams;
+    int[] byteLabelStart = new int[count + 1];
+    this.byteIndices = new byte[count];
+    this.jumpTableStart = new int[count];
+    this.jumpTables = new int[jumpTableCount * JUMP_TABLE_SIZE];
+    int jumpTableOffset = 0;
+    byte[] byteLabels = new byte[labelLength];
+    boolean encodable = true;
+    boolean ascii = true;
+    boolean constrained = false;
+    Map<String, String> sharedPaths = new HashMap<>();
+    Map<String, ParamConstraint> sharedConstraints = new HashMap<>();
+
+    int labelOffset = 0;
+    int byteLabelOffset = 0;
+    int nextChild = 1;
+    for (int i = 0; i < count; i++) {
+      final TreeNode<?> node = nodes[i];
+
+      labelStart[i] = labelOffset;
+      node.path.getChars(0, node.path.length(), labels, labelOffset);
+      labelOffset += node.path.length();
+
+      // a label can only be encoded on its own if it does not split a surrogate pair
+      final String path = node.path;
+      if (!path.isEmpty() && (Character.isLowSurrogate(path.charAt(0)) ||
+        Character.isHighSurrogate(path.charAt(path.length() - 1)))) {
+        encodable = false;
+      }
+      final byte[] bytes = path.getBytes(StandardCharsets.UTF_8);
+      ascii &= bytes.length == path.length();
+      if (byteLabelOffset + bytes.length > byteLabels.length) {
+        byteLabels = Arrays.copyOf(byteLabels,
+          Math.max(byteLabels.length * 2, byteLabelOffset + bytes.length));
+      }
+      System.arraycopy(bytes, 0, byteLabels, byteLabelOffset, bytes.length);
+      byteLabelStart[i] = byteLabelOffset;
+      byteLabelOffset += bytes.length;
+      // non-ASCII index chars are the first char of the label
+      byteIndices[i] = indices[i] < 0x80 || bytes.length == 0 ? (byte) indices[i] : bytes[0];
+
+      childStart[i] = nextChild;
+      wildcardStart[i] = nextChild + node.indices.length;
+      for (int j = 0; j < node.indices.length; j++) {
+        indices[nextChild + j] = node.indices[j];
+      }
+      jumpTableStart[i] = -1;
+      if (node.indices.length > JUMP_TABLE_FANOUT) {
+        // the root is never a child, so 0 marks a missing child; a static child is indexed by the
+        // same char as the catch-all child after it
+        jumpTableStart[i] = jumpTableOffset;
+        for (int j = 0; j < node.indices.length; j++) {
+          final char index = node.indices[j];
+          if (index < JUMP_TABLE_SIZE && jumpTables[jumpTableOffset + index] == 0) {
+            jumpTables[jumpTableOffset + index] = nextChild + j;
+          }
+        }
+        jumpTableOffset += JUMP_TABLE_SIZE;
+      }
+      nextChild += node.children.length;
+
+      flags[i] = (byte) (node.nodeType.ordinal() | (node.wildChild ? WILD_CHILD : 0));
+      values[i] = node.value;
+      // equal paths and constraints, e.g. of the same route of many tenants, are kept once
+      if (node.constraint != null) {
+        constraints[i] = sharedConstraints.computeIfAbsent(node.constraint.source, source -> node.constraint);
+        constrained = true;
+      }
+      if (node.value != null || node.nodeType.ordinal() >= PARAM) {
+        paths[i] = sharedPaths.computeIfAbsent(path, label -> label);
+      }
+    }
+    labelStart[count] = labelOffset;
+    childStart[count] = nextChild;
+    this.labels = new String(labels);
+    byteLabelStart[count] = byteLabelOffset;
+    this.byteLabelStart = ascii ? labelStart : byteLabelStart;
+    this.byteLabels = encodable ? Arrays.copyOf(byteLabels, byteLabelOffset) : null;
+    this.constraints = constrained ? constraints : null;
+  }
+
+  /**
+   * Returns the number of nodes in this tree.
+   *
+   * @return the number of nodes
+   */
+  public int size() {
+    return flags.length;
+  }
+
+  /**
+   * Returns an estimate of the heap used by this tree, in bytes, not counting its values.
+   *
+   * @return the estimated number of bytes
+   * @see TreeNodeUtil#memoryFootprint(TreeNode)
+   */
+  public long memoryFootprint() {
+    final MemoryFootprint footprint = new MemoryFootprint();
+    // the labels and 13 arrays; maxParams
+    footprint.object(this, 14, 4);
+    footprint.string(labels);
+    for (Object array : new Object[]{labelStart, childStart, wildcardStart, indices, flags, values, paths,
+      constraints, jumpTableStart, jumpTables, byteLabels, byteLabelStart, byteIndices}) {
+      footprint.array(array);
+    }
+    for (String path : paths) {
+      if (path != null) {
+        footprint.string(path);
+      }
+    }
+    if (constraints != null) {
+      for (ParamConstraint constraint : constraints) {
+        footprint.constraint(constraint);
+      }
+    }
+    return footprint.bytes();
+  }
+
+  /**
+   * Returns the value registered with the given path (key).
+   *
+   * @param path the path to look up
+   * @return the match
+   * @see TreeNode#get(String)
+   */
+  public NodeMatch<T> get(String path) {
+    if (path == null) {
+      throw new NullPointerException("path cannot be null");
+    }
+
+    return getValue(path, null);
+  }
+
+  /**
+   * Returns the value registered with the given path (key), filling in the given match instead of
+   * creating a new one. Looking up a path this way does not allocate.
+   *
+   * @param path  the path to look up
+   * @param match the match to fill in, its previous state is discarded
+   * @return the given match
+   * @see TreeNode#get(CharSequence, MutableNodeMatch)
+   */
+  public MutableNodeMatch<T> get(CharSequence path, MutableNodeMatch<T> match) {
+    if (path == null) {
+      throw new NullPointerException("path cannot be null");
+    }
+    if (match == null) {
+      throw new NullPointerException("match cannot be null");
+    }
+
+    match.reset(path);
+    match.ensureCapacity(maxParams);
+    getValue(path, match);
+    return match;
+  }
+
+  /**
+   * Returns the value registered with the UTF-8 encoded path in the given range of the given array,
+   * filling in the given match. Parameter offsets are indexes into the array, and their values are
+   * only decoded when requested. Looking up a path this way does not allocate, as long as the same
+   * array is looked up with the same match.
+   *
+   * @param bytes  the array holding the path
+   * @param offset the index of the first byte of the path
+   * @param length the length of the path in bytes
+   * @param match  the match to fill in, its previous state is discarded
+   * @return the given match
+   * @throws UnsupportedOperationException if this tree has labels which cannot be UTF-8 encoded on
+   *                                       their own (split surrogate pairs)
+   */
+  public MutableNodeMatch<T> get(byte[] bytes, int offset, int length, MutableNodeMatch<T> match) {
+    if (bytes == null) {
+      throw new NullPointerException("bytes cannot be null");
+    }
+    if (match == null) {
+      throw new NullPointerException("match cannot be null");
+    }
+
+    return get(match.wrap(bytes), offset, length, match);
+  }
+
+  /**
+   * Returns the value registered with the UTF-8 encoded path in the given range of the given
+   * buffer, filling in the given match. The buffer is read by absolute index, so its position and
+   * limit are ignored and not modified. Parameter offsets are indexes into the buffer, and their
+   * values are only decoded when requested. Looking up a path this way does not allocate.
+   *
+   * @param buffer the buffer holding the path, direct or not
+   * @param offset the index of the first byte of the path
+   * @param length the length of the path in bytes
+   * @param match  the match to fill in, its previous state is discarded
+   * @return the given match
+   * @throws UnsupportedOperationException if this tree has labels which cannot be UTF-8 encoded on
+   *                                       their own (split surrogate pairs)
+   */
+  public MutableNodeMatch<T> get(ByteBuffer buffer, int offset, int length, MutableNodeMatch<T> match) {
+    if (buffer == null) {
+      throw new NullPointerException("buffer cannot be null");
+    }
+    if (match == null) {
+      throw new NullPointerException("match cannot be null");
+    }
+    if (offset < 0 || length < 0 || offset + length > buffer.capacity()) {
+      throw new IndexOutOfBoundsException("offset: " + offset + ", length: " + length +
+        ", capacity: " + buffer.capacity());
+    }
+    if (byteLabels == null) {
+      throw new UnsupportedOperationException("tree has paths which cannot be looked up as UTF-8");
+    }
+
+    match.resetBuffer(buffer);
+    match.ensureCapacity(maxParams);
+    getValue(buffer, offset, offset + length, match);
+    return match;
+  }
+
+  @SuppressWarnings("unchecked")
+  private T value(int n) {
+    return (T) values[n];
+  }
+
+  private int type(int n) {
+    return flags[n] & TYPE_MASK;
+  }
+
+  private int childCount(int n) {
+    return childStart[n + 1] - childStart[n];
+  }
+
+  /**
+   * Returns the first child of node {@code n} indexed by the given char, or 0 if there is none.
+   */
+  private int child(int n, char c) {
+    final int table = jumpTableStart[n];
+    if (table >= 0 && c < JUMP_TABLE_SIZE) {
+      return jumpTables[table + c];
+    }
+    for (int i = childStart[n], end = wildcardStart[n]; i < end; i++) {
+      if (c == indices[i]) {
+        return i;
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * Returns the end of the static children of node {@code n}, which are followed by its catch-all
+   * child, if any, and its wildcard children.
+   */
+  private int staticEnd(int n) {
+    final int end = wildcardStart[n];
+    return end > childStart[n] && type(end - 1) == CATCH_ALL ? end - 1 : end;
+  }
+
+  /**
+   * Returns the child of node {@code n} to walk for a path which continues with the given char
+   * after the label of the node, if the given child (or none, if -1) was walked before and had no
+   * value for the path, or -1 if there is none left, same as {@code TreeNode.nextChoice}.
+   */
+  private int nextChoice(int n, int previous, char c) {
+    final int staticEnd = staticEnd(n);
+    final int wildcards = wildcardStart[n];
+    int i;
+    if (previous < 0) {
+      for (i = childStart[n]; i < staticEnd; i++) {
+        if (c == indices[i]) {
+          return i;
+        }
+      }
+      i = wildcards;
+    } else if (previous < staticEnd) {
+      i = wildcards;
+    } else if (previous >= wildcards) {
+      i = previous + 1;
+    } else {
+      // the catch-all child was the last one
+      return -1;
+    }
+
+    if (i < childStart[n + 1]) {
+      return i;
+    }
+    return staticEnd < wildcards && c == indices[staticEnd] ? staticEnd : -1;
+  }
+
+  /**
+   * Tests if node {@code n}, indexed by '/', has a value for the path of its parent with a
+   * trailing slash.
+   */
+  private boolean isTrailingSlash(int n) {
+    return (labelStart[n + 1] - labelStart[n] == 1 && values[n] != null) ||
+      (type(n) == CATCH_ALL && values[childStart[n]] != null);
+  }
+
+  /**
+   * Tests if node {@code n}, or the catch-all child after it, has a value for the path of its
+   * parent with a trailing slash.
+   */
+  private boolean isTrailingSlash(int parent, int n) {
+    return isTrailingSlash(n) || (n + 1 < wildcardStart[parent] && indices[n + 1] == '/' && isTrailingSlash(n + 1));
+  }
+
+  private String path(int n) {
+    String path = paths[n];
+    if (path == null) {
+      // only needed for some of the misses
+      path = labels.substring(labelStart[n], labelStart[n + 1]);
+    }
+    return path;
+  }
+
+  /**
+   * Tests if the region of the path starting at {@code offset} is equal to the first
+   * {@code length} chars of the label starting at {@code labelOffset}.
+   */
+  private boolean regionMatches(CharSequence path, int offset, int labelOffset, int length) {
+    if (path instanceof String) {
+      return ((String) path).regionMatches(offset, labels, labelOffset, length);
+    }
+    for (int i = 0; i < length; i++) {
+      if (path.charAt(offset + i) != labels.charAt(labelOffset + i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Walks the tree for the given path, same as {@code TreeNode.getValue}.
+   */
+  private NodeMatch<T> getValue(CharSequence path, NodeMatch<T> match) {
+    return getValue(0, 0, -1, path, match);
+  }
+
+  /**
+   * Walks the tree for the given path from node {@code n}, whose label starts at the given offset,
+   * same as {@code TreeNode.getValue}. If a choice is given, that child is walked after the label
+   * of node {@code n}, instead of the child selected by the path.
+   */
+  private NodeMatch<T> getValue(int n, int offset, int choice, CharSequence path, NodeMatch<T> match) {
+    final int length = path.length();
+    boolean tsr;
+
+    // outer loop for walking the tree
+    walk:
+    for (; ; ) {
+      final int labelOffset = labelStart[n];
+      final int prefixLength = labelStart[n + 1] - labelOffset;
+      final int remaining = length - offset;
+      if (remaining > prefixLength) {
+        if (regionMatches(path, offset, labelOffset, prefixLength)) {
+          offset += prefixLength;
+          int i = choice; // the wildcard child to walk
+          if (i < 0) {
+            // If this node does not have a wildcard (param or catchAll)
+            // child,  we can just look up the next child node and continue
+            // to walk down the tree
+            if ((flags[n] & WILD_CHILD) == 0) {
+              char c = path.charAt(offset);
+              final int child = child(n, c);
+              if (child != 0) {
+                // the catch-all child is indexed by the same char as the static child
+                if (child + 1 < wildcardStart[n] && c == indices[child + 1]) {
+                  return getValueBacktracking(n, offset, path, match);
+                }
+                n = child;
+                continue walk;
+              }
+
+              // Nothing found.
+              // We can recommend to redirect to the same URL without a
+              // trailing slash if a leaf exists for that path.
+              tsr = (c == '/' && offset + 1 == length && values[n] != null);
+              return NodeMatch.notFound(match, tsr);
+            }
+
+            // static children or other params next to the wildcard child
+            if (childCount(n) > 1) {
+              return getValueBacktracking(n, offset, path, match);
+            }
+            i = childStart[n];
+          } else {
+            choice = -1;
+            if (i < wildcardStart[n]) {
+              n = i;
+              continue walk;
+            }
+          }
+
+          // handle wildcard child
+          switch (type(i)) {
+            case PARAM: {
+              // find param end (either '/' or path end)
+              int end = offset;
+              while (end < length && path.charAt(end) != '/') {
+                end++;
+              }
+
+              if (constraints != null && constraints[i] != null && !constraints[i].matches(path, offset, end)) {
+                return NodeMatch.notFound(match, false);
+              }
+              n = i;
+
+              // save param value
+              match = NodeMatch.capture(match, path, paths[n], offset, end, maxParams);
+
+              // we need to go deeper!
+              if (end < length) {
+                if (childCount(n) > 0) {
+                  offset = end;
+                  n = childStart[n];
+                  continue walk;
+                }
+
+                // ... but we can't
+                tsr = (length == end + 1);
+                return NodeMatch.notFound(match, tsr);
+              }
+
+              if (values[n] != null) {
+                return NodeMatch.found(match, path, paths[n], value(n), false);
+              } else if (childCount(n) == 1) {
+                // No handle found. Check if a handle for this path + a
+                // trailing slash exists for TSR recommendation
+                n = childStart[n];
+                tsr = (labelStart[n + 1] - labelStart[n] == 1 && labels.charAt(labelStart[n]) == '/' &&
+                  values[n] != null);
+              } else {
+                tsr = false;
+              }
+
+              return NodeMatch.found(match, path, path(n), null, tsr);
+            }
+
+            case CATCH_ALL: {
+              n = i;
+
+              // save param value
+              match = NodeMatch.capture(match, path, paths[n], offset, length, maxParams);
+
+              return NodeMatch.found(match, path, paths[n], value(n), false);
+            }
+
+            default:
+              throw new IllegalStateException("invalid node type");
+          }
+        }
+
+      } else if (remaining == prefixLength && regionMatches(path, offset, labelOffset, prefixLength)) {
+        // We should have reached the node containing the handle.
+        // Check if this node has a handle registered.
+        if (values[n] != null) {
+          return NodeMatch.found(match, path, paths[n], value(n), false);
+        }
+
+        if (prefixLength == 1 && labels.charAt(labelOffset) == '/' && (flags[n] & WILD_CHILD) != 0 &&
+          type(n) != ROOT) {
+          return NodeMatch.found(match, path, path(n), null, true);
+        }
+
+        // No handle found. Check if a handle for this path + a
+        // trailing slash exists for trailing slash recommendation
+        final int slash = child(n, '/');
+        if (slash != 0) {
+          return NodeMatch.notFound(match, isTrailingSlash(n, slash));
+        }
+
+        return NodeMatch.found(match, path, path(n), null, false);
+      }
+
+      // Nothing found. We can recommend to redirect to the same URL with an
+      // extra trailing slash if a leaf exists for that path
+      tsr = (remaining == 1 && path.charAt(offset) == '/') ||
+        (prefixLength == remaining + 1 &&
+          labels.charAt(labelOffset + remaining) == '/' &&
+          regionMatches(path, offset, labelOffset, remaining) &&
+          values[n] != null);
+
+      return NodeMatch.notFound(match, tsr);
+    }
+  }
+
+  /**
+   * Walks the children of node {@code n} for the rest of the path after its label, which ends at
+   * the given offset, in the order of {@link #nextChoice(int, int, char)} until one of them has a
+   * value for the path, same as {@code TreeNode.getValueBacktracking}.
+   */
+  private NodeMatch<T> getValueBacktracking(int n, int offset, CharSequence path, NodeMatch<T> match) {
+    if (match == null) {
+      match = new NodeMatch<>(maxParams);
+      match.reset(path);
+    }
+    final int start = offset - (labelStart[n + 1] - labelStart[n]);
+    final int paramCount = match.paramCount;
+    final char c = path.charAt(offset);
+    boolean tsr = (c == '/' && offset + 1 == path.length() && values[n] != null);
+
+    for (int i = nextChoice(n, -1, c); i >= 0; i = nextChoice(n, i, c)) {
+      getValue(n, start, i, path, match);
+      if (match.value != null) {
+        return match;
+      }
+      tsr |= match.trailingSlashRedirect;
+      match.paramCount = paramCount;
+    }
+    return NodeMatch.notFound(match, tsr);
+  }
+
+  /**
+   * Tests if the bytes of the buffer starting at {@code offset} are equal to the first
+   * {@code length} bytes of the encoded label starting at {@code labelOffset}.
+   */
+  private boolean bytesMatch(ByteBuffer buffer, int offset, int labelOffset, int length) {
+    for (int i = 0; i < length; i++) {
+      if (buffer.get(offset + i) != byteLabels[labelOffset + i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Tests if the encoded label of node {@code n} starts with the multi-byte char starting at
+   * {@code offset}. Siblings may start with different chars whose first byte is the same.
+   */
+  private boolean leadingCharMatches(ByteBuffer buffer, int offset, int end, int n) {
+    final int lead = buffer.get(offset) & 0xFF;
+    final int length = lead >= 0xF0 ? 4 : lead >= 0xE0 ? 3 : 2;
+    return offset + length <= end && byteLabelStart[n + 1] - byteLabelStart[n] >= length &&
+      bytesMatch(buffer, offset, byteLabelStart[n], length);
+  }
+
+  /**
+   * Walks the tree for the UTF-8 encoded path in the given range of the buffer, same as
+   * {@link #getValue(CharSequence, NodeMatch)}, but by byte instead of by char.
+   */
+  private void getValue(ByteBuffer buffer, int start, int end, NodeMatch<T> match) {
+    getValue(0, start, -1, buffer, end, match);
+  }
+
+  /**
+   * Walks the tree for the UTF-8 encoded path in the buffer up to {@code end} from node
+   * {@code n}, whose label starts at the given offset, same as
+   * {@link #getValue(int, int, int, CharSequence, NodeMatch)}.
+   */
+  private void getValue(int n, int offset, int choice, ByteBuffer buffer, int end, NodeMatch<T> match) {
+    boolean tsr;
+
+    // outer loop for walking the tree
+    walk:
+    for (; ; ) {
+      final int labelOffset = byteLabelStart[n];
+      final int prefixLength = byteLabelStart[n + 1] - labelOffset;
+      final int remaining = end - offset;
+      if (remaining > prefixLength) {
+        if (bytesMatch(buffer, offset, labelOffset, prefixLength)) {
+          offset += prefixLength;
+          int i = choice; // the wildcard child to walk
+          if (i < 0) {
+            // If this node does not have a wildcard (param or catchAll)
+            // child,  we can just look up the next child node and continue
+            // to walk down the tree
+            if ((flags[n] & WILD_CHILD) == 0) {
+              byte b = buffer.get(offset);
+              final int child = staticChild(n, buffer, offset, end);
+              if (child != 0) {
+                // the catch-all child is indexed by the same char as the static child
+                if (b == '/' && child + 1 < wildcardStart[n] && indices[child + 1] == '/') {
+                  getValueBacktracking(n, offset, buffer, end, match);
+                  return;
+                }
+                n = child;
+                continue walk;
+              }
+
+              // Nothing found.
+              // We can recommend to redirect to the same URL without a
+              // trailing slash if a leaf exists for that path.
+              tsr = (b == '/' && offset + 1 == end && values[n] != null);
+              NodeMatch.notFound(match, tsr);
+              return;
+            }
+
+            // static children or other params next to the wildcard child
+            if (childCount(n) > 1) {
+              getValueBacktracking(n, offset, buffer, end, match);
+              return;
+            }
+            i = childStart[n];
+          } else {
+            choice = -1;
+            if (i < wildcardStart[n]) {
+              n = i;
+              continue walk;
+            }
+          }
+
+          // handle wildcard child
+          switch (type(i)) {
+            case PARAM: {
+              // find param end (either '/' or path end), '/' is never part of a multi-byte char
+              int paramEnd = offset;
+              while (paramEnd < end && buffer.get(paramEnd) != '/') {
+                paramEnd++;
+              }
+
+              if (constraints != null && constraints[i] != null &&
+                !constraints[i].matches(buffer, offset, paramEnd)) {
+                NodeMatch.notFound(match, false);
+                return;
+              }
+              n = i;
+
+              // save param value
+              NodeMatch.capture(match, null, paths[n], offset, paramEnd, maxParams);
+
+              // we need to go deeper!
+              if (paramEnd < end) {
+                if (childCount(n) > 0) {
+                  offset = paramEnd;
+                  n = childStart[n];
+                  continue walk;
+                }
+
+                // ... but we can't
+                tsr = (end == paramEnd + 1);
+                NodeMatch.notFound(match, tsr);
+                return;
+              }
+
+              if (values[n] != null) {
+                NodeMatch.found(match, null, paths[n], value(n), false);
+                return;
+              } else if (childCount(n) == 1) {
+                // No handle found. Check if a handle for this path + a
+                // trailing slash exists for TSR recommendation
+                n = childStart[n];
+                tsr = (byteLabelStart[n + 1] - byteLabelStart[n] == 1 &&
+                  byteLabels[byteLabelStart[n]] == '/' && values[n] != null);
+              } else {
+                tsr = false;
+              }
+
+              NodeMatch.found(match, null, path(n), null, tsr);
+              return;
+            }
+
+            case CATCH_ALL: {
+              n = i;
+
+              // save param value
+              NodeMatch.capture(match, null, paths[n], offset, end, maxParams);
+
+              NodeMatch.found(match, null, paths[n], value(n), false);
+              return;
+            }
+
+            default:
+              throw new IllegalStateException("invalid node type");
+          }
+        }
+
+      } else if (remaining == prefixLength && bytesMatch(buffer, offset, labelOffset, prefixLength)) {
+        // We should have reached the node containing the handle.
+        // Check if this node has a handle registered.
+        if (values[n] != null) {
+          NodeMatch.found(match, null, paths[n], value(n), false);
+          return;
+        }
+
+        if (prefixLength == 1 && byteLabels[labelOffset] == '/' && (flags[n] & WILD_CHILD) != 0 &&
+          type(n) != ROOT) {
+          NodeMatch.found(match, null, path(n), null, true);
+          return;
+        }
+
+        // No handle found. Check if a handle for this path + a
+        // trailing slash exists for trailing slash recommendation
+        final int slash = child(n, '/');
+        if (slash != 0) {
+          NodeMatch.notFound(match, isTrailingSlash(n, slash));
+          return;
+        }
+
+        NodeMatch.found(match, null, path(n), null, false);
+        return;
+      }
+
+      // Nothing found. We can recommend to redirect to the same URL with an
+      // extra trailing slash if a leaf exists for that path
+      tsr = (remaining == 1 && buffer.get(offset) == '/') ||
+        (prefixLength == remaining + 1 &&
+          byteLabels[labelOffset + remaining] == '/' &&
+          bytesMatch(buffer, offset, labelOffset, remaining) &&
+          values[n] != null);
+
+      NodeMatch.notFound(match, tsr);
+      return;
+    }
+  }
+
+  /**
+   * Returns the first child of node {@code n} indexed by the UTF-8 encoded char starting at the
+   * given offset of the buffer, or 0 if there is none.
+   */
+  private int staticChild(int n, ByteBuffer buffer, int offset, int end) {
+    final byte b = buffer.get(offset);
+    if (b >= 0) {
+      // an ASCII byte is the char itself
+      return child(n, (char) b);
+    }
+    for (int i = childStart[n], e = wildcardStart[n]; i < e; i++) {
+      if (b == byteIndices[i] && leadingCharMatches(buffer, offset, end, i)) {
+        return i;
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * Walks the children of node {@code n} for the rest of the UTF-8 encoded path after its label,
+   * which ends at the given offset, same as
+   * {@link #getValueBacktracking(int, int, CharSequence, NodeMatch)}.
+   */
+  private void getValueBacktracking(int n, int offset, ByteBuffer buffer, int end, NodeMatch<T> match) {
+    final int start = offset - (byteLabelStart[n + 1] - byteLabelStart[n]);
+    final int paramCount = match.paramCount;
+    final byte b = buffer.get(offset);
+    // only the static child can be indexed by a non-ASCII char
+    final char c = b >= 0 ? (char) b : 0;
+    boolean tsr = (b == '/' && offset + 1 == end && values[n] != null);
+
+    final int staticChild = staticChild(n, buffer, offset, end);
+    final int first = staticChild != 0 && staticChild < staticEnd(n) ? staticChild : nextChoice(n, staticEnd(n) - 1, c);
+    for (int i = first; i >= 0; i = nextChoice(n, i, c)) {
+      getValue(n, start, i, buffer, end, match);
+      if (match.value != null) {
+        return;
+      }
+      tsr |= match.trailingSlashRedirect;
+      match.paramCount = paramCount;
+    }
+    NodeMatch.notFound(match, tsr);
+  }
+
+  @Override
+  public String toString() {
+    return "CompiledTree{" +
+      "nodes=" + flags.length +
+      ", labels=" + labels.length() +
+      ", maxParams=" + maxParams +
+      '}';
+  }
+}
@@ -0,0 +1,82 @@
+package com.zbiljic.switchz;
+
+/**
+ * The standard HTTP request methods.
+ */
+public enum HttpMethod {
+  GET,
+  HEAD,
+  POST,
+  PUT,
+  DELETE,
+  CONNECT,
+  OPTIONS,
+  TRACE,
+  PATCH;
+
+  /**
+   * Returns the standard method with the given (case-sensitive) name, without hashing or
+   * allocating.
+   *
+   * @param name the method name
+   * @return the method, or {@code null} if the name is not a standard method (an extension method)
+   */
+  public static HttpMethod lookup(final CharSequence name) {
+    if (name == null) {
+      throw new NullPointerException("name cannot be null");
+    }
+    if (name.length() < 3) {
+      return null;
+    }
+
+    final HttpMethod method;
+    switch (name.charAt(0)) {
+      case 'G':
+        method = GET;
+        break;
+      case 'H':
+        method = HEAD;
+        break;
+      case 'P':
+        switch (name.charAt(1)) {
+          case 'O':
+            method = POST;
+            break;
+          case 'U':
+            method = PUT;
+            break;
+          case 'A':
+            method = PATCH;
+            break;
+          default:
+            return null;
+        }
+        break;
+      case 'D':
+        method = DELETE;
+        break;
+      case 'C':
+        method = CONNECT;
+        break;
+      case 'O':
+        method = OPTIONS;
+        break;
+      case 'T':
+        method = TRACE;
+        break;
+      default:
+        return null;
+    }
+
+    final String methodName = method.name();
+    if (name.length() != methodName.length()) {
+      return null;
+    }
+    for (int i = 1; i < name.length(); i++) {
+      if (name.charAt(i) != methodName.charAt(i)) {
+        return null;
+      }
+    }
+    return method;
+  }
+}
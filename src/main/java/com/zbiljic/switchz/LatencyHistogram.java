@@ -0,0 +1,121 @@
+package com.zbiljic.switchz;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of durations with logarithmic buckets, like an HdrHistogram with a fixed precision.
+ * <p>
+ * Values below 16 have a bucket each. Above that, every power of two is split into 8 buckets of
+ * equal width, so a value is off by at most 12.5% of itself, and all {@code long} values fit into
+ * a few hundred buckets. Recording a value is a single atomic increment and does not allocate.
+ * <p>
+ * The buckets can be read at any time, e.g. to export them to a metrics library, while values are
+ * recorded concurrently; such a snapshot is not atomic.
+ */
+public final class LatencyHistogram {
+
+  /** The bits of a value, after its leading one, which select its bucket within a power of two. */
+  private static final int SUB_BUCKET_BITS = 3;
+  private static final int SUB_BUCKETS = 2 << SUB_BUCKET_BITS;
+  private static final int HALF = SUB_BUCKETS / 2;
+
+  private final AtomicLongArray counts = new AtomicLongArray(bucketIndex(Long.MAX_VALUE) + 1);
+
+  /**
+   * Records the given value.
+   *
+   * @param value the value, negative values are recorded as 0
+   */
+  public void record(long value) {
+    counts.incrementAndGet(bucketIndex(Math.max(value, 0)));
+  }
+
+  /**
+   * Returns the number of buckets.
+   *
+   * @return the number of buckets
+   */
+  public int getBucketCount() {
+    return counts.length();
+  }
+
+  /**
+   * Returns the number of values recorded in the given bucket.
+   *
+   * @param bucket the bucket index
+   * @return the number of values
+   */
+  public long getCount(int bucket) {
+    return counts.get(bucket);
+  }
+
+  /**
+   * Returns the smallest value of the given bucket.
+   *
+   * @param bucket the bucket index
+   * @return the smallest value, inclusive
+   */
+  public long getLowerBound(int bucket) {
+    if (bucket < SUB_BUCKETS) {
+      return bucket;
+    }
+    final int shift = bucket / HALF - 1;
+    return (long) (bucket % HALF + HALF) << shift;
+  }
+
+  /**
+   * Returns the total number of recorded values.
+   *
+   * @return the number of values
+   */
+  public long getTotalCount() {
+    long total = 0;
+    for (int i = 0; i < counts.length(); i++) {
+      total += counts.get(i);
+    }
+    return total;
+  }
+
+  /**
+   * Returns the smallest value of the bucket holding the given percentile of the recorded values.
+   *
+   * @param percentile the percentile, from 0 to 100
+   * @return the value, or 0 if no value was recorded
+   */
+  public long getValueAtPercentile(double percentile) {
+    if (percentile < 0 || percentile > 100) {
+      throw new IllegalArgumentException("Percentile must be between 0 and 100: " + percentile);
+    }
+    final long total = getTotalCount();
+    final long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+    long count = 0;
+    for (int i = 0; i < counts.length(); i++) {
+      count += counts.get(i);
+      if (count >= rank) {
+        return getLowerBound(i);
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * Returns the index of the bucket of the given value.
+   */
+  static int bucketIndex(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) value;
+    }
+    // the leading one and the sub-bucket bits select the bucket
+    final int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+    return shift * HALF + (int) (value >>> shift);
+  }
+
+  /**
+   * Clears all buckets.
+   */
+  public void reset() {
+    for (int i = 0; i < counts.length(); i++) {
+      counts.set(i, 0);
+    }
+  }
+}
@@ -0,0 +1,69 @@
+package com.zbiljic.switchz;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Records a random sample of the looked up paths, to find out which branches of a tree are hot.
+ * <p>
+ * Each lookup is recorded with a probability of {@code 1 / rate}, decided by a thread-local random
+ * number, so lookups which are not recorded do not write any shared state. Recorded paths are kept
+ * in a ring of the most recent samples. Lookups record their paths without locking; concurrent
+ * lookups may overwrite each other's samples, which only makes the sample a bit smaller.
+ */
+final class LookupSampler {
+
+  private final int mask;
+  private final String[] samples;
+  private int next;
+
+  /** Whether the samples were handed off to be counted, and not counted yet. */
+  private final AtomicBoolean pending = new AtomicBoolean();
+
+  /**
+   * Creates a sampler which records about one in {@code rate} lookups, and keeps the given number
+   * of the most recent samples.
+   *
+   * @param rate     the sample rate, a power of two
+   * @param capacity the number of kept samples
+   */
+  LookupSampler(int rate, int capacity) {
+    if (rate <= 0 || Integer.bitCount(rate) != 1) {
+      throw new IllegalArgumentException("Sample rate must be a power of two: " + rate);
+    }
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+    }
+    this.mask = rate - 1;
+    this.samples = new String[capacity];
+  }
+
+  /**
+   * Records the given path, if it is sampled.
+   *
+   * @param path the looked up path
+   * @return whether the ring of samples was filled since the samples were last taken, and nobody
+   * was told so yet
+   */
+  boolean record(CharSequence path) {
+    if ((ThreadLocalRandom.current().nextInt() & mask) != 0) {
+      return false;
+    }
+
+    int i = next;
+    if (i >= samples.length) {
+      i = 0;
+    }
+    samples[i] = path.toString();
+    next = i + 1;
+    return i + 1 == samples.length && pending.compareAndSet(false, true);
+  }
+
+  /**
+   * Returns the recorded samples; slots which were never written are {@code null}.
+   */
+  String[] samples() {
+    pending.set(false);
+    return samples.clone();
+  }
+}
@@ -0,0 +1,59 @@
+package com.zbiljic.switchz;
+
+/**
+ * Receives the outcome of every lookup of a {@link PathMatcher}, e.g. to count them.
+ * <p>
+ * Listeners are called on the lookup thread, so they must be thread-safe, must not block, and
+ * should not allocate. Every lookup calls either {@link #onHit(String, Object)} or
+ * {@link #onMiss(boolean)}, and possibly some of the other methods. All methods do nothing by
+ * default.
+ *
+ * @param <T> the handler type
+ * @see PathMatcher#setMatchListener(MatchListener, int)
+ * @see MatchMetrics
+ */
+public interface MatchListener<T> {
+
+  /**
+   * Called when a registered path matched.
+   *
+   * @param route   the matched path, as it was registered, e.g. {@code /users/:id}
+   * @param handler the handler of the matched path
+   */
+  default void onHit(String route, T handler) {
+  }
+
+  /**
+   * Called when no registered path matched.
+   *
+   * @param defaultHandler whether the lookup fell back to a default handler, i.e. the default
+   *                       handler is not {@code null}
+   */
+  default void onMiss(boolean defaultHandler) {
+  }
+
+  /**
+   * Called when a registered path matched with {@link SlashMatching#TOLERANT} slash matching,
+   * and the looked up path lacked its leading slash or had a run of slashes, i.e. it was
+   * normalized. A run of slashes within a catch-all value is reported as well, although it is kept.
+   * Missing or extra trailing slashes are not reported.
+   */
+  default void onNormalized() {
+  }
+
+  /**
+   * Called when no registered path matched with {@link SlashMatching#STRICT} slash matching, but
+   * one would match with a trailing slash added or removed.
+   */
+  default void onTrailingSlashRedirect() {
+  }
+
+  /**
+   * Called for a sample of the lookups with the time the lookup took, including the calls of the
+   * other methods of this listener.
+   *
+   * @param nanos the duration of the lookup in nanoseconds
+   */
+  default void onLatency(long nanos) {
+  }
+}
@@ -0,0 +1,141 @@
+package com.zbiljic.switchz;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A {@link MatchListener} which counts the outcomes of lookups, the hits of each registered path,
+ * and keeps a histogram of the sampled lookup latencies.
+ * <p>
+ * Hits are counted by the path as it was registered, e.g. {@code /users/:id}, so paths which share
+ * a handler are counted separately. All counters are {@link LongAdder}s, so concurrent lookups
+ * rarely contend on them, and counting a lookup does not allocate once the path was counted
+ * before. The counts are read with the getters, e.g. to export them to a metrics library; there is
+ * no dependency on one.
+ *
+ * @param <T> the handler type
+ * @see PathMatcher#setMatchListener(MatchListener, int)
+ */
+public final class MatchMetrics<T> implements MatchListener<T> {
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder defaultHandlerFallbacks = new LongAdder();
+  private final LongAdder normalized = new LongAdder();
+  private final LongAdder trailingSlashRedirects = new LongAdder();
+  private final Map<String, LongAdder> routeHits = new ConcurrentHashMap<>();
+  private final LatencyHistogram latency = new LatencyHistogram();
+
+  @Override
+  public void onHit(String route, T handler) {
+    hits.increment();
+    LongAdder counter = routeHits.get(route);
+    if (counter == null) {
+      counter = routeHits.computeIfAbsent(route, r -> new LongAdder());
+    }
+    counter.increment();
+  }
+
+  @Override
+  public void onMiss(boolean defaultHandler) {
+    misses.increment();
+    if (defaultHandler) {
+      defaultHandlerFallbacks.increment();
+    }
+  }
+
+  @Override
+  public void onNormalized() {
+    normalized.increment();
+  }
+
+  @Override
+  public void onTrailingSlashRedirect() {
+    trailingSlashRedirects.increment();
+  }
+
+  @Override
+  public void onLatency(long nanos) {
+    latency.record(nanos);
+  }
+
+  /**
+   * Returns the number of lookups which matched a registered path.
+   *
+   * @return the number of hits
+   */
+  public long getHitCount() {
+    return hits.sum();
+  }
+
+  /**
+   * Returns the number of lookups which matched no registered path.
+   *
+   * @return the number of misses
+   */
+  public long getMissCount() {
+    return misses.sum();
+  }
+
+  /**
+   * Returns the number of misses which fell back to the default handler.
+   *
+   * @return the number of default handler fallbacks
+   */
+  public long getDefaultHandlerCount() {
+    return defaultHandlerFallbacks.sum();
+  }
+
+  /**
+   * Returns the number of hits which only matched because their slashes were normalized.
+   *
+   * @return the number of normalized hits
+   * @see MatchListener#onNormalized()
+   */
+  public long getNormalizedCount() {
+    return normalized.sum();
+  }
+
+  /**
+   * Returns the number of misses for which a trailing slash redirect is recommended.
+   *
+   * @return the number of trailing slash redirects
+   * @see MatchListener#onTrailingSlashRedirect()
+   */
+  public long getTrailingSlashRedirectCount() {
+    return trailingSlashRedirects.sum();
+  }
+
+  /**
+   * Returns the number of lookups which matched the given registered path.
+   *
+   * @param route the path, as it was registered, e.g. {@code /users/:id}
+   * @return the number of hits of the path
+   */
+  public long getHitCount(String route) {
+    final LongAdder counter = routeHits.get(route);
+    return counter != null ? counter.sum() : 0;
+  }
+
+  /**
+   * Returns the number of hits of every registered path which was hit.
+   *
+   * @return a snapshot of the hits by registered path
+   */
+  public Map<String, Long> getHitCounts() {
+    final Map<String, Long> counts = new HashMap<>();
+    routeHits.forEach((route, counter) -> counts.put(route, counter.sum()));
+    return counts;
+  }
+
+  /**
+   * Returns the histogram of the sampled lookup latencies, in nanoseconds.
+   *
+   * @return the histogram
+   */
+  public LatencyHistogram getLatency() {
+    return latency;
+  }
+}
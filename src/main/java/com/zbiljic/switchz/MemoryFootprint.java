@@ -0,0 +1,102 @@
+package com.zbiljic.switchz;
+
+import java.lang.reflect.Array;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * An estimate of the heap used by a set of objects, for comparing the layouts of route tables.
+ * <p>
+ * Sizes are those of a 64-bit HotSpot JVM with compressed references and compact strings: a
+ * 12 byte object header, a 16 byte array header, 4 byte references, and objects aligned to 8
+ * bytes. Objects reached more than once, e.g. strings or arrays shared between nodes, are counted
+ * once. The estimate is not exact, but the layouts are compared with the same assumptions.
+ */
+final class MemoryFootprint {
+
+  private static final int OBJECT_HEADER = 12;
+  private static final int ARRAY_HEADER = 16;
+  private static final int REFERENCE = 4;
+  private static final int ALIGNMENT = 8;
+
+  /** The objects counted so far. */
+  private final Map<Object, Boolean> counted = new IdentityHashMap<>();
+
+  private long bytes;
+
+  /**
+   * Returns the number of bytes of the objects counted so far.
+   */
+  long bytes() {
+    return bytes;
+  }
+
+  /**
+   * Counts an object with the given number of reference fields and bytes of primitive fields, if
+   * it was not counted before.
+   *
+   * @return whether the object was counted, i.e. it was not counted before
+   */
+  boolean object(Object o, int references, int primitiveBytes) {
+    if (o == null || counted.put(o, Boolean.TRUE) != null) {
+      return false;
+    }
+    bytes += align(OBJECT_HEADER + references * REFERENCE + primitiveBytes);
+    return true;
+  }
+
+  /**
+   * Counts a string and its chars, if it was not counted before.
+   */
+  void string(String s) {
+    // the chars, the hash, the coder and the zero hash flag
+    if (object(s, 1, 4 + 1 + 1)) {
+      // the chars are kept one byte each, unless one of them does not fit
+      int charSize = 1;
+      for (int i = 0; i < s.length(); i++) {
+        if (s.charAt(i) > 0xFF) {
+          charSize = 2;
+          break;
+        }
+      }
+      bytes += align(ARRAY_HEADER + (long) s.length() * charSize);
+    }
+  }
+
+  /**
+   * Counts an array, but not the objects it refers to, if it was not counted before.
+   */
+  void array(Object array) {
+    if (array == null || counted.put(array, Boolean.TRUE) != null) {
+      return;
+    }
+    final Class<?> type = array.getClass().getComponentType();
+    final int elementSize;
+    if (type == long.class || type == double.class) {
+      elementSize = 8;
+    } else if (type == int.class || type == float.class) {
+      elementSize = 4;
+    } else if (type == char.class || type == short.class) {
+      elementSize = 2;
+    } else if (type == byte.class || type == boolean.class) {
+      elementSize = 1;
+    } else {
+      elementSize = REFERENCE;
+    }
+    bytes += align(ARRAY_HEADER + (long) Array.getLength(array) * elementSize);
+  }
+
+  /**
+   * Counts a param constraint and its source, if it was not counted before. Only the source of a
+   * constraint is counted, not its compiled matcher.
+   */
+  void constraint(ParamConstraint constraint) {
+    if (object(constraint, 1, 0)) {
+      string(constraint.source);
+    }
+  }
+
+  private static long align(long size) {
+    return (size + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+  }
+}
@@ -0,0 +1,267 @@
+package com.zbiljic.switchz;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Matches requests, i.e. an HTTP method and a path, against registered handlers.
+ * <p>
+ * There is a tree per method. The trees of the standard methods are found by the ordinal of their
+ * {@link HttpMethod}, so dispatching on the method costs no hashing; only extension methods are
+ * looked up in a map.
+ * <p>
+ * A path which matches for some methods but not for the requested one should be answered with
+ * "405 Method Not Allowed". The methods allowed for a path are kept in another tree, holding every
+ * registered path with the set of its methods, so they are found with a single walk instead of a
+ * walk of every method tree. Only if the paths of the different methods conflict or overlap with
+ * each other, e.g. "/users/new" and "/users/:id", and so cannot be kept in one tree, all method
+ * trees are walked instead.
+ * <p>
+ * Like {@link PathMatcher}, handlers are registered by publishing new versions of the trees, so
+ * lookups never block and never see a partially registered path.
+ *
+ * @param <T> the handler type
+ */
+public class MethodMatcher<T> {
+
+  private static final HttpMethod[] METHODS = HttpMethod.values();
+
+  /**
+   * A version of all trees, published as a whole. Never modified once published.
+   */
+  private static final class Routes<T> {
+
+    /** The trees of the standard methods, indexed by ordinal; {@code null} if none. */
+    final TreeNode<T>[] trees;
+
+    /** The trees of the extension methods. */
+    final Map<String, TreeNode<T>> extensionTrees;
+
+    /** The methods of every path; {@code null} if the paths conflict with each other. */
+    final TreeNode<Set<String>> allowed;
+
+    Routes(TreeNode<T>[] trees, Map<String, TreeNode<T>> extensionTrees,
+           TreeNode<Set<String>> allowed) {
+      this.trees = trees;
+      this.extensionTrees = extensionTrees;
+      this.allowed = allowed;
+    }
+  }
+
+  private volatile Routes<T> routes;
+
+  /**
+   * Default constructor.
+   */
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  public MethodMatcher() {
+    routes = new Routes<>(new TreeNode[METHODS.length], Collections.emptyMap(), new TreeNode<>());
+  }
+
+  private TreeNode<T> tree(final Routes<T> routes, final CharSequence method) {
+    if (method == null) {
+      throw new NullPointerException("method cannot be null");
+    }
+    final HttpMethod httpMethod = HttpMethod.lookup(method);
+    if (httpMethod != null) {
+      return routes.trees[httpMethod.ordinal()];
+    }
+    if (routes.extensionTrees.isEmpty()) {
+      return null;
+    }
+    return routes.extensionTrees.get(method.toString());
+  }
+
+  /**
+   * Matches a request against the registered handlers.
+   *
+   * @param method The request method
+   * @param path   The path to match
+   * @return The match. This will never be null, however if none matched its value will be null
+   * @see #allowedMethods(String)
+   */
+  public NodeMatch<T> match(final HttpMethod method, final String path) {
+    if (method == null) {
+      throw new NullPointerException("method cannot be null");
+    }
+    final TreeNode<T> tree = routes.trees[method.ordinal()];
+    if (tree == null) {
+      return NodeMatch.notFound(false);
+    }
+    return tree.get(path);
+  }
+
+  /**
+   * Matches a request against the registered handlers.
+   *
+   * @param method The request method, standard or extension
+   * @param path   The path to match
+   * @return The match. This will never be null, however if none matched its value will be null
+   * @see #allowedMethods(String)
+   */
+  public NodeMatch<T> match(final CharSequence method, final String path) {
+    final TreeNode<T> tree = tree(routes, method);
+    if (tree == null) {
+      return NodeMatch.notFound(false);
+    }
+    return tree.get(path);
+  }
+
+  /**
+   * Matches a request against the registered handlers, filling in the given match instead of
+   * creating a new one. Unless the method is an extension method, matching this way does not
+   * allocate.
+   *
+   * @param method The request method, standard or extension
+   * @param path   The path to match
+   * @param match  The match to fill in, its previous state is discarded
+   * @return The given match. If none matched its value will be null
+   */
+  public MutableNodeMatch<T> match(final CharSequence method, final CharSequence path,
+                                   final MutableNodeMatch<T> match) {
+    final TreeNode<T> tree = tree(routes, method);
+    if (tree == null) {
+      match.reset(path);
+      return match;
+    }
+    return tree.get(path, match);
+  }
+
+  /**
+   * Returns the methods for which a handler matches the given path. If a request did not match,
+   * but this set is not empty, the request should be answered with "405 Method Not Allowed" and
+   * these methods in the {@code Allow} header.
+   *
+   * @param path The path to match
+   * @return The unmodifiable set of methods, standard methods first, never null
+   */
+  public Set<String> allowedMethods(final String path) {
+    if (path == null) {
+      throw new NullPointerException("path cannot be null");
+    }
+
+    final Routes<T> routes = this.routes;
+    if (routes.allowed != null) {
+      final Set<String> allowed = routes.allowed.get(path).getValue();
+      return allowed != null ? allowed : Collections.emptySet();
+    }
+
+    // the paths could not be kept in a single tree, walk every tree
+    final List<String> allowed = new ArrayList<>();
+    for (int i = 0; i < METHODS.length; i++) {
+      final TreeNode<T> tree = routes.trees[i];
+      if (tree != null && tree.get(path).getValue() != null) {
+        allowed.add(METHODS[i].name());
+      }
+    }
+    for (Map.Entry<String, TreeNode<T>> entry : routes.extensionTrees.entrySet()) {
+      if (entry.getValue().get(path).getValue() != null) {
+        allowed.add(entry.getKey());
+      }
+    }
+    return allowed.isEmpty() ? Collections.emptySet() : methodSet(allowed);
+  }
+
+  public MethodMatcher<T> addPath(final HttpMethod method, final String path, final T handler) {
+    if (method == null) {
+      throw new NullPointerException("method cannot be null");
+    }
+    return addPath(method.name(), path, handler);
+  }
+
+  public synchronized MethodMatcher<T> addPath(final String method, final String path,
+                                               final T handler) {
+    if (method == null) {
+      throw new NullPointerException("method cannot be null");
+    }
+    if (method.isEmpty()) {
+      throw new IllegalArgumentException("Method must be specified");
+    }
+    if (path == null) {
+      throw new NullPointerException("path cannot be null");
+    }
+    if (path.isEmpty() || path.charAt(0) != '/') {
+      throw new IllegalArgumentException("Path must begin with '/' in path '" + path + "'");
+    }
+
+    final Routes<T> routes = this.routes;
+    final HttpMethod httpMethod = HttpMethod.lookup(method);
+
+    // the tree of the method, throws if the path conflicts
+    final TreeEdit edit = new TreeEdit();
+    final TreeNode<T> tree = tree(routes, method);
+    final TreeNode<T> newTree = edit.writable(tree != null ? tree : new TreeNode<>());
+    newTree.add(path, handler, edit);
+    edit.release(newTree);
+
+    TreeNode<T>[] trees = routes.trees;
+    Map<String, TreeNode<T>> extensionTrees = routes.extensionTrees;
+    if (httpMethod != null) {
+      trees = trees.clone();
+      trees[httpMethod.ordinal()] = newTree;
+    } else {
+      extensionTrees = new HashMap<>(extensionTrees);
+      extensionTrees.put(method, newTree);
+      extensionTrees = Collections.unmodifiableMap(extensionTrees);
+    }
+
+    this.routes = new Routes<>(trees, extensionTrees, addAllowed(routes.allowed, method, path));
+    return this;
+  }
+
+  /**
+   * Returns a new version of the tree of allowed methods, with the given method added to the given
+   * path, or {@code null} if the path conflicts with the paths of other methods.
+   */
+  private static TreeNode<Set<String>> addAllowed(final TreeNode<Set<String>> allowed,
+                                                  final String method, final String path) {
+    if (allowed == null) {
+      return null;
+    }
+
+    final TreeEdit edit = new TreeEdit();
+    final TreeNode<Set<String>> newAllowed = edit.writable(allowed);
+    final TreeNode<Set<String>> node = newAllowed.findNode(path, edit);
+    if (node != null && node.value != null) {
+      final List<String> methods = new ArrayList<>(node.value);
+      methods.add(method);
+      node.value = methodSet(methods);
+      edit.release(newAllowed);
+      return newAllowed;
+    }
+
+    try {
+      newAllowed.add(path, methodSet(Collections.singletonList(method)), edit);
+    } catch (IllegalArgumentException e) {
+      // e.g. "/users/:id" and "/users/:name" for different methods
+      return null;
+    }
+    edit.release(newAllowed);
+    // e.g. "/users/:id" for GET and "/users/new" for POST, a single tree would only find POST for
+    // "/users/new", fall back to walking every tree
+    return newAllowed.overlaps(path) ? null : newAllowed;
+  }
+
+  /**
+   * Returns an unmodifiable set of the given methods, the standard methods first in their order,
+   * followed by the extension methods in alphabetical order.
+   */
+  private static Set<String> methodSet(final List<String> methods) {
+    methods.sort((a, b) -> {
+      final HttpMethod ma = HttpMethod.lookup(a);
+      final HttpMethod mb = HttpMethod.lookup(b);
+      if (ma != null && mb != null) {
+        return ma.compareTo(mb);
+      } else if (ma != null || mb != null) {
+        return ma != null ? -1 : 1;
+      }
+      return a.compareTo(b);
+    });
+    return Collections.unmodifiableSet(new LinkedHashSet<>(methods));
+  }
+}
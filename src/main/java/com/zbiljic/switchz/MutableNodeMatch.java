@@ -0,0 +1,80 @@
+package com.zbiljic.switchz;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link NodeMatch} which is filled in place by a lookup, so it can be reused for many lookups.
+ * <p>
+ * Routing into a reused match does not allocate: parameters are kept as offsets into the looked up
+ * path, and their values are only created when requested. Because of that the parameter values
+ * are only valid as long as the looked up path, or buffer, is not modified.
+ * <p>
+ * Instances are not thread-safe. A typical use is one instance per event loop thread, which is
+ * reused for every request handled by that thread.
+ *
+ * @param <T> the value type
+ */
+public final class MutableNodeMatch<T> extends NodeMatch<T> {
+
+  /** The last byte array looked up, wrapped. */
+  private ByteBuffer wrapped;
+
+  public MutableNodeMatch() {
+    reset(null);
+  }
+
+  /**
+   * Returns the given array wrapped in a buffer, reusing the buffer of the last call if the array
+   * is the same.
+   */
+  ByteBuffer wrap(byte[] bytes) {
+    ByteBuffer wrapped = this.wrapped;
+    if (wrapped == null || wrapped.array() != bytes) {
+      wrapped = ByteBuffer.wrap(bytes);
+      this.wrapped = wrapped;
+    }
+    return wrapped;
+  }
+
+  /**
+   * Returns the path of the last lookup.
+   *
+   * @return the looked up path, or {@code null} if the last lookup was of raw bytes
+   */
+  public CharSequence getPath() {
+    return path;
+  }
+
+  /**
+   * Returns the buffer of the last lookup of raw bytes. Byte arrays are returned wrapped.
+   *
+   * @return the looked up buffer, or {@code null} if the last lookup was of a path
+   */
+  public ByteBuffer getBuffer() {
+    return buffer;
+  }
+
+  /**
+   * Returns the offset within the looked up path where the value of the parameter at the given
+   * index starts. For lookups of raw bytes this is the index of the first byte in the buffer.
+   *
+   * @param index the index of the parameter
+   * @return the start offset (inclusive)
+   */
+  public int getParameterStart(int index) {
+    checkParameterIndex(index);
+    return offsets[index * 2];
+  }
+
+  /**
+   * Returns the offset within the looked up path where the value of the parameter at the given
+   * index ends. For lookups of raw bytes this is the index after the last byte in the buffer.
+   *
+   * @param index the index of the parameter
+   * @return the end offset (exclusive)
+   */
+  public int getParameterEnd(int index) {
+    checkParameterIndex(index);
+    return offsets[index * 2 + 1];
+  }
+}
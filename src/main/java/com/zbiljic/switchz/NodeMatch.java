@@ -1,40 +1,86 @@
 package com.zbiljic.switchz;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Map;
 import java.util.stream.Collectors;
 
-public final class NodeMatch<T> {
+/**
+ * The result of a lookup: the matched path, its value and the captured parameters.
+ * <p>
+ * Matches returned by {@link PathMatcher#match(String)} and {@link TreeNode#get(String)} are
+ * read-only, and may be shared between lookups and threads, e.g. the match of a path which is not
+ * registered, or of a path without parameters. They must not be modified or cached by identity.
+ * Only a {@link MutableNodeMatch}, which is passed to a lookup by the caller, is filled in place.
+ * <p>
+ * Unlike in earlier versions this class is not final, because {@link MutableNodeMatch} extends it,
+ * so a {@code NodeMatch} is not necessarily read-only anymore. The public constructors still create
+ * read-only matches, and the state of a match can only be set within this package, so a subclass
+ * outside of it cannot make a match mutable.
+ *
+ * @param <T> the value type
+ */
+public class NodeMatch<T> {
 
   private static final Param[] EMPTY_PARAM_ARRAY = new Param[0];
 
-  private final String matched;
-  private final T value;
-  private final Param[] params;
-  private final boolean trailingSlashRedirect;
+  private static final String[] EMPTY_STRING_ARRAY = new String[0];
 
+  private static final int[] EMPTY_INT_ARRAY = new int[0];
+
+  private static final NodeMatch<?> NOT_FOUND = new NodeMatch<>(false);
+  private static final NodeMatch<?> NOT_FOUND_TSR = new NodeMatch<>(true);
+
+  String matched;
+  /** The path the value was registered with, if the lookup was made by a {@link TreeNode}. */
+  String route;
+  T value;
+  boolean trailingSlashRedirect;
+
+  /** The path the parameter offsets refer to. */
+  CharSequence path;
+  /** The buffer the parameter offsets refer to, if raw bytes were looked up instead of a path. */
+  ByteBuffer buffer;
+  /** The wildcard (":name" or "/*name") of each captured parameter. */
+  String[] wildcards = EMPTY_STRING_ARRAY;
+  /** The start and end offset within the path of each captured parameter value. */
+  int[] offsets = EMPTY_INT_ARRAY;
+  int paramCount;
+
+  private transient Param[] params;
   private transient Map<String, String> parameters;
 
+  /**
+   * Creates an empty match, to be filled in by a lookup.
+   */
+  NodeMatch() {
+  }
+
+  /**
+   * Creates an empty match with room for the given number of parameters, to be filled in by a
+   * lookup.
+   */
+  NodeMatch(int capacity) {
+    ensureCapacity(capacity);
+  }
+
   public NodeMatch(boolean trailingSlashRedirect) {
-    this.matched = null;
-    this.value = null;
-    this.params = EMPTY_PARAM_ARRAY;
-    this.trailingSlashRedirect = trailingSlashRedirect;
+    this(null, null, EMPTY_PARAM_ARRAY, trailingSlashRedirect);
   }
 
   public NodeMatch(String matched, T value) {
-    this.matched = matched;
-    this.value = value;
-    this.params = EMPTY_PARAM_ARRAY;
-    this.trailingSlashRedirect = false;
+    this(matched, value, EMPTY_PARAM_ARRAY, false);
+  }
+
+  NodeMatch(String matched, String route, T value) {
+    this(matched, value, EMPTY_PARAM_ARRAY, false);
+    this.route = route;
   }
 
   public NodeMatch(String matched, T value, Param[] params) {
-    this.matched = matched;
-    this.value = value;
-    this.params = params;
-    this.trailingSlashRedirect = false;
+    this(matched, value, params, false);
   }
 
   public NodeMatch(String matched, T value, Param[] params, boolean trailingSlashRedirect) {
@@ -42,6 +88,118 @@ public final class NodeMatch<T> {
     this.value = value;
     this.params = params;
     this.trailingSlashRedirect = trailingSlashRedirect;
+    this.paramCount = params == null ? 0 : params.length;
+  }
+
+  /**
+   * Returns a shared match without a value.
+   *
+   * @param trailingSlashRedirect whether a trailing slash redirect is recommended
+   * @return the match
+   */
+  @SuppressWarnings("unchecked")
+  static <T> NodeMatch<T> notFound(boolean trailingSlashRedirect) {
+    return (NodeMatch<T>) (trailingSlashRedirect ? NOT_FOUND_TSR : NOT_FOUND);
+  }
+
+  /**
+   * Marks the given match (or a shared one, if none is given) as a match without a value.
+   */
+  static <T> NodeMatch<T> notFound(NodeMatch<T> match, boolean trailingSlashRedirect) {
+    if (match == null) {
+      return notFound(trailingSlashRedirect);
+    }
+    match.matched = null;
+    match.route = null;
+    match.value = null;
+    match.paramCount = 0;
+    match.trailingSlashRedirect = trailingSlashRedirect;
+    return match;
+  }
+
+  /**
+   * Sets the result of a lookup on the given match, which is created if not given.
+   */
+  static <T> NodeMatch<T> found(NodeMatch<T> match, CharSequence path, String matched, T value,
+                                boolean trailingSlashRedirect) {
+    return found(match, path, matched, null, value, trailingSlashRedirect);
+  }
+
+  /**
+   * Sets the result of a lookup on the given match, with the path the value was registered with.
+   */
+  static <T> NodeMatch<T> found(NodeMatch<T> match, CharSequence path, String matched, String route,
+                                T value, boolean trailingSlashRedirect) {
+    if (match == null) {
+      match = new NodeMatch<>();
+      match.reset(path);
+    }
+    match.matched = matched;
+    match.route = route;
+    match.value = value;
+    match.trailingSlashRedirect = trailingSlashRedirect;
+    return match;
+  }
+
+  /**
+   * Captures a parameter value into the given match. If no match is given, one with room for
+   * {@code capacity} parameters is created.
+   */
+  static <T> NodeMatch<T> capture(NodeMatch<T> match, CharSequence path, String wildcard,
+                                  int start, int end, int capacity) {
+    if (match == null) {
+      match = new NodeMatch<>(capacity);
+      match.reset(path);
+    }
+    match.addParameter(wildcard, start, end);
+    return match;
+  }
+
+  /**
+   * Clears this match before it is filled in by a lookup of the given path.
+   */
+  void reset(CharSequence path) {
+    this.matched = null;
+    this.route = null;
+    this.value = null;
+    this.trailingSlashRedirect = false;
+    this.path = path;
+    this.buffer = null;
+    this.paramCount = 0;
+    this.params = null;
+    this.parameters = null;
+  }
+
+  /**
+   * Clears this match before it is filled in by a lookup of the UTF-8 encoded path in the given
+   * buffer.
+   */
+  void resetBuffer(ByteBuffer buffer) {
+    reset(null);
+    this.buffer = buffer;
+  }
+
+  /**
+   * Makes sure there is room for the given number of parameters, so that a lookup in a tree with at
+   * most that many parameters per path never has to grow the parameter storage.
+   */
+  void ensureCapacity(int capacity) {
+    if (capacity > wildcards.length) {
+      wildcards = Arrays.copyOf(wildcards, capacity);
+      offsets = Arrays.copyOf(offsets, capacity * 2);
+    }
+  }
+
+  private void addParameter(String wildcard, int start, int end) {
+    int i = paramCount;
+    if (i == wildcards.length) {
+      // only if the tree did not report the right capacity
+      ensureCapacity(Math.max(i * 2, 1));
+    }
+    wildcards[i] = wildcard;
+    offsets[i * 2] = start;
+    offsets[i * 2 + 1] = end;
+    paramCount = i + 1;
   }
 
   public String getMatched() {
@@ -52,13 +210,90 @@ public final class NodeMatch<T> {
     return value;
   }
 
+  /**
+   * Returns the number of captured parameters.
+   *
+   * @return the number of parameters
+   */
+  public int getParameterCount() {
+    return paramCount;
+  }
+
+  /**
+   * Returns the name of the parameter at the given index.
+   *
+   * @param index the index of the parameter
+   * @return the parameter name
+   */
+  public String getParameterName(int index) {
+    checkParameterIndex(index);
+    if (params != null) {
+      return params[index].getKey();
+    }
+    return TreeNodeUtil.wildcardName(wildcards[index]);
+  }
+
+  /**
+   * Returns the value of the parameter at the given index.
+   *
+   * @param index the index of the parameter
+   * @return the parameter value
+   */
+  public String getParameterValue(int index) {
+    checkParameterIndex(index);
+    if (params != null) {
+      return params[index].getValue();
+    }
+    final int start = offsets[index * 2];
+    final int end = offsets[index * 2 + 1];
+    if (buffer != null) {
+      return decode(buffer, start, end);
+    }
+    return path.subSequence(start, end).toString();
+  }
+
+  private static String decode(ByteBuffer buffer, int start, int end) {
+    if (buffer.hasArray()) {
+      return new String(buffer.array(), buffer.arrayOffset() + start, end - start,
+        StandardCharsets.UTF_8);
+    }
+    final byte[] bytes = new byte[end - start];
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = buffer.get(start + i);
+    }
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Returns the value of the parameter with the given name, or {@code null} if there is no such
+   * parameter. Only the returned value is allocated.
+   *
+   * @param name the name of the parameter
+   * @return the parameter value, or {@code null}
+   */
+  public String getParameterValue(String name) {
+    for (int i = 0; i < paramCount; i++) {
+      if (params != null) {
+        if (params[i].getKey().equals(name)) {
+          return params[i].getValue();
+        }
+      } else {
+        if (TreeNodeUtil.wildcardNameEquals(wildcards[i], name)) {
+          return getParameterValue(i);
+        }
+      }
+    }
+    return null;
+  }
+
   public Param[] getParameters() {
-    return params.clone();
+    return params().clone();
   }
 
   public Map<String, String> getParametersAsMap() {
     if (parameters == null) {
-      if (params == null || params.length == 0) {
+      Param[] params = params();
+      if (params.length == 0) {
         parameters = Collections.emptyMap();
       } else {
         parameters = Collections.unmodifiableMap(Arrays.stream(params)
@@ -72,6 +307,27 @@ public final class NodeMatch<T> {
     return trailingSlashRedirect;
   }
 
+  private Param[] params() {
+    if (params == null) {
+      if (paramCount == 0) {
+        params = EMPTY_PARAM_ARRAY;
+      } else {
+        Param[] result = new Param[paramCount];
+        for (int i = 0; i < paramCount; i++) {
+          result[i] = new Param(getParameterName(i), getParameterValue(i));
+        }
+        params = result;
+      }
+    }
+    return params;
+  }
+
+  void checkParameterIndex(int index) {
+    if (index < 0 || index >= paramCount) {
+      throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + paramCount);
+    }
+  }
+
   /**
    * Returns a string representation of this object; useful for testing and debugging.
    *
@@ -83,7 +339,7 @@ public final class NodeMatch<T> {
     return "NodeMatch{" +
       "matched='" + matched + '\'' +
       ", value=" + value +
-      ", params=" + Arrays.toString(params) +
+      ", params=" + Arrays.toString(params()) +
       ", trailingSlashRedirect=" + trailingSlashRedirect +
       '}';
   }
@@ -0,0 +1,271 @@
+package com.zbiljic.switchz;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.regex.Pattern;
+
+/**
+ * A constraint on the values of a path parameter, as in {@code :id<int>}.
+ * <p>
+ * The named constraints and simple character classes are checked by hand-written matchers, which
+ * neither allocate nor backtrack. Other constraints are regular expressions:
+ * <ul>
+ * <li>{@code int} - one or more digits</li>
+ * <li>{@code alpha} - one or more ASCII letters</li>
+ * <li>{@code alnum} - one or more ASCII letters or digits</li>
+ * <li>{@code hex} - one or more hexadecimal digits</li>
+ * <li>{@code uuid} - a UUID in its canonical 8-4-4-4-12 form, in either case</li>
+ * <li>a character class of ASCII chars and ranges followed by {@code +}, {@code *},
+ * {@code {n}} or {@code {n,m}}, e.g. {@code [a-z0-9-]+}, without a regular expression</li>
+ * <li>any other {@link Pattern regular expression}, which must match the whole value</li>
+ * </ul>
+ * A constraint takes the rest of its path segment, so it must end with {@code >} and cannot
+ * contain {@code /}; a value never contains a slash anyway.
+ */
+abstract class ParamConstraint {
+
+  /** The constraint as written in the path, without the angle brackets. */
+  final String source;
+
+  ParamConstraint(String source) {
+    this.source = source;
+  }
+
+  /**
+   * Parses the given constraint.
+   *
+   * @param source the constraint, without the angle brackets
+   * @return the constraint
+   * @throws IllegalArgumentException if the constraint is not a valid regular expression
+   */
+  static ParamConstraint parse(String source) {
+    if (source.isEmpty()) {
+      throw new IllegalArgumentException("Parameter constraint must not be empty");
+    }
+    switch (source) {
+      case "int":
+        return CharClass.parse(source, "[0-9]+");
+      case "alpha":
+        return CharClass.parse(source, "[A-Za-z]+");
+      case "alnum":
+        return CharClass.parse(source, "[A-Za-z0-9]+");
+      case "hex":
+        return CharClass.parse(source, "[0-9A-Fa-f]+");
+      case "uuid":
+        return new Uuid(source);
+      default:
+        final ParamConstraint charClass = CharClass.parse(source, source);
+        return charClass != null ? charClass : new Regex(source);
+    }
+  }
+
+  /**
+   * Tests if the chars {@code start .. end} of the given path are a valid parameter value.
+   */
+  abstract boolean matches(CharSequence path, int start, int end);
+
+  /**
+   * Tests if the UTF-8 encoded bytes {@code start .. end} of the given buffer are a valid parameter
+   * value.
+   */
+  abstract boolean matches(ByteBuffer buffer, int start, int end);
+
+  @Override
+  public String toString() {
+    return source;
+  }
+
+  private static boolean isHexDigit(int c) {
+    return (c >= '0' && c <= '9') || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F');
+  }
+
+  /**
+   * A set of ASCII chars, repeated between a minimum and a maximum number of times.
+   */
+  private static final class CharClass extends ParamConstraint {
+
+    /** The chars {@code 0 .. 63} and {@code 64 .. 127} in the set, as bit masks. */
+    private final long low;
+    private final long high;
+    private final int min;
+    private final int max;
+
+    private CharClass(String source, long low, long high, int min, int max) {
+      super(source);
+      this.low = low;
+      this.high = high;
+      this.min = min;
+      this.max = max;
+    }
+
+    /**
+     * Parses a character class followed by a quantifier, or returns {@code null} if the given
+     * expression is anything else.
+     */
+    static CharClass parse(String source, String expression) {
+      if (expression.length() < 3 || expression.charAt(0) != '[' || expression.charAt(1) == '^') {
+        return null;
+      }
+
+      long low = 0;
+      long high = 0;
+      int i = 1;
+      while (i < expression.length() && expression.charAt(i) != ']') {
+        char from = expression.charAt(i);
+        if (from == '\\' || from == '[' || from >= 0x80) {
+          return null;
+        }
+        char to = from;
+        if (i + 2 < expression.length() && expression.charAt(i + 1) == '-' &&
+          expression.charAt(i + 2) != ']') {
+          to = expression.charAt(i + 2);
+          if (to == '\\' || to == '[' || to >= 0x80 || to < from) {
+            return null;
+          }
+          i += 2;
+        }
+        for (char c = from; c <= to; c++) {
+          if (c < 64) {
+            low |= 1L << c;
+          } else {
+            high |= 1L << (c - 64);
+          }
+        }
+        i++;
+      }
+      if (i == expression.length() || i == 1) {
+        return null;
+      }
+
+      // the quantifier
+      final String quantifier = expression.substring(i + 1);
+      switch (quantifier) {
+        case "+":
+          return new CharClass(source, low, high, 1, Integer.MAX_VALUE);
+        case "*":
+          return new CharClass(source, low, high, 0, Integer.MAX_VALUE);
+        default:
+          if (quantifier.length() < 3 || quantifier.charAt(0) != '{' ||
+            quantifier.charAt(quantifier.length() - 1) != '}') {
+            return null;
+          }
+          final String bounds = quantifier.substring(1, quantifier.length() - 1);
+          final int comma = bounds.indexOf(',');
+          try {
+            final int min = Integer.parseInt(comma < 0 ? bounds : bounds.substring(0, comma));
+            final int max = comma < 0 ? min : Integer.parseInt(bounds.substring(comma + 1));
+            return min <= max ? new CharClass(source, low, high, min, max) : null;
+          } catch (NumberFormatException e) {
+            return null;
+          }
+      }
+    }
+
+    private boolean contains(int c) {
+      if (c < 64) {
+        return c >= 0 && (low & (1L << c)) != 0;
+      }
+      return c < 128 && (high & (1L << (c - 64))) != 0;
+    }
+
+    @Override
+    boolean matches(CharSequence path, int start, int end) {
+      final int length = end - start;
+      if (length < min || length > max) {
+        return false;
+      }
+      for (int i = start; i < end; i++) {
+        if (!contains(path.charAt(i))) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    @Override
+    boolean matches(ByteBuffer buffer, int start, int end) {
+      // every char of the set is a single byte, other bytes are negative
+      final int length = end - start;
+      if (length < min || length > max) {
+        return false;
+      }
+      for (int i = start; i < end; i++) {
+        if (!contains(buffer.get(i))) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+  /**
+   * A UUID in its canonical form, e.g. {@code 123e4567-e89b-12d3-a456-426614174000}.
+   */
+  private static final class Uuid extends ParamConstraint {
+
+    private static final int LENGTH = 36;
+
+    Uuid(String source) {
+      super(source);
+    }
+
+    private static boolean isDash(int i) {
+      return i == 8 || i == 13 || i == 18 || i == 23;
+    }
+
+    @Override
+    boolean matches(CharSequence path, int start, int end) {
+      if (end - start != LENGTH) {
+        return false;
+      }
+      for (int i = 0; i < LENGTH; i++) {
+        final char c = path.charAt(start + i);
+        if (isDash(i) ? c != '-' : !isHexDigit(c)) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    @Override
+    boolean matches(ByteBuffer buffer, int start, int end) {
+      if (end - start != LENGTH) {
+        return false;
+      }
+      for (int i = 0; i < LENGTH; i++) {
+        final byte b = buffer.get(start + i);
+        if (isDash(i) ? b != '-' : !isHexDigit(b)) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+  /**
+   * A regular expression, which must match the whole value.
+   */
+  private static final class Regex extends ParamConstraint {
+
+    private final Pattern pattern;
+
+    Regex(String source) {
+      super(source);
+      this.pattern = Pattern.compile(source);
+    }
+
+    @Override
+    boolean matches(CharSequence path, int start, int end) {
+      return pattern.matcher(path).region(start, end).matches();
+    }
+
+    @Override
+    boolean matches(ByteBuffer buffer, int start, int end) {
+      final byte[] bytes = new byte[end - start];
+      for (int i = 0; i < bytes.length; i++) {
+        bytes[i] = buffer.get(start + i);
+      }
+      return pattern.matcher(new String(bytes, StandardCharsets.UTF_8)).matches();
+    }
+  }
+}
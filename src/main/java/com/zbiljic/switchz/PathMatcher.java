@@ -3,27 +3,155 @@ package com.zbiljic.switchz;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Matches paths against registered handlers.
+ * <p>
+ * Lookups never block and never see a partially registered path: paths are registered by building
+ * a new version of the tree, which copies only the nodes that change, and publishing it atomically.
+ * Lookups walk whichever version was published when they started. A whole route set may be applied
+ * with {@link #setPaths(Map)}, which publishes only its differences to the registered paths, as a
+ * single new version.
+ * <p>
+ * A param may be constrained, as in {@code /users/:id<int>}, {@code /users/:id<uuid>} or
+ * {@code /posts/:slug<[a-z-]+>}, and params with different constraints may be registered at the
+ * same position. A lookup takes the first param, in registration order, whose constraint accepts
+ * the value, and then the param without a constraint, if any. A constraint ends with its path
+ * segment, so it cannot contain a slash.
+ * <p>
+ * Registered paths without parameters are also kept in a hash table, which is looked up before the
+ * tree, so a request for such a path is answered with a single probe. Only requests which do not
+ * match one of these paths exactly walk the tree.
+ * <p>
+ * Optionally, the matches of requests which the hash table cannot answer, but which match a path
+ * without parameters once their slashes are normalized, such as {@code /users/} or
+ * {@code //users} for {@code /users}, are cached, so that repeated requests of this kind are
+ * found with a single hash probe instead of a walk of the tree. Only {@link SlashMatching#TOLERANT}
+ * produces such matches, so with {@link SlashMatching#STRICT} the cache stays empty. The cache
+ * belongs to a version of the tree, so publishing a new version starts with an empty cache.
+ * <p>
+ * The children of a tree node are ordered by the number of registered paths below them, and
+ * lookups check them in that order. With adaptive ordering, a sample of the lookups which walk the
+ * tree is recorded instead, and the tree is periodically republished with the children ordered by
+ * how often they were walked through, so the hot branches are found first.
+ * <p>
+ * A path may be registered with a name, and the paths it matches built from the name and the
+ * parameter values, e.g. to generate links. The named paths are compiled into {@link RouteTemplate
+ * templates} when they are registered.
+ * <p>
+ * Many paths may be matched at once, optionally in a fork-join pool, into a {@link BatchMatch}
+ * which keeps the matches in arrays instead of creating a match per path.
+ * <p>
+ * The outcome of every lookup may be reported to a {@link MatchListener}, e.g. {@link MatchMetrics}
+ * to count the misses and the hits of each registered path, and measure the latency of a sample of
+ * the lookups.
+ *
+ * @param <T> the handler type
+ */
 public class PathMatcher<T> {
 
   private static final Logger log = LoggerFactory.getLogger(PathMatcher.class);
 
-  private static final String STRING_PATH_SEPARATOR = "/";
+  private static final char PATH_SEPARATOR = '/';
+
+  /** The number of sampled lookups the children are reordered by. */
+  private static final int ORDERING_SAMPLES = 1024;
+
+  /** The number of paths of a batch below which it is not split between fork-join tasks. */
+  private static final int BATCH_CHUNK = 1024;
+
+  /** The start time of lookups whose latency is not sampled. */
+  private static final long NOT_TIMED = Long.MIN_VALUE;
+
+  private final SlashMatching slashMatching;
+
+  /** The maximum number of cached paths; 0 if caching is disabled. */
+  private final int cacheSize;
+  private final LongAdder cacheHits = new LongAdder();
+  private final LongAdder cacheMisses = new LongAdder();
 
   private volatile T defaultHandler;
 
-  /** The root node in this path matcher. */
-  private final TreeNode<T> root;
+  /** The match returned when no path matched, shared between lookups. */
+  private volatile NodeMatch<T> defaultMatch = new NodeMatch<>("", null);
+
+  /** The root node in this path matcher. Published trees are never modified. */
+  private volatile TreeNode<T> root;
+
+  /** The index of the static paths of the published tree, only used if its tree is published. */
+  private volatile StaticIndex<T> index;
+
+  /** The cache of the published tree, only used if its tree is the published one. */
+  private volatile RouteCache<T> cache;
+
+  /** The sampler of lookups for adaptive ordering; {@code null} if it is disabled. */
+  private volatile LookupSampler sampler;
+
+  /** The templates of the named paths by name. Published maps are never modified. */
+  private volatile Map<String, RouteTemplate> routes = Collections.emptyMap();
+
+  /** The listener of lookups; {@code null} if there is none. */
+  private volatile MatchListener<? super T> listener;
+
+  /** The mask selecting the lookups whose latency is sampled; -1 if none is. */
+  private volatile int latencySampleMask = -1;
 
   public PathMatcher(final T defaultHandler) {
-    this();
-    this.defaultHandler = defaultHandler;
+    this(defaultHandler, SlashMatching.TOLERANT);
+  }
+
+  /**
+   * Creates a path matcher which compares slashes as given.
+   *
+   * @param defaultHandler The handler of paths which match no registered path
+   * @param slashMatching  How slashes are compared, {@link SlashMatching#TOLERANT} by default
+   */
+  public PathMatcher(final T defaultHandler, final SlashMatching slashMatching) {
+    this(defaultHandler, slashMatching, 0);
+  }
+
+  /**
+   * Creates a path matcher which compares slashes as given, and caches the matches of up to the
+   * given number of requests which only match a path without parameters after their slashes are
+   * normalized.
+   *
+   * @param defaultHandler The handler of paths which match no registered path
+   * @param slashMatching  How slashes are compared, {@link SlashMatching#TOLERANT} by default
+   * @param cacheSize      The maximum number of cached paths, 0 to disable caching
+   */
+  public PathMatcher(final T defaultHandler, final SlashMatching slashMatching, final int cacheSize) {
+    if (slashMatching == null) {
+      throw new NullPointerException("slashMatching cannot be null");
+    }
+    if (cacheSize < 0) {
+      throw new IllegalArgumentException("Cache size must not be negative: " + cacheSize);
+    }
+    this.slashMatching = slashMatching;
+    this.cacheSize = cacheSize;
+    this.root = new TreeNode<>();
+    this.index = new StaticIndex<>(root);
+    if (cacheSize > 0) {
+      this.cache = new RouteCache<>(root, cacheSize);
+    }
+    setDefaultHandler(defaultHandler);
   }
 
   /**
    * Default constructor.
    */
   public PathMatcher() {
-    root = new TreeNode<>();
+    this(null);
   }
 
   /**
@@ -34,43 +162,772 @@ public class PathMatcher<T> {
    * be
    */
   public NodeMatch<T> match(final String path) {
+    final TreeNode<T> root = this.root;
+    final MatchListener<? super T> listener = this.listener;
+    final long start = listener != null ? startTime() : NOT_TIMED;
+    final int hash = RouteCache.hash(path);
+
+    final StaticIndex<T> index = this.index;
+    if (index.tree == root) {
+      final NodeMatch<T> indexed = index.get(path, hash);
+      if (indexed != null) {
+        if (log.isDebugEnabled()) {
+          log.debug("Matched path: {}", path);
+        }
+        if (listener != null) {
+          onHit(listener, path, indexed.route, indexed.value, start);
+        }
+        return indexed;
+      }
+    }
 
-    NodeMatch<T> match = root.get(path);
+    final RouteCache<T> cache = cache(root);
+    if (cache != null) {
+      final NodeMatch<T> cached = cache.get(path, hash);
+      if (cached != null) {
+        cacheHits.increment();
+        if (listener != null) {
+          onHit(listener, path, cached.route, cached.value, start);
+        }
+        return cached;
+      }
+    }
+
+    sample(path);
+    NodeMatch<T> match = slashMatching == SlashMatching.TOLERANT ?
+      root.getTolerant(path, null) : root.get(path);
     if (match.getValue() != null) {
+      if (cache != null && match.getParameterCount() == 0) {
+        cacheMisses.increment();
+        match = new NodeMatch<>(match.getMatched(), match.route, match.getValue());
+        cache.put(path, hash, match);
+      }
       if (log.isDebugEnabled()) {
-        log.debug("Matched path: %s", path);
+        log.debug("Matched path: {}", path);
+      }
+      if (listener != null) {
+        onHit(listener, path, match.route, match.value, start);
       }
       return match;
+    }
+
+    if (log.isDebugEnabled()) {
+      log.debug("Matched default handler path: {}", path);
+    }
+    if (listener != null) {
+      onMiss(listener, match.trailingSlashRedirect, start);
+    }
+    return defaultMatch;
+  }
+
+  /**
+   * Matches a path against the registered handlers, filling in the given match instead of creating
+   * a new one. Matching this way does not allocate, except to add a path to the cache.
+   *
+   * @param path  The relative path to match
+   * @param match The match to fill in, its previous state is discarded
+   * @return The given match. If none matched its value will be the default handler
+   */
+  public MutableNodeMatch<T> match(final CharSequence path, final MutableNodeMatch<T> match) {
+    final TreeNode<T> root = this.root;
+    if (path == null) {
+      throw new NullPointerException("path cannot be null");
+    }
+    if (match == null) {
+      throw new NullPointerException("match cannot be null");
+    }
+
+    final MatchListener<? super T> listener = this.listener;
+    final long start = listener != null ? startTime() : NOT_TIMED;
+    final int hash = RouteCache.hash(path);
+
+    final StaticIndex<T> index = this.index;
+    if (index.tree == root) {
+      final NodeMatch<T> indexed = index.get(path, hash);
+      if (indexed != null) {
+        if (log.isDebugEnabled()) {
+          log.debug("Matched path: {}", path);
+        }
+        match.reset(path);
+        match.matched = indexed.matched;
+        match.route = indexed.route;
+        match.value = indexed.value;
+        if (listener != null) {
+          onHit(listener, path, indexed.route, indexed.value, start);
+        }
+        return match;
+      }
+    }
+
+    final RouteCache<T> cache = cache(root);
+    if (cache != null) {
+      final NodeMatch<T> cached = cache.get(path, hash);
+      if (cached != null) {
+        cacheHits.increment();
+        match.reset(path);
+        match.matched = cached.matched;
+        match.route = cached.route;
+        match.value = cached.value;
+        if (listener != null) {
+          onHit(listener, path, cached.route, cached.value, start);
+        }
+        return match;
+      }
+    }
+
+    sample(path);
+    if (slashMatching == SlashMatching.TOLERANT) {
+      root.getTolerant(path, match);
     } else {
+      root.get(path, match);
+    }
+    if (match.getValue() != null) {
+      if (cache != null && match.getParameterCount() == 0) {
+        cacheMisses.increment();
+        cache.put(path, hash, new NodeMatch<>(match.getMatched(), match.route, match.getValue()));
+      }
       if (log.isDebugEnabled()) {
-        log.debug("Attempting normalized path: %s", URLUtils.normalizeSlashes(path));
+        log.debug("Matched path: {}", path);
       }
-      match = root.get(URLUtils.normalizeSlashes(path));
-      if (match.getValue() != null) {
-        return match;
+      if (listener != null) {
+        onHit(listener, path, match.route, match.value, start);
       }
+      return match;
     }
 
     if (log.isDebugEnabled()) {
-      log.debug("Matched default handler path: %s", path);
+      log.debug("Matched default handler path: {}", path);
+    }
+    if (listener != null) {
+      onMiss(listener, match.trailingSlashRedirect, start);
+    }
+    match.reset(path);
+    match.matched = "";
+    match.value = defaultHandler;
+    return match;
+  }
+
+  /**
+   * Matches a batch of paths against the registered handlers, e.g. to classify the paths of an
+   * access log by handler, filling in the given batch instead of creating a match per path.
+   * <p>
+   * All paths are matched against the same version of the tree. The paths are sorted first, so
+   * that paths with a common prefix walk the same nodes one after the other, and a path equal to
+   * the one before it reuses its match instead of walking the tree again. The cache is neither
+   * read nor filled, and the lookups are not sampled for adaptive ordering.
+   *
+   * @param paths  The relative paths to match
+   * @param result The batch to fill in, its previous state is discarded
+   * @return The given batch. Paths which none matched have the default handler as value
+   */
+  public BatchMatch<T> match(final String[] paths, final BatchMatch<T> result) {
+    return match(paths, result, null);
+  }
+
+  /**
+   * Matches a batch of paths against the registered handlers, like
+   * {@link #match(String[], BatchMatch)}, but splits large batches into chunks of sorted paths
+   * which are matched by tasks of the given pool.
+   *
+   * @param paths  The relative paths to match
+   * @param result The batch to fill in, its previous state is discarded
+   * @param pool   The pool to match large batches in, or {@code null} to match in this thread
+   * @return The given batch. Paths which none matched have the default handler as value
+   */
+  public BatchMatch<T> match(final String[] paths, final BatchMatch<T> result, final ForkJoinPool pool) {
+    if (paths == null) {
+      throw new NullPointerException("paths cannot be null");
+    }
+    if (result == null) {
+      throw new NullPointerException("result cannot be null");
+    }
+
+    final BatchTask task = new BatchTask(root, index, defaultHandler, listener, result, 0, paths.length);
+    result.reset(paths, task.root.maxParams);
+    if (pool == null || paths.length <= BATCH_CHUNK) {
+      task.matchRange();
+    } else {
+      pool.invoke(task);
+    }
+    return result;
+  }
+
+  /**
+   * Matches a range of the sorted paths of a batch, splitting it in half while it is larger than
+   * {@value #BATCH_CHUNK} paths.
+   */
+  @SuppressWarnings("serial") // tasks are never serialized
+  private final class BatchTask extends RecursiveAction {
+
+    private final TreeNode<T> root;
+    private final StaticIndex<T> index;
+    private final T defaultHandler;
+    private final MatchListener<? super T> listener;
+    private final BatchMatch<T> result;
+    private final int from;
+    private final int to;
+
+    BatchTask(final TreeNode<T> root, final StaticIndex<T> index, final T defaultHandler,
+              final MatchListener<? super T> listener, final BatchMatch<T> result,
+              final int from, final int to) {
+      this.root = root;
+      this.index = index;
+      this.defaultHandler = defaultHandler;
+      this.listener = listener;
+      this.result = result;
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected void compute() {
+      if (to - from > BATCH_CHUNK) {
+        final int mid = (from + to) >>> 1;
+        invokeAll(new BatchTask(root, index, defaultHandler, listener, result, from, mid),
+          new BatchTask(root, index, defaultHandler, listener, result, mid, to));
+      } else {
+        matchRange();
+      }
+    }
+
+    void matchRange() {
+      final boolean indexed = index.tree == root;
+      final MutableNodeMatch<T> match = new MutableNodeMatch<>();
+      final String[] paths = result.paths;
+      final int[] order = result.order;
+      String previous = null;
+      int previousSlot = -1;
+      for (int i = from; i < to; i++) {
+        final int slot = order[i];
+        final String path = paths[slot];
+        if (path.equals(previous)) {
+          result.copy(previousSlot, slot);
+        } else {
+          NodeMatch<T> found = indexed ? index.get(path, RouteCache.hash(path)) : null;
+          if (found == null) {
+            found = slashMatching == SlashMatching.TOLERANT ?
+              root.getTolerant(path, match) : root.get(path, match);
+          }
+          if (found.value != null) {
+            result.set(slot, found);
+          } else {
+            result.setDefault(slot, defaultHandler, found.trailingSlashRedirect);
+          }
+          previous = path;
+          previousSlot = slot;
+        }
+
+        if (listener != null) {
+          if (result.isMatched(slot)) {
+            onHit(listener, path, result.getRoute(slot), result.getValue(slot), NOT_TIMED);
+          } else {
+            onMiss(listener, result.isTrailingSlashRedirect(slot), NOT_TIMED);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns the cache of the given tree, or {@code null} if caching is disabled or the cache of
+   * the tree is not published yet.
+   */
+  private RouteCache<T> cache(final TreeNode<T> root) {
+    final RouteCache<T> cache = this.cache;
+    return cache != null && cache.tree == root ? cache : null;
+  }
+
+  /**
+   * Returns the start time of a lookup if its latency is sampled, or {@link #NOT_TIMED}.
+   */
+  private long startTime() {
+    final int mask = latencySampleMask;
+    return mask >= 0 && (ThreadLocalRandom.current().nextInt() & mask) == 0 ? System.nanoTime() : NOT_TIMED;
+  }
+
+  private void onHit(final MatchListener<? super T> listener, final CharSequence path,
+                     final String route, final T value, final long start) {
+    listener.onHit(route, value);
+    if (slashMatching == SlashMatching.TOLERANT && isDenormalized(path)) {
+      listener.onNormalized();
+    }
+    if (start != NOT_TIMED) {
+      listener.onLatency(System.nanoTime() - start);
+    }
+  }
+
+  private void onMiss(final MatchListener<? super T> listener, final boolean trailingSlashRedirect,
+                      final long start) {
+    if (trailingSlashRedirect) {
+      listener.onTrailingSlashRedirect();
+    }
+    listener.onMiss(defaultHandler != null);
+    if (start != NOT_TIMED) {
+      listener.onLatency(System.nanoTime() - start);
+    }
+  }
+
+  /**
+   * Returns whether the given path lacks its leading slash or has a run of slashes before its
+   * trailing slashes, i.e. whether a tolerant lookup normalizes it.
+   */
+  private static boolean isDenormalized(final CharSequence path) {
+    if (path.length() == 0 || path.charAt(0) != PATH_SEPARATOR) {
+      return true;
+    }
+    int end = path.length();
+    while (end > 0 && path.charAt(end - 1) == PATH_SEPARATOR) {
+      end--;
+    }
+    for (int i = 1; i < end; i++) {
+      if (path.charAt(i) == PATH_SEPARATOR && path.charAt(i - 1) == PATH_SEPARATOR) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Records the given path if adaptive ordering is enabled and the lookup is sampled, and reorders
+   * the tree in the background once enough lookups were sampled.
+   */
+  private void sample(final CharSequence path) {
+    final LookupSampler sampler = this.sampler;
+    if (sampler != null && sampler.record(path)) {
+      ForkJoinPool.commonPool().execute(this::reorderChildren);
     }
-    return new NodeMatch<>("", defaultHandler);
   }
 
-  public synchronized PathMatcher addPath(final String path, final T handler) {
+  /**
+   * Publishes a new version of the tree, made by the given edit, with an updated index and an empty
+   * cache.
+   */
+  private void publish(final TreeNode<T> newRoot, final TreeEdit edit, final Collection<String> removed) {
+    final StaticIndex<T> newIndex = index.update(newRoot, edit, removed);
+    edit.release(newRoot);
+    root = newRoot;
+    index = newIndex;
+    if (cacheSize > 0) {
+      cache = new RouteCache<>(newRoot, cacheSize);
+    }
+  }
+
+  /**
+   * Enables adaptive ordering of the children of the tree nodes, or disables it. When enabled, about
+   * one in {@code sampleRate} lookups which walk the tree is recorded, and whenever another
+   * {@value #ORDERING_SAMPLES} lookups were recorded, the children are reordered by how often the
+   * recorded lookups walked through them, by a task of the common fork-join pool. Lookups never wait
+   * for the reordering. Registering paths orders the children of the changed nodes by priority again
+   * until the next reordering.
+   *
+   * @param sampleRate The sample rate, a power of two, or 0 to disable adaptive ordering
+   * @see #reorderChildren()
+   */
+  public synchronized void setAdaptiveOrdering(final int sampleRate) {
+    if (sampleRate < 0) {
+      throw new IllegalArgumentException("Sample rate must not be negative: " + sampleRate);
+    }
+    sampler = sampleRate > 0 ? new LookupSampler(sampleRate, ORDERING_SAMPLES) : null;
+  }
+
+  /**
+   * Reorders the children of the tree nodes by how often the most recently sampled lookups walked
+   * through them, most often first, and publishes the reordered tree. This is done automatically
+   * with adaptive ordering, but may also be called, e.g. on a schedule.
+   *
+   * @return Whether any node was reordered, false if adaptive ordering is disabled
+   * @see #setAdaptiveOrdering(int)
+   */
+  public synchronized boolean reorderChildren() {
+    final LookupSampler sampler = this.sampler;
+    if (sampler == null) {
+      return false;
+    }
+
+    final Map<TreeNode<T>, int[]> hits = new IdentityHashMap<>();
+    for (String path : sampler.samples()) {
+      if (path != null) {
+        root.countHits(path, hits);
+      }
+    }
+
+    final TreeEdit edit = new TreeEdit();
+    final TreeNode<T> newRoot = root.reorder(hits, edit);
+    if (newRoot == root) {
+      return false;
+    }
+    publish(newRoot, edit, null);
+    return true;
+  }
+
+  /**
+   * Sets the listener which receives the outcome of every lookup, or removes it. The latency of
+   * lookups is not measured.
+   *
+   * @param listener The listener, or {@code null} to remove it
+   * @see #setMatchListener(MatchListener, int)
+   */
+  public void setMatchListener(final MatchListener<? super T> listener) {
+    setMatchListener(listener, 0);
+  }
+
+  /**
+   * Sets the listener which receives the outcome of every lookup, or removes it, and measures the
+   * latency of about one in {@code latencySampleRate} lookups. Without a listener, lookups do not
+   * check anything but whether there is one; with one, lookups which are not sampled do not read
+   * the clock.
+   *
+   * @param listener          The listener, or {@code null} to remove it
+   * @param latencySampleRate The sample rate, a power of two, or 0 to not measure latency
+   * @see MatchMetrics
+   */
+  public synchronized void setMatchListener(final MatchListener<? super T> listener,
+                                            final int latencySampleRate) {
+    if (latencySampleRate < 0 || Integer.bitCount(latencySampleRate) > 1) {
+      throw new IllegalArgumentException("Sample rate must be a power of two or 0: " + latencySampleRate);
+    }
+    latencySampleMask = latencySampleRate - 1;
+    this.listener = listener;
+  }
+
+  /**
+   * Returns the number of lookups answered from the cache, since this path matcher was created.
+   *
+   * @return The number of cache hits, 0 if caching is disabled
+   */
+  public long getCacheHitCount() {
+    return cacheHits.sum();
+  }
+
+  /**
+   * Returns the number of lookups which could have been answered from the cache but were not,
+   * since this path matcher was created: lookups which walked the tree to a path without
+   * parameters, and whose match was then cached. Requests for a registered path without parameters
+   * are answered by the index, and lookups of paths with parameters or of unknown paths are never
+   * cached, so neither is counted.
+   *
+   * @return The number of cache misses, 0 if caching is disabled
+   */
+  public long getCacheMissCount() {
+    return cacheMisses.sum();
+  }
+
+  /**
+   * Makes a case-insensitive lookup of the given path and returns the registered path it matches,
+   * e.g. to redirect {@code /Users/42/} to {@code /users/42} with "301 Moved Permanently".
+   *
+   * @param path             The path to look up
+   * @param fixTrailingSlash Whether a missing or extra trailing slash is added or removed
+   * @return The corrected path, or null if there is none
+   * @see TreeNode#findCaseInsensitivePath(CharSequence, boolean)
+   */
+  public String findCaseInsensitivePath(final CharSequence path, final boolean fixTrailingSlash) {
+    return root.findCaseInsensitivePath(path, fixTrailingSlash);
+  }
+
+  /**
+   * Tests if the given path normalizes to the root path, i.e. if it consists of slashes only.
+   */
+  private static boolean isRootPath(final String path) {
+    for (int i = 0; i < path.length(); i++) {
+      if (path.charAt(i) != PATH_SEPARATOR) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void setDefaultHandler(final T defaultHandler) {
+    this.defaultHandler = defaultHandler;
+    this.defaultMatch = new NodeMatch<>("", defaultHandler);
+  }
+
+  public synchronized PathMatcher<T> addPath(final String path, final T handler) {
     if (path.isEmpty()) {
       throw new IllegalArgumentException("Path must be specified");
     }
 
-    final String normalizedPath = URLUtils.normalizeSlashes(path);
-
-    if (PathMatcher.STRING_PATH_SEPARATOR.equals(normalizedPath)) {
-      this.defaultHandler = handler;
+    if (isRootPath(path)) {
+      setDefaultHandler(handler);
       return this;
     }
 
-    root.add(path, handler);
+    final TreeEdit edit = new TreeEdit();
+    final TreeNode<T> newRoot = edit.writable(root);
+    newRoot.add(path, handler, edit);
+    publish(newRoot, edit, null);
+
+    return this;
+  }
+
+  /**
+   * Registers the handler for a path under the given name, so the paths it matches can be built
+   * with {@link #buildPath(String, Map)}.
+   *
+   * @param name    The name of the path, unique within this path matcher
+   * @param path    The path
+   * @param handler The handler
+   * @return This path matcher
+   * @throws IllegalArgumentException if a path is already registered with the name, or the path
+   *                                  conflicts with a registered path
+   */
+  public synchronized PathMatcher<T> addPath(final String name, final String path, final T handler) {
+    if (name == null) {
+      throw new NullPointerException("name cannot be null");
+    }
+    if (routes.containsKey(name)) {
+      throw new IllegalArgumentException("A path is already registered with name '" + name + "'");
+    }
+    final RouteTemplate template = RouteTemplate.compile(path);
+
+    addPath(path, handler);
 
+    final Map<String, RouteTemplate> newRoutes = new HashMap<>(routes);
+    newRoutes.put(name, template);
+    routes = newRoutes;
     return this;
   }
+
+  /**
+   * Returns the template of the path registered with the given name.
+   *
+   * @param name The name of the path
+   * @return The template, or null if no path is registered with the name
+   */
+  public RouteTemplate getRoute(final String name) {
+    return routes.get(name);
+  }
+
+  /**
+   * Builds a path matched by the path registered with the given name.
+   *
+   * @param name   The name of the path
+   * @param params The parameter values by name
+   * @return The path
+   * @throws IllegalArgumentException if no path is registered with the name, or there is no value
+   *                                  for one of its parameters
+   * @see RouteTemplate#build(Map)
+   */
+  public String buildPath(final String name, final Map<String, ?> params) {
+    return route(name).build(params);
+  }
+
+  /**
+   * Builds a path matched by the path registered with the given name, with the parameter values
+   * given in order of appearance in the path.
+   *
+   * @param name   The name of the path
+   * @param params The parameter values
+   * @return The path
+   * @throws IllegalArgumentException if no path is registered with the name, or the values do not
+   *                                  match its parameters
+   * @see RouteTemplate#build(Object...)
+   */
+  public String buildPath(final String name, final Object... params) {
+    return route(name).build(params);
+  }
+
+  private RouteTemplate route(final String name) {
+    final RouteTemplate template = routes.get(name);
+    if (template == null) {
+      throw new IllegalArgumentException("No path is registered with name '" + name + "'");
+    }
+    return template;
+  }
+
+  /**
+   * Registers the handlers for all the given paths at once. This is faster than registering them
+   * one by one, as each node of the tree is copied at most once instead of once per path. Either
+   * all paths are registered, or none if one of them fails.
+   *
+   * @param handlers The handlers by path
+   * @return This path matcher
+   * @see TreeNode#addAll(Map)
+   */
+  public synchronized PathMatcher<T> addAll(final Map<String, ? extends T> handlers) {
+    Map<String, ? extends T> paths = handlers;
+    T newDefaultHandler = null;
+    for (Map.Entry<String, ? extends T> entry : handlers.entrySet()) {
+      final String path = entry.getKey();
+      if (path.isEmpty()) {
+        throw new IllegalArgumentException("Path must be specified");
+      }
+      if (isRootPath(path)) {
+        newDefaultHandler = entry.getValue();
+        if (paths == handlers) {
+          paths = new HashMap<>(handlers);
+        }
+        paths.remove(path);
+      }
+    }
+
+    final TreeEdit edit = new TreeEdit();
+    final TreeNode<T> newRoot = edit.writable(root);
+    newRoot.addAll(paths, edit);
+    publish(newRoot, edit, null);
+
+    if (newDefaultHandler != null) {
+      setDefaultHandler(newDefaultHandler);
+    }
+    return this;
+  }
+
+  /**
+   * Makes the registered paths the given ones, by adding, replacing and removing only the paths
+   * which differ, e.g. to apply a route set pushed by a control plane.
+   * <p>
+   * The registered paths are compared with the given ones, and all the differences are applied to
+   * a single new version of the tree, which is published at once, so lookups see either all or none
+   * of them. The new version shares every subtree without a difference with the previous one, so
+   * its cost is proportional to the number of differences. Only if a path is to be removed are all
+   * the registered paths visited, to find the ones which are not given. If a path conflicts with
+   * another one, nothing is changed.
+   * <p>
+   * A handler is replaced if it is not {@link Object#equals(Object) equal} to the registered one.
+   * The names of the removed paths are removed. The default handler is only replaced if the root
+   * path is given.
+   *
+   * @param handlers The handlers by path
+   * @return The number of paths added, replaced or removed
+   * @throws IllegalArgumentException if a path conflicts with another one
+   */
+  public synchronized int setPaths(final Map<String, ? extends T> handlers) {
+    final TreeNode<T> root = this.root;
+
+    boolean hasDefaultHandler = false;
+    T newDefaultHandler = null;
+    final Map<String, T> added = new HashMap<>();
+    final Map<String, T> replaced = new HashMap<>();
+    int registered = 0;
+    for (Map.Entry<String, ? extends T> entry : handlers.entrySet()) {
+      final String path = entry.getKey();
+      final T handler = entry.getValue();
+      if (path.isEmpty()) {
+        throw new IllegalArgumentException("Path must be specified");
+      }
+      if (isRootPath(path)) {
+        hasDefaultHandler = true;
+        newDefaultHandler = handler;
+        continue;
+      }
+      if (handler == null) {
+        throw new NullPointerException("handler cannot be null");
+      }
+
+      final TreeNode<T> node = root.findNode(path, null);
+      if (node == null || node.value == null) {
+        added.put(path, handler);
+      } else {
+        registered++;
+        if (!node.value.equals(handler)) {
+          replaced.put(path, handler);
+        }
+      }
+    }
+
+    // the root priority is the number of registered paths
+    final List<String> removed = new ArrayList<>();
+    if (registered < root.priority) {
+      root.forEachPath((path, handler) -> {
+        if (!handlers.containsKey(path)) {
+          removed.add(path);
+        }
+      });
+    }
+
+    if (!added.isEmpty() || !replaced.isEmpty() || !removed.isEmpty()) {
+      final TreeEdit edit = new TreeEdit();
+      final TreeNode<T> newRoot = edit.writable(root);
+      for (String path : removed) {
+        newRoot.remove(path, edit);
+      }
+      for (Map.Entry<String, T> entry : replaced.entrySet()) {
+        newRoot.replace(entry.getKey(), entry.getValue(), edit);
+      }
+      if (!added.isEmpty()) {
+        newRoot.addAll(added, edit);
+      }
+      publish(newRoot, edit, removed);
+      removeNames(removed);
+    }
+
+    if (hasDefaultHandler) {
+      setDefaultHandler(newDefaultHandler);
+    }
+    return added.size() + replaced.size() + removed.size();
+  }
+
+  /**
+   * Replaces the handler registered for a path.
+   *
+   * @param path    The path, as passed to {@link #addPath(String, Object)}
+   * @param handler The new handler
+   * @return The previous handler, or null if no handler is registered for the path, in which case
+   * nothing is replaced
+   */
+  public synchronized T replacePath(final String path, final T handler) {
+    if (path.isEmpty()) {
+      throw new IllegalArgumentException("Path must be specified");
+    }
+
+    if (isRootPath(path)) {
+      final T previous = defaultHandler;
+      setDefaultHandler(handler);
+      return previous;
+    }
+
+    final TreeEdit edit = new TreeEdit();
+    final TreeNode<T> newRoot = edit.writable(root);
+    final T previous = newRoot.replace(path, handler, edit);
+    if (previous != null) {
+      publish(newRoot, edit, null);
+    }
+    return previous;
+  }
+
+  /**
+   * Removes the handler registered for a path, and the names it is registered with.
+   *
+   * @param path The path, as passed to {@link #addPath(String, Object)}
+   * @return The removed handler, or null if no handler is registered for the path
+   */
+  public synchronized T removePath(final String path) {
+    if (path.isEmpty()) {
+      throw new IllegalArgumentException("Path must be specified");
+    }
+
+    if (isRootPath(path)) {
+      final T previous = defaultHandler;
+      setDefaultHandler(null);
+      removeNames(Collections.singleton(path));
+      return previous;
+    }
+
+    final TreeEdit edit = new TreeEdit();
+    final TreeNode<T> newRoot = edit.writable(root);
+    final T previous = newRoot.remove(path, edit);
+    if (previous != null) {
+      publish(newRoot, edit, Collections.singleton(path));
+      removeNames(Collections.singleton(path));
+    }
+    return previous;
+  }
+
+  /**
+   * Removes the names the given paths are registered with.
+   */
+  private void removeNames(final Collection<String> paths) {
+    Map<String, RouteTemplate> newRoutes = null;
+    for (Map.Entry<String, RouteTemplate> entry : routes.entrySet()) {
+      if (paths.contains(entry.getValue().getPath())) {
+        if (newRoutes == null) {
+          newRoutes = new HashMap<>(routes);
+        }
+        newRoutes.remove(entry.getKey());
+      }
+    }
+    if (newRoutes != null) {
+      routes = newRoutes;
+    }
+  }
 }
@@ -0,0 +1,136 @@
+package com.zbiljic.switchz;
+
+/**
+ * A bounded cache of the matches of paths without parameters, in front of one version of a tree.
+ * <p>
+ * Registered paths without parameters are answered by the {@link StaticIndex} before the cache is
+ * looked up, so the cache only holds requests which match such a path after their slashes are
+ * normalized, e.g. {@code /users/} for {@code /users}.
+ * <p>
+ * The cache is an open-addressing table: a path is kept in one of a few slots following the slot
+ * of its hash, so a cached path is found with a single probe of adjacent slots. When all of these
+ * slots are taken, one of them is evicted by the CLOCK algorithm: every lookup of an entry marks it
+ * as referenced, and the eviction skips (and unmarks) referenced entries, so the paths which are
+ * looked up often stay in the cache.
+ * <p>
+ * Entries are immutable apart from the reference mark, and are published to the table without
+ * locking. Concurrent lookups may lose each other's insertions or marks, which only costs a later
+ * miss. A cache is never invalidated; a new cache is created for each new version of the tree.
+ *
+ * @param <T> the value type
+ */
+final class RouteCache<T> {
+
+  /** The number of slots a path may be kept in. */
+  private static final int PROBES = 4;
+
+  private static final class Entry<T> {
+
+    final int hash;
+    final String path;
+    final NodeMatch<T> match;
+    /** Whether the entry was looked up since the eviction last passed it. */
+    boolean referenced;
+
+    Entry(int hash, String path, NodeMatch<T> match) {
+      this.hash = hash;
+      this.path = path;
+      this.match = match;
+    }
+  }
+
+  /** The tree whose matches are cached. */
+  final TreeNode<T> tree;
+
+  private final Entry<T>[] table;
+  private final int mask;
+
+  /**
+   * Creates a cache for the given tree, with room for at least the given number of paths.
+   */
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  RouteCache(TreeNode<T> tree, int capacity) {
+    int size = PROBES;
+    while (size < capacity) {
+      size <<= 1;
+    }
+    this.tree = tree;
+    this.table = new Entry[size];
+    this.mask = size - 1;
+  }
+
+  /**
+   * Returns the same hash code as {@link String#hashCode()} for the given chars.
+   */
+  static int hash(CharSequence path) {
+    if (path instanceof String) {
+      return path.hashCode();
+    }
+    int h = 0;
+    for (int i = 0; i < path.length(); i++) {
+      h = 31 * h + path.charAt(i);
+    }
+    return h;
+  }
+
+  /**
+   * Returns the cached match of the given path, or {@code null} if it is not cached.
+   *
+   * @param path the path
+   * @param hash the hash of the path, see {@link #hash(CharSequence)}
+   */
+  NodeMatch<T> get(CharSequence path, int hash) {
+    final Entry<T>[] table = this.table;
+    final int start = spread(hash);
+    for (int i = 0; i < PROBES; i++) {
+      final Entry<T> entry = table[(start + i) & mask];
+      if (entry == null) {
+        return null;
+      }
+      if (entry.hash == hash && contentEquals(entry.path, path)) {
+        if (!entry.referenced) {
+          entry.referenced = true;
+        }
+        return entry.match;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Caches the match of the given path, evicting another path if there is no room.
+   *
+   * @param path  the path
+   * @param hash  the hash of the path, see {@link #hash(CharSequence)}
+   * @param match the match of the path, which must not have parameters
+   */
+  void put(CharSequence path, int hash, NodeMatch<T> match) {
+    final Entry<T>[] table = this.table;
+    final int start = spread(hash);
+    final Entry<T> entry = new Entry<>(hash, path.toString(), match);
+
+    // CLOCK: the first slot which is free or not referenced, unmarking the referenced ones
+    int victim = start & mask;
+    for (int i = 0; i < PROBES; i++) {
+      final int slot = (start + i) & mask;
+      final Entry<T> current = table[slot];
+      if (current == null || !current.referenced) {
+        victim = slot;
+        break;
+      }
+      current.referenced = false;
+    }
+    table[victim] = entry;
+  }
+
+  private static int spread(int hash) {
+    return hash ^ (hash >>> 16);
+  }
+
+  private static boolean contentEquals(String s, CharSequence cs) {
+    if (cs instanceof String) {
+      return s.equals(cs);
+    }
+    return s.length() == cs.length() && TreeNodeUtil.regionMatches(cs, 0, s, s.length());
+  }
+}
@@ -0,0 +1,214 @@
+package com.zbiljic.switchz;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * A registered path compiled for building the paths it matches, e.g. {@code /users/42/files/a.txt}
+ * from {@code /users/:id/files/*filepath} with {@code id=42} and {@code filepath=/a.txt}.
+ * <p>
+ * The path is split into literals and parameters once, when the template is compiled. Building a
+ * path only appends the literals and the parameter values to a builder of the exact size of the
+ * result, without scanning the path again.
+ * <p>
+ * The value of a catch-all parameter replaces the slash before it as well, the same way a match
+ * captures it, so {@code /files/*filepath} with {@code filepath=/a/b.txt} builds
+ * {@code /files/a/b.txt}. Values are inserted as given: they are neither encoded nor checked
+ * against the constraints of their parameters.
+ * <p>
+ * Templates are immutable and thread-safe.
+ */
+public final class RouteTemplate {
+
+  /** The path the template was compiled from. */
+  private final String path;
+
+  /** The literal before each parameter, and the literal after the last one. */
+  private final String[] literals;
+
+  /** The names of the parameters, in order of appearance. */
+  private final String[] names;
+
+  /** The total length of the literals. */
+  private final int literalLength;
+
+  private RouteTemplate(String path, String[] literals, String[] names) {
+    this.path = path;
+    this.literals = literals;
+    this.names = names;
+    int length = 0;
+    for (String literal : literals) {
+      length += literal.length();
+    }
+    this.literalLength = length;
+  }
+
+  /**
+   * Compiles the given path, as passed to {@link PathMatcher#addPath(String, Object)}.
+   *
+   * @param path the path
+   * @return the template of the path
+   * @throws IllegalArgumentException if a parameter has no name, or a catch-all is not at the end
+   *                                  of the path
+   */
+  public static RouteTemplate compile(final String path) {
+    if (path == null) {
+      throw new NullPointerException("path cannot be null");
+    }
+
+    final int count = TreeNodeUtil.countParams(path);
+    final String[] literals = new String[count + 1];
+    final String[] names = new String[count];
+
+    int param = 0;
+    int literalStart = 0;
+    for (int i = 0; i < path.length(); i++) {
+      final char c = path.charAt(i);
+      if (c != ':' && c != '*') {
+        continue;
+      }
+
+      // the wildcard ends at the next slash
+      int end = i + 1;
+      while (end < path.length() && path.charAt(end) != '/') {
+        end++;
+      }
+
+      if (c == ':') {
+        final int constraint = path.indexOf('<', i);
+        final int nameEnd = constraint >= 0 && constraint < end ? constraint : end;
+        literals[param] = path.substring(literalStart, i);
+        names[param] = path.substring(i + 1, nameEnd);
+      } else {
+        if (end != path.length()) {
+          throw new IllegalArgumentException("catch-all routes are only allowed at the end of the path in path '" +
+            path + "'");
+        }
+        // the value of the catch-all starts with the slash before it
+        literals[param] = path.substring(literalStart, i > 0 && path.charAt(i - 1) == '/' ? i - 1 : i);
+        names[param] = path.substring(i + 1, end);
+      }
+      if (names[param].isEmpty()) {
+        throw new IllegalArgumentException("wildcards must be named with a non-empty name in path '" + path + "'");
+      }
+
+      param++;
+      literalStart = end;
+      i = end - 1;
+    }
+    literals[param] = path.substring(literalStart);
+
+    return new RouteTemplate(path, literals, names);
+  }
+
+  /**
+   * Returns the path this template was compiled from.
+   *
+   * @return the path
+   */
+  public String getPath() {
+    return path;
+  }
+
+  /**
+   * Returns the number of parameters of the path.
+   *
+   * @return the number of parameters
+   */
+  public int getParameterCount() {
+    return names.length;
+  }
+
+  /**
+   * Returns the name of the parameter at the given position.
+   *
+   * @param i the position of the parameter, in order of appearance in the path
+   * @return the name of the parameter
+   */
+  public String getParameterName(final int i) {
+    return names[i];
+  }
+
+  /**
+   * Builds the path with the given parameter values. Values are converted to strings with
+   * {@link String#valueOf(Object)}; parameters which are not in the path are ignored.
+   *
+   * @param params the values by parameter name
+   * @return the path
+   * @throws IllegalArgumentException if there is no value for a parameter of the path
+   */
+  public String build(final Map<String, ?> params) {
+    if (names.length == 0) {
+      return literals[0];
+    }
+    if (params == null) {
+      throw new NullPointerException("params cannot be null");
+    }
+
+    final String[] values = new String[names.length];
+    int length = literalLength;
+    for (int i = 0; i < names.length; i++) {
+      final Object value = params.get(names[i]);
+      if (value == null) {
+        throw missingValue(i);
+      }
+      values[i] = String.valueOf(value);
+      length += values[i].length();
+    }
+    return build(values, length);
+  }
+
+  /**
+   * Builds the path with the given parameter values, in order of appearance of the parameters in
+   * the path. Values are converted to strings with {@link String#valueOf(Object)}.
+   *
+   * @param params the values of the parameters
+   * @return the path
+   * @throws IllegalArgumentException if the number of values differs from the number of parameters
+   *                                  of the path, or a value is {@code null}
+   */
+  public String build(final Object... params) {
+    if (params.length != names.length) {
+      throw new IllegalArgumentException("Expected " + names.length + " parameter values for path '" + path +
+        "', got " + params.length);
+    }
+    if (names.length == 0) {
+      return literals[0];
+    }
+
+    final String[] values = new String[names.length];
+    int length = literalLength;
+    for (int i = 0; i < names.length; i++) {
+      if (params[i] == null) {
+        throw missingValue(i);
+      }
+      values[i] = String.valueOf(params[i]);
+      length += values[i].length();
+    }
+    return build(values, length);
+  }
+
+  /**
+   * Joins the literals and the given values into a path of the given length.
+   */
+  private String build(final String[] values, final int length) {
+    final StringBuilder sb = new StringBuilder(length);
+    for (int i = 0; i < values.length; i++) {
+      sb.append(literals[i]).append(values[i]);
+    }
+    return sb.append(literals[values.length]).toString();
+  }
+
+  private IllegalArgumentException missingValue(final int i) {
+    return new IllegalArgumentException("Missing value for parameter '" + names[i] + "' of path '" + path + "'");
+  }
+
+  @Override
+  public String toString() {
+    return "RouteTemplate{" +
+      "path='" + path + '\'' +
+      ", literals=" + Arrays.toString(literals) +
+      ", names=" + Arrays.toString(names) +
+      '}';
+  }
+}
@@ -0,0 +1,22 @@
+package com.zbiljic.switchz;
+
+/**
+ * How the slashes of a path are compared with the slashes of the registered paths.
+ *
+ * @see PathMatcher#PathMatcher(Object, SlashMatching)
+ */
+public enum SlashMatching {
+
+  /**
+   * Slashes must match exactly.
+   */
+  STRICT,
+
+  /**
+   * A missing leading slash, runs of slashes in place of a single one, and a missing or extra
+   * trailing slash are tolerated, e.g. {@code users//42/} matches {@code /users/:id}. A path which
+   * matches exactly is always matched the same as with {@link #STRICT}. The tolerance is part of the
+   * tree walk, so a path is walked once whether it matches or not.
+   */
+  TOLERANT
+}
@@ -0,0 +1,314 @@
+package com.zbiljic.switchz;
+
+import java.util.Collection;
+
+/**
+ * An index of the paths without parameters of one version of a tree, i.e. of the paths which are
+ * only matched by a request path equal to them.
+ * <p>
+ * The index is a hash table of the paths and their matches, so such a path is found with a single
+ * probe instead of a walk of the tree. Since a path matched exactly by a static route is matched by
+ * that route in the tree as well, the index gives the same result as the tree; anything the index
+ * does not have is left to the tree.
+ * <p>
+ * Indexes are immutable. A new version of the tree only differs from the previous one in the nodes
+ * owned by the edit which made it, so the index of the new version is derived from the previous
+ * index and these nodes. The table is split into small open-addressing segments, and the new index
+ * shares every segment without a changed path with the previous one.
+ *
+ * @param <T> the value type
+ */
+final class StaticIndex<T> {
+
+  /** The average number of paths per segment above which the number of segments is doubled. */
+  private static final int SEGMENT_SIZE = 8;
+
+  /** The tree the index is of. */
+  final TreeNode<T> tree;
+
+  private final Segment<T>[] segments;
+  private final int segmentShift;
+  private final int size;
+
+  /**
+   * Creates an empty index of the given empty tree.
+   */
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  StaticIndex(TreeNode<T> tree) {
+    this(tree, new Segment[]{Segment.EMPTY}, 0);
+  }
+
+  private StaticIndex(TreeNode<T> tree, Segment<T>[] segments, int size) {
+    this.tree = tree;
+    this.segments = segments;
+    this.segmentShift = Integer.numberOfTrailingZeros(segments.length);
+    this.size = size;
+  }
+
+  /**
+   * Returns the number of indexed paths.
+   */
+  int size() {
+    return size;
+  }
+
+  /**
+   * Returns the match of the given static path, shared between lookups, or {@code null} if the
+   * path is not indexed.
+   *
+   * @param path the request path
+   * @param hash the hash of the path, see {@link RouteCache#hash(CharSequence)}
+   */
+  NodeMatch<T> get(CharSequence path, int hash) {
+    final int h = spread(hash);
+    return segments[h & (segments.length - 1)].get(path, hash, h >>> segmentShift);
+  }
+
+  /**
+   * Returns the index of a new version of the tree, made by the given edit from the version of
+   * this index.
+   *
+   * @param newTree the new version of the tree
+   * @param edit    the edit which made the new version
+   * @param removed the paths which were removed by the edit, or {@code null}
+   * @return the index of the new version
+   */
+  StaticIndex<T> update(TreeNode<T> newTree, TreeEdit edit, Collection<String> removed) {
+    final Updater<T> updater = new Updater<>(segments, segmentShift, size);
+    if (removed != null) {
+      for (String path : removed) {
+        updater.remove(path);
+      }
+    }
+
+    // the copied and new nodes replace the nodes of the previous version, the other nodes are
+    // still part of the new version, unchanged; the ancestors of an owned node are owned as well
+    updater.addOwned(newTree, edit, new StringBuilder());
+    return updater.build(newTree);
+  }
+
+  private static int spread(int hash) {
+    return hash ^ (hash >>> 16);
+  }
+
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  private static <T> NodeMatch<T>[] newMatches(int length) {
+    return new NodeMatch[length];
+  }
+
+  /**
+   * Puts a path into a free slot of the given open-addressing table.
+   */
+  private static <T> void insert(String[] paths, NodeMatch<T>[] matches, String path,
+                                 NodeMatch<T> match, int h) {
+    final int mask = paths.length - 1;
+    int i = h & mask;
+    while (paths[i] != null) {
+      i = (i + 1) & mask;
+    }
+    paths[i] = path;
+    matches[i] = match;
+  }
+
+  /**
+   * An immutable open-addressing table, at most half full.
+   */
+  private static final class Segment<T> {
+
+    @SuppressWarnings("rawtypes")
+    static final Segment EMPTY = new Segment<>(new String[2], newMatches(2), 0);
+
+    final String[] paths;
+    final NodeMatch<T>[] matches;
+    final int size;
+
+    Segment(String[] paths, NodeMatch<T>[] matches, int size) {
+      this.paths = paths;
+      this.matches = matches;
+      this.size = size;
+    }
+
+    NodeMatch<T> get(CharSequence path, int hash, int h) {
+      final String[] paths = this.paths;
+      final int mask = paths.length - 1;
+      for (int i = h & mask; ; i = (i + 1) & mask) {
+        final String indexed = paths[i];
+        if (indexed == null) {
+          return null;
+        }
+        if (indexed.hashCode() == hash && contentEquals(indexed, path)) {
+          return matches[i];
+        }
+      }
+    }
+
+    /**
+     * Returns the slot of the given path, or the free slot it would be put in.
+     */
+    int find(String path, int h) {
+      final int mask = paths.length - 1;
+      for (int i = h & mask; ; i = (i + 1) & mask) {
+        if (paths[i] == null || paths[i].equals(path)) {
+          return i;
+        }
+      }
+    }
+
+    private static boolean contentEquals(String s, CharSequence cs) {
+      if (cs instanceof String) {
+        return s.equals(cs);
+      }
+      return s.length() == cs.length() && TreeNodeUtil.regionMatches(cs, 0, s, s.length());
+    }
+  }
+
+  /**
+   * Applies the changes of an edit to a copy of the segment array, copying each changed segment
+   * once. The array and the segments are only copied on the first change, so re-adding a path
+   * with an unchanged match copies nothing.
+   */
+  private static final class Updater<T> {
+
+    private Segment<T>[] segments;
+    private final int segmentShift;
+    private int size;
+    /** Whether each segment is a copy made by this updater, which no index shares yet. */
+    private boolean[] copied;
+
+    Updater(Segment<T>[] segments, int segmentShift, int size) {
+      this.segments = segments;
+      this.segmentShift = segmentShift;
+      this.size = size;
+    }
+
+    private void copySegments() {
+      if (copied == null) {
+        segments = segments.clone();
+        copied = new boolean[segments.length];
+      }
+    }
+
+    void put(String path, NodeMatch<T> match) {
+      final int h = spread(path.hashCode());
+      final int s = h & (segments.length - 1);
+      final Segment<T> segment = segments[s];
+      final int slot = segment.find(path, h >>> segmentShift);
+      final boolean added = segment.paths[slot] == null;
+      if (!added) {
+        final NodeMatch<T> indexed = segment.matches[slot];
+        if (indexed.value == match.value && indexed.matched.equals(match.matched)) {
+          return;
+        }
+      }
+
+      copySegments();
+      final String[] paths;
+      final NodeMatch<T>[] matches;
+      if (added && (segment.size + 1) * 2 > segment.paths.length) {
+        // grow the segment
+        paths = new String[segment.paths.length * 2];
+        matches = newMatches(paths.length);
+        rehash(segment, paths, matches, segmentShift);
+        insert(paths, matches, path, match, h >>> segmentShift);
+      } else {
+        paths = copied[s] ? segment.paths : segment.paths.clone();
+        matches = copied[s] ? segment.matches : segment.matches.clone();
+        paths[slot] = path;
+        matches[slot] = match;
+      }
+      segments[s] = new Segment<>(paths, matches, added ? segment.size + 1 : segment.size);
+      copied[s] = true;
+
+      if (added) {
+        size++;
+      }
+    }
+
+    void remove(String path) {
+      final int h = spread(path.hashCode());
+      final int s = h & (segments.length - 1);
+      final Segment<T> segment = segments[s];
+      final int slot = segment.find(path, h >>> segmentShift);
+      if (segment.paths[slot] == null) {
+        return;
+      }
+
+      // open addressing cannot just clear the slot, rebuild the segment without the path
+      copySegments();
+      final String[] paths = new String[segment.paths.length];
+      final NodeMatch<T>[] matches = newMatches(paths.length);
+      for (int i = 0; i < segment.paths.length; i++) {
+        final String indexed = segment.paths[i];
+        if (indexed != null && i != slot) {
+          insert(paths, matches, indexed, segment.matches[i], spread(indexed.hashCode()) >>> segmentShift);
+        }
+      }
+      segments[s] = new Segment<>(paths, matches, segment.size - 1);
+      copied[s] = true;
+      size--;
+    }
+
+    /**
+     * Adds the static paths of the given node and its descendants owned by the given edit, the
+     * given prefix being the path of the parent of the node.
+     */
+    void addOwned(TreeNode<T> node, TreeEdit edit, StringBuilder prefix) {
+      if (!edit.owns(node) || NodeType.PARAM == node.nodeType || NodeType.CATCH_ALL == node.nodeType) {
+        return;
+      }
+
+      final int length = prefix.length();
+      prefix.append(node.path);
+      if (node.value != null) {
+        put(prefix.toString(), new NodeMatch<>(node.path, node.route, node.value));
+      }
+      for (TreeNode<T> child : node.children) {
+        addOwned(child, edit, prefix);
+      }
+      prefix.setLength(length);
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    StaticIndex<T> build(TreeNode<T> tree) {
+      if (size <= segments.length * SEGMENT_SIZE) {
+        return new StaticIndex<>(tree, segments, size);
+      }
+
+      // split every segment in two, by the next bit of the hash
+      final Segment<T>[] split = new Segment[segments.length * 2];
+      for (int i = 0; i < segments.length; i++) {
+        final Segment<T> segment = segments[i];
+        final String[] low = new String[segment.paths.length];
+        final String[] high = new String[segment.paths.length];
+        final NodeMatch<T>[] lowMatches = newMatches(low.length);
+        final NodeMatch<T>[] highMatches = newMatches(high.length);
+        int lowSize = 0;
+        for (int j = 0; j < segment.paths.length; j++) {
+          final String path = segment.paths[j];
+          if (path != null) {
+            final int h = spread(path.hashCode());
+            if ((h & segments.length) == 0) {
+              insert(low, lowMatches, path, segment.matches[j], h >>> (segmentShift + 1));
+              lowSize++;
+            } else {
+              insert(high, highMatches, path, segment.matches[j], h >>> (segmentShift + 1));
+            }
+          }
+        }
+        split[i] = new Segment<>(low, lowMatches, lowSize);
+        split[i + segments.length] = new Segment<>(high, highMatches, segment.size - lowSize);
+      }
+      return new StaticIndex<>(tree, split, size);
+    }
+
+    private static <T> void rehash(Segment<T> segment, String[] paths, NodeMatch<T>[] matches,
+                                   int segmentShift) {
+      for (int i = 0; i < segment.paths.length; i++) {
+        final String path = segment.paths[i];
+        if (path != null) {
+          insert(paths, matches, path, segment.matches[i], spread(path.hashCode()) >>> segmentShift);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,66 @@
+package com.zbiljic.switchz;
+
+/**
+ * A copy-on-write modification of a radix tree.
+ * <p>
+ * Nodes of a tree which may be read concurrently are never modified. Instead, the edit copies each
+ * node before it is modified, starting from the root, so the modified tree shares every subtree
+ * that was not touched with the original tree. Nodes copied or created by the edit are owned by it
+ * and can be modified in place by later operations of the same edit. Each node records the edit
+ * which owns it, so checking ownership is a single comparison.
+ * <p>
+ * Edits are not thread-safe.
+ */
+final class TreeEdit {
+
+  /**
+   * Returns the given node if it is owned by this edit, or a copy of it owned by this edit.
+   *
+   * @param node the node that is going to be modified
+   * @return a node which can be modified
+   */
+  <T> TreeNode<T> writable(TreeNode<T> node) {
+    if (node.owner == this) {
+      return node;
+    }
+    TreeNode<T> copy = node.copy();
+    copy.owner = this;
+    return copy;
+  }
+
+  /**
+   * Tests if the given node was copied or created by this edit.
+   *
+   * @param node the node
+   * @return whether the node is owned by this edit
+   */
+  boolean owns(TreeNode<?> node) {
+    return node.owner == this;
+  }
+
+  /**
+   * Marks a node created by this edit as owned.
+   *
+   * @param node the new node
+   */
+  void own(TreeNode<?> node) {
+    node.owner = this;
+  }
+
+  /**
+   * Ends this edit, before the tree it made is published: clears the owner of every node owned by
+   * this edit, so the published nodes do not keep the edit reachable and can no longer be modified
+   * in place through it.
+   *
+   * @param tree the tree made by this edit
+   */
+  void release(TreeNode<?> tree) {
+    if (tree.owner != this) {
+      return;
+    }
+    tree.owner = null;
+    for (TreeNode<?> child : tree.children) {
+      release(child);
+    }
+  }
+}
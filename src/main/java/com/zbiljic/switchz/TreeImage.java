@@ -0,0 +1,751 @@
+package com.zbiljic.switchz;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.ToIntFunction;
+
+/**
+ * A read-only radix tree which is looked up straight from its serialized image, e.g. a
+ * memory-mapped file.
+ * <p>
+ * The image has the same layout as a {@link CompiledTree}: nodes numbered in breadth-first order,
+ * the children of a node a contiguous range of node numbers, and all edge labels packed together.
+ * Instead of arrays on the heap, the nodes are sections of the image, which are read by absolute
+ * index. Values are not serialized; each value is written as an id, and the values are given as a
+ * table of values by id when the image is loaded.
+ * <p>
+ * Loading an image only decodes its distinct strings, i.e. the param names and the labels of nodes
+ * with a value, and parses the param constraints. A large route table can therefore be built once,
+ * written with {@link #write(TreeNode, ToIntFunction, Path)}, and loaded by many processes with
+ * {@link #map(Path, List)}, which share the pages of the mapped file.
+ * <p>
+ * Lookups behave exactly like {@link TreeNode#get(String)}. Instances are thread-safe, as the
+ * image is never modified and only read by absolute index.
+ * <p>
+ * The image starts with a header of {@value #HEADER_SIZE} bytes, followed by the sections listed
+ * below, all big-endian:
+ * <ul>
+ * <li>{@code int magic, version, nodes, maxParams, labelLength, strings, stringLength,
+ * jumpTables, values, size}</li>
+ * <li>{@code int labelStart[nodes + 1], childStart[nodes + 1], wildcardStart[nodes],
+ * valueId[nodes], stringId[nodes], constraintId[nodes], jumpTableStart[nodes],
+ * jumpTable[jumpTables * 128], stringStart[strings + 1]}</li>
+ * <li>{@code char index[nodes], label[labelLength], string[stringLength]}</li>
+ * <li>{@code byte flags[nodes]}</li>
+ * </ul>
+ * Missing ids and jump tables are -1.
+ *
+ * @param <T> the value type
+ */
+public final class TreeImage<T> {
+
+  /** "SWZI". */
+  private static final int MAGIC = 0x53575a49;
+  private static final int VERSION = 1;
+  private static final int HEADER_SIZE = 10 * 4;
+
+  // node types, same order as NodeType
+  private static final int ROOT = 1;
+  private static final int PARAM = 2;
+  private static final int CATCH_ALL = 3;
+
+  private static final int TYPE_MASK = 0x3;
+  private static final int WILD_CHILD = 0x4;
+
+  /** The number of children above which a node gets a jump table. */
+  private static final int JUMP_TABLE_FANOUT = 8;
+  /** The number of entries of a jump table, one for each ASCII char. */
+  private static final int JUMP_TABLE_SIZE = 128;
+
+  private final ByteBuffer image;
+  private final int nodes;
+  private final int maxParams;
+
+  // the offsets of the sections in the image
+  private final int labelStartAt;
+  private final int childStartAt;
+  private final int wildcardStartAt;
+  private final int valueIdAt;
+  private final int stringIdAt;
+  private final int constraintIdAt;
+  private final int jumpTableStartAt;
+  private final int jumpTablesAt;
+  private final int indicesAt;
+  private final int labelsAt;
+  private final int flagsAt;
+
+  /** The distinct strings of the image, by id. */
+  private final String[] strings;
+  /** The constraints of the image, by the id of their source string. */
+  private final ParamConstraint[] constraints;
+  /** The values by id. */
+  private final Object[] values;
+
+  /**
+   * Loads the image starting at the position of the given buffer. The buffer must not be modified
+   * while the tree is used.
+   *
+   * @param image  the image
+   * @param values the values by the ids they were written with
+   * @throws IllegalArgumentException if the buffer does not hold an image, or a value is missing
+   */
+  public TreeImage(final ByteBuffer image, final List<? extends T> values) {
+    if (image == null) {
+      throw new NullPointerException("image cannot be null");
+    }
+    if (values == null) {
+      throw new NullPointerException("values cannot be null");
+    }
+
+    final ByteBuffer buffer = image.slice().order(ByteOrder.BIG_ENDIAN);
+    if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+      throw new IllegalArgumentException("Not a tree image");
+    }
+    if (buffer.getInt(4) != VERSION) {
+      throw new IllegalArgumentException("Unsupported tree image version: " + buffer.getInt(4));
+    }
+    this.nodes = buffer.getInt(8);
+    this.maxParams = buffer.getInt(12);
+    final int labelLength = buffer.getInt(16);
+    final int stringCount = buffer.getInt(20);
+    final int stringLength = buffer.getInt(24);
+    final int jumpTableCount = buffer.getInt(28);
+    final int valueCount = buffer.getInt(32);
+    final int size = buffer.getInt(36);
+    if (buffer.capacity() < size) {
+      throw new IllegalArgumentException("Truncated tree image: " + buffer.capacity() + " of " + size + " bytes");
+    }
+    if (values.size() < valueCount) {
+      throw new IllegalArgumentException("Expected " + valueCount + " values, got " + values.size());
+    }
+    this.image = buffer;
+    this.values = values.toArray();
+
+    int offset = HEADER_SIZE;
+    this.labelStartAt = offset;
+    offset += (nodes + 1) * 4;
+    this.childStartAt = offset;
+    offset += (nodes + 1) * 4;
+    this.wildcardStartAt = offset;
+    offset += nodes * 4;
+    this.valueIdAt = offset;
+    offset += nodes * 4;
+    this.stringIdAt = offset;
+    offset += nodes * 4;
+    this.constraintIdAt = offset;
+    offset += nodes * 4;
+    this.jumpTableStartAt = offset;
+    offset += nodes * 4;
+    this.jumpTablesAt = offset;
+    offset += jumpTableCount * JUMP_TABLE_SIZE * 4;
+    final int stringStartAt = offset;
+    offset += (stringCount + 1) * 4;
+    this.indicesAt = offset;
+    offset += nodes * 2;
+    this.labelsAt = offset;
+    offset += labelLength * 2;
+    final int stringsAt = offset;
+    offset += stringLength * 2;
+    this.flagsAt = offset;
+
+    this.strings = new String[stringCount];
+    for (int i = 0; i < stringCount; i++) {
+      final int start = buffer.getInt(stringStartAt + i * 4);
+      final int end = buffer.getInt(stringStartAt + (i + 1) * 4);
+      final char[] chars = new char[end - start];
+      for (int j = 0; j < chars.length; j++) {
+        chars[j] = buffer.getChar(stringsAt + (start + j) * 2);
+      }
+      strings[i] = new String(chars);
+    }
+
+    this.constraints = new ParamConstraint[stringCount];
+    for (int n = 0; n < nodes; n++) {
+      final int id = buffer.getInt(constraintIdAt + n * 4);
+      if (id >= 0 && constraints[id] == null) {
+        constraints[id] = ParamConstraint.parse(strings[id]);
+      }
+    }
+  }
+
+  /**
+   * Memory-maps the image in the given file and loads it.
+   *
+   * @param file   the file written by {@link #write(TreeNode, ToIntFunction, Path)}
+   * @param values the values by the ids they were written with
+   * @param <T>    the value type
+   * @return the tree
+   * @throws IOException if the file cannot be mapped
+   * @see #TreeImage(ByteBuffer, List)
+   */
+  public static <T> TreeImage<T> map(final Path file, final List<? extends T> values) throws IOException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      // the mapping stays valid after the channel is closed
+      return new TreeImage<>(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), values);
+    }
+  }
+
+  /**
+   * Writes the image of the given tree to the given file, replacing it if it exists.
+   *
+   * @param tree     the tree
+   * @param valueIds the id of each value of the tree, not negative
+   * @param file     the file
+   * @param <T>      the value type
+   * @throws IOException if the file cannot be written
+   * @see #write(TreeNode, ToIntFunction)
+   */
+  public static <T> void write(final TreeNode<T> tree, final ToIntFunction<? super T> valueIds, final Path file)
+    throws IOException {
+    final ByteBuffer image = write(tree, valueIds);
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+      StandardOpenOption.TRUNCATE_EXISTING)) {
+      while (image.hasRemaining()) {
+        channel.write(image);
+      }
+    }
+  }
+
+  /**
+   * Returns the image of the given tree.
+   *
+   * @param tree     the tree
+   * @param valueIds the id of each value of the tree, not negative
+   * @param <T>      the value type
+   * @return a buffer holding the image, from its position to its limit
+   */
+  public static <T> ByteBuffer write(final TreeNode<T> tree, final ToIntFunction<? super T> valueIds) {
+    if (tree == null) {
+      throw new NullPointerException("tree cannot be null");
+    }
+    if (valueIds == null) {
+      throw new NullPointerException("valueIds cannot be null");
+    }
+
+    // number the nodes in breadth-first order, same as CompiledTree
+    final Deque<TreeNode<T>> queue = new ArrayDeque<>();
+    queue.add(tree);
+    TreeNode<?>[] nodes = new TreeNode<?>[16];
+    int count = 0;
+    int labelLength = 0;
+    int jumpTableCount = 0;
+    while (!queue.isEmpty()) {
+      final TreeNode<T> node = queue.poll();
+      if (count == nodes.length) {
+        nodes = Arrays.copyOf(nodes, count * 2);
+      }
+      nodes[count++] = node;
+      labelLength += node.path.length();
+      if (node.indices.length > JUMP_TABLE_FANOUT) {
+        jumpTableCount++;
+      }
+      queue.addAll(Arrays.asList(node.children));
+    }
+
+    // the distinct strings: param names, labels of nodes with a value and constraints
+    final Map<String, Integer> stringIds = new LinkedHashMap<>();
+    int stringLength = 0;
+    for (int i = 0; i < count; i++) {
+      final TreeNode<?> node = nodes[i];
+      if (node.value != null || node.nodeType.ordinal() >= PARAM) {
+        stringLength += addString(stringIds, node.path);
+      }
+      if (node.constraint != null) {
+        stringLength += addString(stringIds, node.constraint.source);
+      }
+    }
+    final int stringCount = stringIds.size();
+
+    final int size = HEADER_SIZE +
+      ((count + 1) * 2 + count * 5 + jumpTableCount * JUMP_TABLE_SIZE + stringCount + 1) * 4 +
+      (count + labelLength + stringLength) * 2 +
+      count;
+    final ByteBuffer image = ByteBuffer.allocate(size);
+
+    // the sections, in order
+    final int labelStartAt = HEADER_SIZE;
+    final int childStartAt = labelStartAt + (count + 1) * 4;
+    final int wildcardStartAt = childStartAt + (count + 1) * 4;
+    final int valueIdAt = wildcardStartAt + count * 4;
+    final int stringIdAt = valueIdAt + count * 4;
+    final int constraintIdAt = stringIdAt + count * 4;
+    final int jumpTableStartAt = constraintIdAt + count * 4;
+    final int jumpTablesAt = jumpTableStartAt + count * 4;
+    final int stringStartAt = jumpTablesAt + jumpTableCount * JUMP_TABLE_SIZE * 4;
+    final int indicesAt = stringStartAt + (stringCount + 1) * 4;
+    final int labelsAt = indicesAt + count * 2;
+    final int stringsAt = labelsAt + labelLength * 2;
+    final int flagsAt = stringsAt + stringLength * 2;
+
+    int labelOffset = 0;
+    int nextChild = 1;
+    int jumpTableOffset = 0;
+    int valueCount = 0;
+    for (int i = 0; i < count; i++) {
+      @SuppressWarnings("unchecked")
+      final TreeNode<T> node = (TreeNode<T>) nodes[i];
+
+      image.putInt(labelStartAt + i * 4, labelOffset);
+      for (int j = 0; j < node.path.length(); j++) {
+        image.putChar(labelsAt + (labelOffset + j) * 2, node.path.charAt(j));
+      }
+      labelOffset += node.path.length();
+
+      image.putInt(childStartAt + i * 4, nextChild);
+      image.putInt(wildcardStartAt + i * 4, nextChild + node.indices.length);
+      for (int j = 0; j < node.indices.length; j++) {
+        image.putChar(indicesAt + (nextChild + j) * 2, node.indices[j]);
+      }
+      image.putInt(jumpTableStartAt + i * 4, -1);
+      if (node.indices.length > JUMP_TABLE_FANOUT) {
+        // the root is never a child, so 0 marks a missing child; a static child is indexed by the
+        // same char as the catch-all child after it
+        image.putInt(jumpTableStartAt + i * 4, jumpTableOffset);
+        for (int j = node.indices.length - 1; j >= 0; j--) {
+          final char index = node.indices[j];
+          if (index < JUMP_TABLE_SIZE) {
+            image.putInt(jumpTablesAt + (jumpTableOffset + index) * 4, nextChild + j);
+          }
+        }
+        jumpTableOffset += JUMP_TABLE_SIZE;
+      }
+      nextChild += node.children.length;
+
+      int valueId = -1;
+      if (node.value != null) {
+        valueId = valueIds.applyAsInt(node.value);
+        if (valueId < 0) {
+          throw new IllegalArgumentException("Negative id " + valueId + " of value " + node.value);
+        }
+        valueCount = Math.max(valueCount, valueId + 1);
+      }
+      image.putInt(valueIdAt + i * 4, valueId);
+      image.putInt(stringIdAt + i * 4,
+        node.value != null || node.nodeType.ordinal() >= PARAM ? stringIds.get(node.path) : -1);
+      image.putInt(constraintIdAt + i * 4, node.constraint != null ? stringIds.get(node.constraint.source) : -1);
+      image.put(flagsAt + i, (byte) (node.nodeType.ordinal() | (node.wildChild ? WILD_CHILD : 0)));
+    }
+    image.putInt(labelStartAt + count * 4, labelOffset);
+    image.putInt(childStartAt + count * 4, nextChild);
+
+    int stringOffset = 0;
+    int stringId = 0;
+    for (String s : stringIds.keySet()) {
+      image.putInt(stringStartAt + stringId * 4, stringOffset);
+      for (int j = 0; j < s.length(); j++) {
+        image.putChar(stringsAt + (stringOffset + j) * 2, s.charAt(j));
+      }
+      stringOffset += s.length();
+      stringId++;
+    }
+    image.putInt(stringStartAt + stringCount * 4, stringOffset);
+
+    image.putInt(0, MAGIC);
+    image.putInt(4, VERSION);
+    image.putInt(8, count);
+    image.putInt(12, tree.maxParams);
+    image.putInt(16, labelLength);
+    image.putInt(20, stringCount);
+    image.putInt(24, stringLength);
+    image.putInt(28, jumpTableCount);
+    image.putInt(32, valueCount);
+    image.putInt(36, size);
+    return image;
+  }
+
+  /**
+   * Adds the given string to the distinct strings, and returns the number of chars added.
+   */
+  private static int addString(Map<String, Integer> stringIds, String s) {
+    if (stringIds.containsKey(s)) {
+      return 0;
+    }
+    stringIds.put(s, stringIds.size());
+    return s.length();
+  }
+
+  /**
+   * Returns the number of nodes in this tree.
+   *
+   * @return the number of nodes
+   */
+  public int size() {
+    return nodes;
+  }
+
+  /**
+   * Returns the value registered with the given path (key).
+   *
+   * @param path the path to look up
+   * @return the match
+   * @see TreeNode#get(String)
+   */
+  public NodeMatch<T> get(String path) {
+    if (path == null) {
+      throw new NullPointerException("path cannot be null");
+    }
+
+    return getValue(0, 0, -1, path, null);
+  }
+
+  /**
+   * Returns the value registered with the given path (key), filling in the given match instead of
+   * creating a new one. Looking up a path this way does not allocate.
+   *
+   * @param path  the path to look up
+   * @param match the match to fill in, its previous state is discarded
+   * @return the given match
+   * @see TreeNode#get(CharSequence, MutableNodeMatch)
+   */
+  public MutableNodeMatch<T> get(CharSequence path, MutableNodeMatch<T> match) {
+    if (path == null) {
+      throw new NullPointerException("path cannot be null");
+    }
+    if (match == null) {
+      throw new NullPointerException("match cannot be null");
+    }
+
+    match.reset(path);
+    match.ensureCapacity(maxParams);
+    getValue(0, 0, -1, path, match);
+    return match;
+  }
+
+  private int labelStart(int n) {
+    return image.getInt(labelStartAt + (n << 2));
+  }
+
+  private int labelLength(int n) {
+    return labelStart(n + 1) - labelStart(n);
+  }
+
+  private char labelChar(int offset) {
+    return image.getChar(labelsAt + (offset << 1));
+  }
+
+  private int childStart(int n) {
+    return image.getInt(childStartAt + (n << 2));
+  }
+
+  private int wildcardStart(int n) {
+    return image.getInt(wildcardStartAt + (n << 2));
+  }
+
+  private int childCount(int n) {
+    return childStart(n + 1) - childStart(n);
+  }
+
+  private char index(int n) {
+    return image.getChar(indicesAt + (n << 1));
+  }
+
+  private int flags(int n) {
+    return image.get(flagsAt + n);
+  }
+
+  private int type(int n) {
+    return flags(n) & TYPE_MASK;
+  }
+
+  private boolean hasValue(int n) {
+    return image.getInt(valueIdAt + (n << 2)) >= 0;
+  }
+
+  /**
+   * Returns the value of node {@code n}, or {@code null} if it has none.
+   */
+  @SuppressWarnings("unchecked")
+  private T value(int n) {
+    final int id = image.getInt(valueIdAt + (n << 2));
+    return id >= 0 ? (T) values[id] : null;
+  }
+
+  /**
+   * Returns the label of node {@code n}, which is only decoded if the node has no value and is not
+   * a wildcard.
+   */
+  private String path(int n) {
+    final int id = image.getInt(stringIdAt + (n << 2));
+    if (id >= 0) {
+      return strings[id];
+    }
+    // only needed for some of the misses
+    final char[] label = new char[labelLength(n)];
+    for (int i = 0, start = labelStart(n); i < label.length; i++) {
+      label[i] = labelChar(start + i);
+    }
+    return new String(label);
+  }
+
+  /**
+   * Returns the first child of node {@code n} indexed by the given char, or 0 if there is none.
+   */
+  private int child(int n, char c) {
+    final int table = image.getInt(jumpTableStartAt + (n << 2));
+    if (table >= 0 && c < JUMP_TABLE_SIZE) {
+      return image.getInt(jumpTablesAt + ((table + c) << 2));
+    }
+    for (int i = childStart(n), end = wildcardStart(n); i < end; i++) {
+      if (c == index(i)) {
+        return i;
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * Returns the end of the static children of node {@code n}, same as {@code CompiledTree}.
+   */
+  private int staticEnd(int n) {
+    final int end = wildcardStart(n);
+    return end > childStart(n) && type(end - 1) == CATCH_ALL ? end - 1 : end;
+  }
+
+  /**
+   * Returns the child of node {@code n} to walk after the given one, same as
+   * {@code TreeNode.nextChoice}.
+   */
+  private int nextChoice(int n, int previous, char c) {
+    final int staticEnd = staticEnd(n);
+    final int wildcards = wildcardStart(n);
+    int i;
+    if (previous < 0) {
+      for (i = childStart(n); i < staticEnd; i++) {
+        if (c == index(i)) {
+          return i;
+        }
+      }
+      i = wildcards;
+    } else if (previous < staticEnd) {
+      i = wildcards;
+    } else if (previous >= wildcards) {
+      i = previous + 1;
+    } else {
+      // the catch-all child was the last one
+      return -1;
+    }
+
+    if (i < childStart(n + 1)) {
+      return i;
+    }
+    return staticEnd < wildcards && c == index(staticEnd) ? staticEnd : -1;
+  }
+
+  /**
+   * Tests if node {@code n}, indexed by '/', has a value for the path of its parent with a
+   * trailing slash.
+   */
+  private boolean isTrailingSlash(int n) {
+    return (labelLength(n) == 1 && hasValue(n)) || (type(n) == CATCH_ALL && hasValue(childStart(n)));
+  }
+
+  /**
+   * Tests if node {@code n}, or the catch-all child after it, has a value for the path of its
+   * parent with a trailing slash.
+   */
+  private boolean isTrailingSlash(int parent, int n) {
+    return isTrailingSlash(n) || (n + 1 < wildcardStart(parent) && index(n + 1) == '/' && isTrailingSlash(n + 1));
+  }
+
+  /**
+   * Tests if the region of the path starting at {@code offset} is equal to the first
+   * {@code length} chars of the label starting at {@code labelOffset}.
+   */
+  private boolean regionMatches(CharSequence path, int offset, int labelOffset, int length) {
+    for (int i = 0; i < length; i++) {
+      if (path.charAt(offset + i) != labelChar(labelOffset + i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Tests if the chars {@code start .. end} of the path are accepted by param node {@code n}.
+   */
+  private boolean accepts(int n, CharSequence path, int start, int end) {
+    final int id = image.getInt(constraintIdAt + (n << 2));
+    return id < 0 || constraints[id].matches(path, start, end);
+  }
+
+  /**
+   * Walks the tree for the given path from node {@code n}, same as
+   * {@code CompiledTree.getValue}.
+   */
+  private NodeMatch<T> getValue(int n, int offset, int choice, CharSequence path, NodeMatch<T> match) {
+    final int length = path.length();
+    boolean tsr;
+
+    // outer loop for walking the tree
+    walk:
+    for (; ; ) {
+      final int labelOffset = labelStart(n);
+      final int prefixLength = labelStart(n + 1) - labelOffset;
+      final int remaining = length - offset;
+      if (remaining > prefixLength) {
+        if (regionMatches(path, offset, labelOffset, prefixLength)) {
+          offset += prefixLength;
+          int i = choice; // the wildcard child to walk
+          if (i < 0) {
+            // If this node does not have a wildcard (param or catchAll)
+            // child,  we can just look up the next child node and continue
+            // to walk down the tree
+            if ((flags(n) & WILD_CHILD) == 0) {
+              char c = path.charAt(offset);
+              final int child = child(n, c);
+              if (child != 0) {
+                // the catch-all child is indexed by the same char as the static child
+                if (child + 1 < wildcardStart(n) && c == index(child + 1)) {
+                  return getValueBacktracking(n, offset, path, match);
+                }
+                n = child;
+                continue walk;
+              }
+
+              // Nothing found.
+              // We can recommend to redirect to the same URL without a
+              // trailing slash if a leaf exists for that path.
+              tsr = (c == '/' && offset + 1 == length && hasValue(n));
+              return NodeMatch.notFound(match, tsr);
+            }
+
+            // static children or other params next to the wildcard child
+            if (childCount(n) > 1) {
+              return getValueBacktracking(n, offset, path, match);
+            }
+            i = childStart(n);
+          } else {
+            choice = -1;
+            if (i < wildcardStart(n)) {
+              n = i;
+              continue walk;
+            }
+          }
+
+          // handle wildcard child
+          switch (type(i)) {
+            case PARAM: {
+              // find param end (either '/' or path end)
+              int end = offset;
+              while (end < length && path.charAt(end) != '/') {
+                end++;
+              }
+
+              if (!accepts(i, path, offset, end)) {
+                return NodeMatch.notFound(match, false);
+              }
+              n = i;
+
+              // save param value
+              match = NodeMatch.capture(match, path, path(n), offset, end, maxParams);
+
+              // we need to go deeper!
+              if (end < length) {
+                if (childCount(n) > 0) {
+                  offset = end;
+                  n = childStart(n);
+                  continue walk;
+                }
+
+                // ... but we can't
+                tsr = (length == end + 1);
+                return NodeMatch.notFound(match, tsr);
+              }
+
+              if (hasValue(n)) {
+                return NodeMatch.found(match, path, path(n), value(n), false);
+              } else if (childCount(n) == 1) {
+                // No handle found. Check if a handle for this path + a
+                // trailing slash exists for TSR recommendation
+                n = childStart(n);
+                tsr = (labelLength(n) == 1 && labelChar(labelStart(n)) == '/' && hasValue(n));
+              } else {
+                tsr = false;
+              }
+
+              return NodeMatch.found(match, path, path(n), null, tsr);
+            }
+
+            case CATCH_ALL: {
+              n = i;
+
+              // save param value
+              match = NodeMatch.capture(match, path, path(n), offset, length, maxParams);
+
+              return NodeMatch.found(match, path, path(n), value(n), false);
+            }
+
+            default:
+              throw new IllegalStateException("invalid node type");
+          }
+        }
+
+      } else if (remaining == prefixLength && regionMatches(path, offset, labelOffset, prefixLength)) {
+        // We should have reached the node containing the handle.
+        // Check if this node has a handle registered.
+        if (hasValue(n)) {
+          return NodeMatch.found(match, path, path(n), value(n), false);
+        }
+
+        if (prefixLength == 1 && labelChar(labelOffset) == '/' && (flags(n) & WILD_CHILD) != 0 &&
+          type(n) != ROOT) {
+          return NodeMatch.found(match, path, path(n), null, true);
+        }
+
+        // No handle found. Check if a handle for this path + a
+        // trailing slash exists for trailing slash recommendation
+        final int slash = child(n, '/');
+        if (slash != 0) {
+          return NodeMatch.notFound(match, isTrailingSlash(n, slash));
+        }
+
+        return NodeMatch.found(match, path, path(n), null, false);
+      }
+
+      // Nothing found. We can recommend to redirect to the same URL with an
+      // extra trailing slash if a leaf exists for that path
+      tsr = (remaining == 1 && path.charAt(offset) == '/') ||
+        (prefixLength == remaining + 1 &&
+          labelChar(labelOffset + remaining) == '/' &&
+          regionMatches(path, offset, labelOffset, remaining) &&
+          hasValue(n));
+
+      return NodeMatch.notFound(match, tsr);
+    }
+  }
+
+  /**
+   * Walks the children of node {@code n} in order of precedence until one of them has a value for
+   * the path, same as {@code CompiledTree.getValueBacktracking}.
+   */
+  private NodeMatch<T> getValueBacktracking(int n, int offset, CharSequence path, NodeMatch<T> match) {
+    if (match == null) {
+      match = new NodeMatch<>(maxParams);
+      match.reset(path);
+    }
+    final int start = offset - labelLength(n);
+    final int paramCount = match.paramCount;
+    final char c = path.charAt(offset);
+    boolean tsr = (c == '/' && offset + 1 == path.length() && hasValue(n));
+
+    for (int i = nextChoice(n, -1, c); i >= 0; i = nextChoice(n, i, c)) {
+      getValue(n, start, i, path, match);
+      if (match.value != null) {
+        return match;
+      }
+      tsr |= match.trailingSlashRedirect;
+      match.paramCount = paramCount;
+    }
+    return NodeMatch.notFound(match, tsr);
+  }
+}
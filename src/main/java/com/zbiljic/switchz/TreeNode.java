@@ -1,9 +1,22 @@
 package com.zbiljic.switchz;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.BiConsumer;
 
 /**
  * A node in a radix tree.
+ * <p>
+ * A static path, a param and a catch-all may be registered at the same position, e.g.
+ * "/users/new", "/users/:id" and "/users/*rest". A request path is matched by the static child
+ * first, then by the param children, and then by the catch-all child; if the walk of one of them
+ * has no value for the path, the walk backtracks to the next one.
  *
  * @param <T> the value type
  */
@@ -13,10 +26,9 @@ public final class TreeNode<T> {
    * An empty immutable {@code TreeNode} array.
    */
   private static final TreeNode[] EMPTY_TREE_NODE_ARRAY = new TreeNode[0];
-  /**
-   * An empty immutable {@code TreeNode} array.
-   */
-  private static final Param[] EMPTY_PARAM_ARRAY = new Param[0];
+
+  /** The number of paths below which {@link #addAll(Map, ForkJoinPool)} adds them sequentially. */
+  private static final int PARALLEL_BUILD_THRESHOLD = 1024;
 
   /** The path at this node. */
   String path;
@@ -39,9 +51,18 @@ public final class TreeNode<T> {
   /** The value stored at this node. */
   T value;
 
+  /** The path the value of this node was registered with; {@code null} if it has no value. */
+  String route;
+
   /** The priority of this node. */
   int priority;
 
+  /** The constraint on the values of this param node; {@code null} if any value is accepted. */
+  ParamConstraint constraint;
+
+  /** The edit which created or copied this node, and may modify it in place. */
+  TreeEdit owner;
+
   public TreeNode() {
     this.path = "";
     this.nodeType = NodeType.STATIC;
@@ -49,396 +70,1583 @@ public final class TreeNode<T> {
     this.children = EMPTY_TREE_NODE_ARRAY;
   }
 
+  /**
+   * Creates a copy of the given node, which shares the children with the given node.
+   */
+  private TreeNode(TreeNode<T> node) {
+    this.path = node.path;
+    this.nodeType = node.nodeType;
+    this.wildChild = node.wildChild;
+    this.maxParams = node.maxParams;
+    this.indices = node.indices.clone();
+    this.children = node.children.clone();
+    this.value = node.value;
+    this.route = node.route;
+    this.priority = node.priority;
+    this.constraint = node.constraint;
+  }
+
+  /**
+   * Returns a copy of this node. The copy can be modified without affecting this node, as long as
+   * its children are replaced by copies before they are modified.
+   */
+  TreeNode<T> copy() {
+    return new TreeNode<>(this);
+  }
+
   public void add(String path, final T value) {
+    add(path, value, null);
+  }
+
+  /**
+   * Adds a value for the given path. If an edit is given, every existing node is copied before it
+   * is modified, and this node must be owned by the edit.
+   */
+  void add(String path, final T value, final TreeEdit edit) {
     if (path == null) {
       throw new NullPointerException("path cannot be null");
     }
 
-    String fullPath = path;
     this.priority++;
-    short numParams = TreeNodeUtil.countParams(path);
 
     // non-empty tree
     if (this.path.length() > 0 || this.children.length > 0) {
-      TreeNode<T> n = this; // local pointer
-      walk:
-      for (; ; ) {
-        // Update maxParams of the current node
-        if (numParams > n.maxParams) {
-          n.maxParams = numParams;
-        }
-
-        // Find the longest common prefix.
-        // This also implies that the common prefix contains no ':' or '*'
-        // since the existing key can't contain those chars.
-        int i = 0;
-        int max = Math.min(path.length(), n.path.length());
-        while (i < max && path.charAt(i) == n.path.charAt(i)) {
-          i++;
-        }
-
-        // Split edge
-        if (i < n.path.length()) {
-          final TreeNode<T> child = new TreeNode<>();
-          child.path = n.path.substring(i, n.path.length());
-          child.wildChild = n.wildChild;
-          child.nodeType = NodeType.STATIC;
-          child.indices = n.indices;
-          child.children = n.children;
-          child.value = n.value;
-          child.priority = n.priority - 1;
-
-          // Update maxParams (max of all children)
-          for (TreeNode node : child.children) {
-            if (node.maxParams > child.maxParams) {
-              child.maxParams = node.maxParams;
-            }
-          }
+      addPath(path, path, value, edit);
+    } else {
+      // Empty tree
+      short numParams = TreeNodeUtil.countParams(path);
+      this.maxParams = numParams;
+      this.insertChild(numParams, path, path, value, edit);
+      this.nodeType = NodeType.ROOT;
+    }
+  }
 
-          n.children = new TreeNode[]{child};
-          n.indices = new char[]{n.path.charAt(i)};
-          n.path = path.substring(0, i);
-          n.value = null;
-          n.wildChild = false;
-        }
+  /**
+   * Adds a value for the given path, walking this non-empty tree from this node. The path is the
+   * rest of the full path from this node on, so it starts with the path of this node.
+   */
+  private void addPath(String path, final String fullPath, final T value, final TreeEdit edit) {
+    short numParams = TreeNodeUtil.countParams(path);
+
+    TreeNode<T> n = this; // local pointer
+    walk:
+    for (; ; ) {
+      // Update maxParams of the current node
+      if (numParams > n.maxParams) {
+        n.maxParams = numParams;
+      }
 
-        // Make new node a child of this node
-        if (i < path.length()) {
-          path = path.substring(i);
+      // Find the longest common prefix.
+      // This also implies that the common prefix contains no ':' or '*'
+      // since the existing key can't contain those chars.
+      int i = 0;
+      int max = Math.min(path.length(), n.path.length());
+      while (i < max && path.charAt(i) == n.path.charAt(i)) {
+        i++;
+      }
 
-          if (n.wildChild) {
-            n = n.children[0];
-            n.priority++;
+      // a catch-all is a child of the node before its slash
+      if (i > 0 && i < path.length() && path.charAt(i) == '*' && path.charAt(i - 1) == '/') {
+        i--;
+      }
 
-            // Update maxParams of the child node
-            if (numParams > n.maxParams) {
-              n.maxParams = numParams;
-            }
-            numParams--;
+      // Split edge
+      if (i < n.path.length()) {
+        n.splitEdge(i, n.priority - 1, edit);
+      }
 
-            // Check if the wildcard matches
-            if (path.length() >= n.path.length() &&
-              n.path.compareTo(path.substring(0, n.path.length())) == 0 &&
-              // Check for longer wildcard, e.g. :name and :names
-              (n.path.length() >= path.length() || path.charAt(n.path.length()) == '/')) {
-              continue walk;
-            } else {
-              // Wildcard conflict
-              String pathSeg;
-              if (NodeType.CATCH_ALL == n.nodeType) {
-                pathSeg = path;
-              } else {
-                pathSeg = path.split("/", 2)[0];
-              }
-              String prefix = fullPath.substring(0, fullPath.indexOf(pathSeg)) + String.valueOf(n.path);
-              String msg = String.format("'%s' in new path '%s' conflicts with existing wildcard '%s'"
-                  + " in existing prefix '%s'",
-                pathSeg, fullPath, n.path, prefix);
-              throw new IllegalArgumentException(msg);
-            }
+      // Make new node a child of this node
+      if (i < path.length()) {
+        path = path.substring(i);
+        char c = path.charAt(0);
+
+        if (n.wildChild && (c == ':' || NodeType.CATCH_ALL == n.nodeType)) {
+          int j = n.wildcardChild(path);
+          if (j < 0 && n.acceptsParamChild(path)) {
+            // a param with another constraint
+            n.addParamChild(numParams, path, fullPath, value, edit);
+            return;
           }
 
-          char c = path.charAt(0);
+          n = n.writableChild(Math.max(j, 0), edit);
+          n.priority++;
 
-          // slash after param
-          if (NodeType.PARAM == n.nodeType && c == '/' && n.children.length == 1) {
-            n = n.children[0];
-            n.priority++;
-            continue walk;
+          // Update maxParams of the child node
+          if (numParams > n.maxParams) {
+            n.maxParams = numParams;
           }
+          numParams--;
 
-          // Check if a child with the next path byte exists
-          for (int j = 0; j < n.indices.length; j++) {
-            if (c == n.indices[j]) {
-              j = n.incrementChildPriority(j);
-              n = n.children[j];
-              continue walk;
+          // Check if the wildcard matches
+          if (path.startsWith(n.path) &&
+            // Check for longer wildcard, e.g. :name and :names
+            (n.path.length() >= path.length() || path.charAt(n.path.length()) == '/')) {
+            continue walk;
+          } else {
+            // Wildcard conflict
+            String pathSeg;
+            if (NodeType.CATCH_ALL == n.nodeType) {
+              pathSeg = path;
+            } else {
+              pathSeg = path.split("/", 2)[0];
             }
+            String prefix = fullPath.substring(0, fullPath.indexOf(pathSeg)) + String.valueOf(n.path);
+            String msg = String.format("'%s' in new path '%s' conflicts with existing wildcard '%s'"
+                + " in existing prefix '%s'",
+              pathSeg, fullPath, n.path, prefix);
+            throw new IllegalArgumentException(msg);
           }
+        }
 
-          // Otherwise insert it
-          if (c != ':' && c != '*') {
-            n.indices = ArrayUtils.add(n.indices, c);
-            final TreeNode<T> child = new TreeNode<>();
-            child.maxParams = numParams;
-            n.children = ArrayUtils.add(n.children, child);
-            n.incrementChildPriority(n.indices.length - 1);
-            n = child;
+        // a catch-all after this node, tried after the static and param children
+        if (c == '/' && path.length() > 1 && path.charAt(1) == '*' && NodeType.PARAM != n.nodeType) {
+          final int j = n.catchAllChild();
+          if (j < 0) {
+            n.addCatchAllChild(numParams, path, fullPath, value, edit);
+            return;
           }
-          n.insertChild(numParams, path, fullPath, value);
+          n = n.writableChild(j, edit);
+          n.priority++;
+          continue walk;
+        }
 
-          return;
+        // slash after param
+        if (NodeType.PARAM == n.nodeType && c == '/' && n.children.length == 1) {
+          n = n.writableChild(0, edit);
+          n.priority++;
+          continue walk;
+        }
 
-        } else if (i == path.length()) { // Make node a (in-path) leaf
-          if (n.value != null) {
-            String msg = String.format("a handle is already registered for path '%s'", fullPath);
-            throw new IllegalArgumentException(msg);
+        // Check if a static child with the next path byte exists
+        final int staticChildren = n.staticChildren();
+        for (int j = 0; j < staticChildren; j++) {
+          if (c == n.indices[j]) {
+            n.writableChild(j, edit);
+            j = n.incrementChildPriority(j);
+            n = n.children[j];
+            continue walk;
           }
-          n.value = value;
         }
 
+        // Otherwise insert it, before the catch-all and param children
+        if (c != ':' && c != '*') {
+          n.indices = ArrayUtils.add(n.indices, staticChildren, c);
+          final TreeNode<T> child = newNode(edit);
+          child.maxParams = numParams;
+          n.children = ArrayUtils.add(n.children, staticChildren, child);
+          n.incrementChildPriority(staticChildren);
+          n = child;
+        } else if (c == ':' && n.children.length > 0) {
+          // a param next to static children
+          n.addParamChild(numParams, path, fullPath, value, edit);
+          return;
+        }
+        n.insertChild(numParams, path, fullPath, value, edit);
+
         return;
+
+      } else if (i == path.length()) { // Make node a (in-path) leaf
+        if (n.value != null) {
+          String msg = String.format("a handle is already registered for path '%s'", fullPath);
+          throw new IllegalArgumentException(msg);
+        }
+        n.value = value;
+        n.route = fullPath;
       }
-    } else {
-      // Empty tree
-      this.insertChild(numParams, path, fullPath, value);
-      this.nodeType = NodeType.ROOT;
+
+      return;
     }
   }
 
   /**
-   * Increments priority of the given child and reorders if necessary.
+   * Splits the path of this node after the given number of chars, moving the rest of the path, the
+   * value and the children to a new static child with the given priority.
    */
-  private int incrementChildPriority(int pos) {
-    this.children[pos].priority++;
-    int priority = this.children[pos].priority;
-
-    // adjust position (move to front)
-    int newPos = pos;
-    while (newPos > 0 && this.children[newPos - 1].priority < priority) {
-      // swap node positions
-      final TreeNode<T> tmp = this.children[newPos - 1];
-      this.children[newPos - 1] = this.children[newPos];
-      this.children[newPos] = tmp;
-
-      newPos--;
+  private void splitEdge(final int i, final int priority, final TreeEdit edit) {
+    final TreeNode<T> child = newNode(edit);
+    child.path = this.path.substring(i);
+    child.wildChild = this.wildChild;
+    child.nodeType = NodeType.STATIC;
+    child.indices = this.indices;
+    child.children = this.children;
+    child.value = this.value;
+    child.route = this.route;
+    child.priority = priority;
+
+    // Update maxParams (max of all children)
+    for (TreeNode node : child.children) {
+      if (node.maxParams > child.maxParams) {
+        child.maxParams = node.maxParams;
+      }
     }
 
-    // build new index char string
-    if (newPos != pos) {
-      char[] indices;
-      indices = Arrays.copyOf(this.indices, newPos); // unchanged prefix, might be empty
-      indices = ArrayUtils.addAll(indices, ArrayUtils.subarray(this.indices, pos, pos + 1)); // the index char we move
-      // rest without char at 'pos'
-      indices = ArrayUtils.addAll(indices, ArrayUtils.subarray(this.indices, newPos, pos));
-      indices = ArrayUtils.addAll(indices, ArrayUtils.subarray(this.indices, pos + 1, this.indices.length));
-      this.indices = indices;
-    }
+    this.children = new TreeNode[]{child};
+    this.indices = new char[]{this.path.charAt(i)};
+    this.path = this.path.substring(0, i);
+    this.value = null;
+    this.route = null;
+    this.wildChild = false;
+  }
 
-    return newPos;
+  /**
+   * Adds the values for all the given paths, like {@link #add(String, Object)} for each of them.
+   *
+   * @param values the values by path
+   */
+  public void addAll(Map<String, ? extends T> values) {
+    addAll(values, (TreeEdit) null);
   }
 
-  private void insertChild(short numParams, String path, String fullPath, T value) {
-    TreeNode<T> n = this; // local pointer
+  /**
+   * Adds the values for all the given paths. If an edit is given, every existing node is copied
+   * before it is modified, and this node must be owned by the edit.
+   * <p>
+   * An empty tree is built bottom-up instead of by adding the paths one by one: the static
+   * prefixes of the paths, up to their first wildcard, are sorted and the static nodes are created
+   * in one pass over them, each with its final path and children. Then the wildcard parts are
+   * added below the nodes of their prefixes, and the priorities are computed once at the end. The
+   * resulting tree is the same as if the paths were added by {@link #add(String, Object)} in the
+   * iteration order of the map, including the order of children with equal priorities.
+   * <p>
+   * The paths are added to a tree which is not empty one by one. If a path conflicts with another
+   * one, this tree is left with some of the paths added.
+   */
+  void addAll(Map<String, ? extends T> values, final TreeEdit edit) {
+    if (this.path.length() > 0 || this.children.length > 0) {
+      for (Map.Entry<String, ? extends T> entry : values.entrySet()) {
+        add(entry.getKey(), entry.getValue(), edit);
+      }
+      return;
+    }
+    if (values.isEmpty()) {
+      return;
+    }
 
-    int offset = 0; // already handled bytes of the path
+    final List<String> paths = new ArrayList<>(values.keySet());
+    build(paths, values, edit);
+    updatePriorities(insertionOrder(paths));
+  }
 
-    // find prefix until first wildcard (beginning with ':'' or '*'')
-    for (int i = 0, max = path.length(); numParams > 0; i++) {
-      char c = path.charAt(i);
-      if (c != ':' && c != '*') {
-        continue;
-      }
+  /**
+   * Builds this empty tree from the given paths, in the given order, except for the priorities
+   * and maxParams, which must be computed by {@link #updatePriorities(Map)} afterwards.
+   */
+  private void build(final List<String> paths, final Map<String, ? extends T> values,
+                     final TreeEdit edit) {
+    // the static prefix of each path, up to its first wildcard or the slash before a catch-all
+    final String[] prefixes = new String[paths.size()];
+    for (int i = 0; i < prefixes.length; i++) {
+      prefixes[i] = staticPrefix(paths.get(i));
+    }
 
-      // find wildcard end (either '/' or path end)
-      int end = i + 1;
-      while (end < max && path.charAt(end) != '/') {
-        switch (path.charAt(end)) {
-          // the wildcard name must not contain ':' and '*'
-          case ':':
-          case '*':
-            String subPath = path.substring(i);
-            String msg = String.format("only one wildcard per path segment is allowed, has: '%s' in path '%s'",
-              subPath, fullPath);
-            throw new IllegalArgumentException(msg);
-          default:
-            end++;
-            break;
-        }
+    final String[] sorted = prefixes.clone();
+    Arrays.sort(sorted);
+    int distinct = 0;
+    for (String prefix : sorted) {
+      if (distinct == 0 || !prefix.equals(sorted[distinct - 1])) {
+        sorted[distinct++] = prefix;
       }
+    }
 
-      // check if this TreeNode existing children which would be
-      // unreachable if we insert the wildcard here
-      if (n.children.length > 0) {
-        String subPath = path.substring(i);
-        String msg = String.format("wildcard route '%s' conflicts with existing children in path '%s'",
-          subPath, fullPath);
-        throw new IllegalArgumentException(msg);
+    final Map<String, TreeNode<T>> nodes = new HashMap<>(distinct * 2);
+    buildStatic(sorted, 0, distinct, 0, nodes, edit);
+    this.nodeType = NodeType.ROOT;
+
+    for (int i = 0; i < prefixes.length; i++) {
+      final String path = paths.get(i);
+      final TreeNode<T> n = nodes.get(prefixes[i]);
+      if (path.length() == prefixes[i].length()) {
+        n.value = values.get(path);
+        n.route = path;
+      } else {
+        n.addPath(n.path + path.substring(prefixes[i].length()), path, values.get(path), edit);
       }
+    }
+  }
 
-      // check if the wildcard has a name
-      if ((end - i) < 2) {
-        String msg = String.format("wildcards must be named with a non-empty name in path '%s'", fullPath);
-        throw new IllegalArgumentException(msg);
+  /**
+   * Returns the static part of the given path before its first wildcard, without the slash before
+   * a catch-all, which belongs to the catch-all child.
+   */
+  private static String staticPrefix(final String path) {
+    for (int i = 0; i < path.length(); i++) {
+      final char c = path.charAt(i);
+      if (c == ':') {
+        return path.substring(0, i);
       }
-
-      if (c == ':') { // param
-        // split path at the beginning of the wildcard
-        if (i > 0) {
-          n.path = path.substring(offset, i);
-          offset = i;
+      if (c == '*') {
+        if (i == 0 || path.charAt(i - 1) != '/') {
+          String msg = String.format("no / before catch-all in path '%s'", path);
+          throw new IllegalArgumentException(msg);
         }
+        return path.substring(0, i - 1);
+      }
+    }
+    return path;
+  }
 
-        final TreeNode<T> child = new TreeNode<>();
-        child.nodeType = NodeType.PARAM;
-        child.maxParams = numParams;
-
-        n.children = new TreeNode[]{child};
-        n.wildChild = true;
-        n = child;
-        n.priority++;
-        numParams--;
+  /**
+   * Makes this node the node of the given range of sorted, distinct static prefixes, which are
+   * equal up to the given depth: its path is their common prefix from the depth on, and each of
+   * its children is the node of the prefixes continuing with the same char. The node at which each
+   * prefix ends is recorded in the given map.
+   */
+  private void buildStatic(final String[] prefixes, final int from, final int to, final int depth,
+                           final Map<String, TreeNode<T>> nodes, final TreeEdit edit) {
+    // the common prefix of a sorted range is the common prefix of its first and last element
+    final String first = prefixes[from];
+    final String last = prefixes[to - 1];
+    int end = depth;
+    final int max = Math.min(first.length(), last.length());
+    while (end < max && first.charAt(end) == last.charAt(end)) {
+      end++;
+    }
+    this.path = first.substring(depth, end);
 
-        // if the path doesn't end with the wildcard, then there
-        // will be another non-wildcard subpath starting with '/'
-        if (end < max) {
-          n.path = path.substring(offset, end);
-          offset = end;
+    int start = from;
+    if (first.length() == end) {
+      nodes.put(first, this);
+      start++;
+    }
 
-          final TreeNode child2 = new TreeNode();
-          child2.maxParams = numParams;
-          child2.priority = 1;
+    int count = 0;
+    for (int i = start; i < to; i++) {
+      if (i == start || prefixes[i].charAt(end) != prefixes[i - 1].charAt(end)) {
+        count++;
+      }
+    }
+    final char[] indices = new char[count];
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    final TreeNode<T>[] children = new TreeNode[count];
+    int k = 0;
+    for (int i = start; i < to; ) {
+      final char c = prefixes[i].charAt(end);
+      int j = i + 1;
+      while (j < to && prefixes[j].charAt(end) == c) {
+        j++;
+      }
+      final TreeNode<T> child = newNode(edit);
+      child.buildStatic(prefixes, i, j, end, nodes, edit);
+      indices[k] = c;
+      children[k++] = child;
+      i = j;
+    }
+    this.indices = indices;
+    this.children = children;
+  }
 
-          n.children = new TreeNode[]{child2};
-          n = child2;
-        }
+  /**
+   * Returns the position of each of the given paths.
+   */
+  private static Map<String, Integer> insertionOrder(final List<String> paths) {
+    final Map<String, Integer> order = new HashMap<>(paths.size() * 2);
+    for (int i = 0; i < paths.size(); i++) {
+      order.put(paths.get(i), i);
+    }
+    return order;
+  }
 
-      } else { // catchAll
-        if (end != max || numParams > 1) {
-          String msg = String.format("catch-all routes are only allowed at the end of the path in path '%s'", fullPath);
-          throw new IllegalArgumentException(msg);
-        }
+  /**
+   * Adds the values for the given paths, in the given order.
+   */
+  private void addAll(final List<String> paths, final Map<String, ? extends T> values) {
+    for (String path : paths) {
+      add(path, values.get(path), null);
+    }
+  }
 
-        if (n.path.length() > 0 && n.path.charAt(n.path.length() - 1) == '/') {
-          String msg = String.format("catch-all conflicts with existing handle for the path segment root in path '%s'", fullPath);
-          throw new IllegalArgumentException(msg);
-        }
+  /**
+   * Adds the values for all the given paths to this tree, which must be empty, building the
+   * subtrees of different first path segments concurrently in the given pool.
+   * <p>
+   * The paths are partitioned by their first segment, e.g. "t42" for "/t42/users/:id", and the
+   * subtree of each partition is built by a task of the pool, like {@link #addAll(Map)} would. Then
+   * the subtrees are grafted under the root in the order of their first segments, so that each one
+   * becomes a new static child, and the paths whose first segment has a wildcard are added one by
+   * one. Finally the priorities are computed, and children with equal priorities are ordered by
+   * when their last path comes in the iteration order of the map, as adding the paths one by one
+   * would order them. The resulting tree is the same as if the paths were added by
+   * {@link #add(String, Object)} in the iteration order of the map, including priorities,
+   * maxParams and the order of children.
+   * <p>
+   * A tree which is not empty, or only a few paths, are added by {@link #addAll(Map)} instead. If a
+   * path conflicts with another one, this tree is left with some of the paths added.
+   *
+   * @param values the values by path
+   * @param pool   the pool to build the subtrees in
+   */
+  public void addAll(Map<String, ? extends T> values, final ForkJoinPool pool) {
+    if (pool == null) {
+      throw new NullPointerException("pool cannot be null");
+    }
+    if (this.path.length() > 0 || this.children.length > 0 || values.size() < PARALLEL_BUILD_THRESHOLD) {
+      addAll(values);
+      return;
+    }
 
-        // currently fixed width 1 for '/'
-        i--;
-        if (path.charAt(i) != '/') {
-          String msg = String.format("no / before catch-all in path '%s'", fullPath);
-          throw new IllegalArgumentException(msg);
-        }
+    // the partitions by first segment, sorted, and the paths with a wildcard there
+    final List<String> paths = new ArrayList<>(values.keySet());
+    final Map<String, List<String>> partitions = new TreeMap<>();
+    final List<String> rest = new ArrayList<>();
+    for (String path : paths) {
+      final String segment = firstSegment(path);
+      if (segment == null) {
+        rest.add(path);
+      } else {
+        partitions.computeIfAbsent(segment, k -> new ArrayList<>()).add(path);
+      }
+    }
 
-        n.path = path.substring(offset, i);
+    final List<ForkJoinTask<TreeNode<T>>> subtrees = new ArrayList<>(partitions.size());
+    for (List<String> partition : partitions.values()) {
+      subtrees.add(pool.submit(() -> {
+        final TreeNode<T> subtree = new TreeNode<>();
+        subtree.build(partition, values, null);
+        return subtree;
+      }));
+    }
+    for (ForkJoinTask<TreeNode<T>> subtree : subtrees) {
+      graft(subtree.join());
+    }
+    addAll(rest, values);
 
-        // first node: catchAll node with empty path
-        final TreeNode<T> child = new TreeNode<>();
-        child.wildChild = true;
-        child.nodeType = NodeType.CATCH_ALL;
-        child.maxParams = 1;
+    updatePriorities(insertionOrder(paths));
+  }
 
-        n.children = new TreeNode[]{child};
-        n.indices = new char[]{path.charAt(i)};
-        n = child;
-        n.priority++;
+  /**
+   * Returns the first segment of the given path, or {@code null} if the path does not start with a
+   * slash or the first segment has a wildcard.
+   */
+  private static String firstSegment(final String path) {
+    if (path.isEmpty() || path.charAt(0) != '/') {
+      return null;
+    }
+    int end = path.indexOf('/', 1);
+    if (end < 0) {
+      end = path.length();
+    }
+    for (int i = 1; i < end; i++) {
+      final char c = path.charAt(i);
+      if (c == ':' || c == '*') {
+        return null;
+      }
+    }
+    return path.substring(1, end);
+  }
 
-        // second node: node holding the variable
-        final TreeNode<T> child2 = new TreeNode<>();
-        child2.path = path.substring(i);
-        child2.nodeType = NodeType.CATCH_ALL;
-        child2.maxParams = 1;
-        child2.value = value;
-        child2.priority = 1;
+  /**
+   * Adds the given tree, built from the paths of one first segment, to this tree, which only has
+   * the paths of first segments sorting before it. As no path of this tree starts with the path of
+   * the given root, the given root becomes a new static child, possibly of a split node.
+   * Priorities and maxParams are not maintained, which must be done by
+   * {@link #updatePriorities(Map)} afterwards.
+   */
+  private void graft(final TreeNode<T> subtree) {
+    if (this.path.length() == 0 && this.children.length == 0) {
+      this.path = subtree.path;
+      this.wildChild = subtree.wildChild;
+      this.indices = subtree.indices;
+      this.children = subtree.children;
+      this.value = subtree.value;
+      this.route = subtree.route;
+      this.nodeType = NodeType.ROOT;
+      return;
+    }
 
-        n.children = new TreeNode[]{child2};
+    String path = subtree.path;
+    TreeNode<T> n = this;
+    for (; ; ) {
+      int i = 0;
+      int max = Math.min(path.length(), n.path.length());
+      while (i < max && path.charAt(i) == n.path.charAt(i)) {
+        i++;
+      }
+      if (i < n.path.length()) {
+        n.splitEdge(i, n.priority, null);
+      }
+      if (i == path.length()) {
+        throw new IllegalStateException("Subtree '" + subtree.path + "' overlaps an existing path");
+      }
 
-        return;
+      path = path.substring(i);
+      final char c = path.charAt(0);
+      final int staticChildren = n.staticChildren();
+      int j = 0;
+      while (j < staticChildren && n.indices[j] != c) {
+        j++;
+      }
+      if (j < staticChildren) {
+        n = n.children[j];
+        continue;
       }
-    }
 
-    // insert remaining path part and handle to the leaf
-    n.path = path.substring(offset);
-    n.value = value;
+      subtree.path = path;
+      subtree.nodeType = NodeType.STATIC;
+      n.indices = ArrayUtils.add(n.indices, staticChildren, c);
+      n.children = ArrayUtils.add(n.children, staticChildren, subtree);
+      return;
+    }
   }
 
   /**
-   * Returns the value registered with the given path (key). The values of wildcards are saved to a
-   * map.
+   * Recomputes the priority and maxParams of each node from its children, and sorts the children by
+   * priority, highest first.
    * <p>
-   * If no handle can be found, a TSR (trailing slash redirect) recommendation is made if a handle
-   * exists with an extra (without the) trailing slash for the given path.
+   * Adding a path moves the child it is added to ahead of the children with a lower priority only,
+   * so of the children with equal priorities, the one which reached its priority first, i.e. whose
+   * last path was added first, comes first. Children with equal priorities are ordered that way,
+   * by the position of their last path in the given order of the paths.
+   *
+   * @param order the position of each path in the order the paths are added in
+   * @return the position of the last path of this subtree, -1 if it has none
    */
-  public NodeMatch<T> get(String path) {
-    if (path == null) {
+  private int updatePriorities(final Map<String, Integer> order) {
+    int priority = this.value != null ? 1 : 0;
+    int last = this.value != null ? order.get(this.route) : -1;
+    final TreeNode<T>[] children = this.children;
+    final int staticChildren = staticChildren();
+    final int[] lasts = new int[staticChildren];
+    for (int i = 0; i < children.length; i++) {
+      final int childLast = children[i].updatePriorities(order);
+      if (i < staticChildren) {
+        lasts[i] = childLast;
+      }
+      last = Math.max(last, childLast);
+      priority += children[i].priority;
+    }
+    this.priority = priority;
+    updateMaxParams();
+
+    // insertion sort of the static children, fast for nearly sorted children
+    for (int i = 1; i < staticChildren; i++) {
+      final TreeNode<T> child = children[i];
+      final char index = this.indices[i];
+      final int childLast = lasts[i];
+      int j = i;
+      while (j > 0 && (children[j - 1].priority < child.priority ||
+        children[j - 1].priority == child.priority && lasts[j - 1] > childLast)) {
+        children[j] = children[j - 1];
+        this.indices[j] = this.indices[j - 1];
+        lasts[j] = lasts[j - 1];
+        j--;
+      }
+      children[j] = child;
+      this.indices[j] = index;
+      lasts[j] = childLast;
+    }
+    return last;
+  }
+
+  /**
+   * Creates a new node, owned by the given edit.
+   */
+  private static <T> TreeNode<T> newNode(final TreeEdit edit) {
+    final TreeNode<T> node = new TreeNode<>();
+    if (edit != null) {
+      edit.own(node);
+    }
+    return node;
+  }
+
+  /**
+   * Returns the child at the given position, replaced by a copy owned by the given edit if there is
+   * one. This node must already be owned by the edit.
+   */
+  private TreeNode<T> writableChild(int pos, final TreeEdit edit) {
+    TreeNode<T> child = this.children[pos];
+    if (edit != null) {
+      child = edit.writable(child);
+      this.children[pos] = child;
+    }
+    return child;
+  }
+
+  /**
+   * Returns the number of static children. They come first and are ordered by priority, followed by
+   * the catch-all child, if any, which is indexed by '/' like a static child, and then by the
+   * unindexed wildcard children.
+   */
+  private int staticChildren() {
+    final int indexed = this.indices.length;
+    return indexed > 0 && NodeType.CATCH_ALL == this.children[indexed - 1].nodeType ? indexed - 1 : indexed;
+  }
+
+  /**
+   * Returns the position of the catch-all child, or -1 if there is none.
+   *
+   * @see #staticChildren()
+   */
+  private int catchAllChild() {
+    final int indexed = this.indices.length;
+    return indexed > 0 && NodeType.CATCH_ALL == this.children[indexed - 1].nodeType ? indexed - 1 : -1;
+  }
+
+  /**
+   * Returns the position of the wildcard child whose path is the wildcard the given path starts
+   * with, or -1 if there is none.
+   */
+  private int wildcardChild(String path) {
+    for (int i = this.indices.length; i < this.children.length; i++) {
+      final String wildcard = this.children[i].path;
+      if (path.startsWith(wildcard) &&
+        (wildcard.length() == path.length() || path.charAt(wildcard.length()) == '/')) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Tests if the param the given path starts with can be added next to the param children of this
+   * node, i.e. if its constraint differs from theirs.
+   */
+  private boolean acceptsParamChild(String path) {
+    if (path.charAt(0) != ':' || NodeType.PARAM != this.children[this.indices.length].nodeType) {
+      return false;
+    }
+
+    int end = path.indexOf('/');
+    if (end < 0) {
+      end = path.length();
+    }
+    final int constraintStart = path.indexOf('<');
+    final String constraint = constraintStart >= 0 && constraintStart < end && path.charAt(end - 1) == '>' ?
+      path.substring(constraintStart + 1, end - 1) : null;
+
+    for (int i = this.indices.length; i < this.children.length; i++) {
+      final ParamConstraint other = this.children[i].constraint;
+      if (constraint == null ? other == null : other != null && constraint.equals(other.source)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Adds a param child for the given path, which starts with the param. Constrained params are
+   * placed before the param without a constraint, so lookups try them first.
+   */
+  private void addParamChild(short numParams, String path, String fullPath, T value, TreeEdit edit) {
+    final TreeNode<T> holder = new TreeNode<>();
+    holder.insertChild(numParams, path, fullPath, value, edit);
+    final TreeNode<T> child = holder.children[0];
+
+    int pos = this.children.length;
+    if (child.constraint != null) {
+      while (pos > this.indices.length && this.children[pos - 1].constraint == null) {
+        pos--;
+      }
+    }
+    this.children = ArrayUtils.add(this.children, pos, child);
+    this.wildChild = true;
+  }
+
+  /**
+   * Adds a catch-all child for the given path, which is the slash before the catch-all followed by
+   * the catch-all. The child is indexed by the slash, after the static children.
+   */
+  private void addCatchAllChild(short numParams, String path, String fullPath, T value, TreeEdit edit) {
+    final TreeNode<T> holder = new TreeNode<>();
+    holder.insertChild(numParams, path, fullPath, value, edit);
+
+    final int pos = this.indices.length;
+    this.indices = ArrayUtils.add(this.indices, pos, '/');
+    this.children = ArrayUtils.add(this.children, pos, holder.children[0]);
+  }
+
+  /**
+   * Returns the first param child of this node whose constraint accepts the chars
+   * {@code start .. end} of the given path, or {@code null} if there is none.
+   */
+  private TreeNode<T> paramChild(CharSequence path, int start, int end) {
+    for (int i = this.indices.length; i < this.children.length; i++) {
+      final TreeNode<T> child = this.children[i];
+      if (NodeType.PARAM == child.nodeType && child.accepts(path, start, end)) {
+        return child;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Tests if this param node accepts the chars {@code start .. end} of the given path as its value.
+   */
+  private boolean accepts(CharSequence path, int start, int end) {
+    return this.constraint == null || this.constraint.matches(path, start, end);
+  }
+
+  /**
+   * Returns the node at which exactly the given path (not a request path, but a path as passed to
+   * {@link #add(String, Object)}) ends, or {@code null} if there is no such node. If an edit is
+   * given, the nodes along the way are replaced by copies owned by the edit, and so is the returned
+   * node, and this node must already be owned by the edit.
+   */
+  TreeNode<T> findNode(String path, final TreeEdit edit) {
+    final List<TreeNode<T>> nodes = findPath(path, edit);
+    return nodes == null ? null : nodes.get(nodes.size() - 1);
+  }
+
+  /**
+   * Returns the nodes from this node down to the node at which exactly the given path ends, or
+   * {@code null} if there is no such node.
+   *
+   * @see #findNode(String, TreeEdit)
+   */
+  private List<TreeNode<T>> findPath(String path, final TreeEdit edit) {
+    if (path == null) {
+      throw new NullPointerException("path cannot be null");
+    }
+
+    final List<TreeNode<T>> nodes = new ArrayList<>();
+    TreeNode<T> n = this;
+    int offset = 0;
+    walk:
+    for (; ; ) {
+      if (!path.startsWith(n.path, offset)) {
+        return null;
+      }
+      nodes.add(n);
+      offset += n.path.length();
+      if (offset == path.length()) {
+        return nodes;
+      }
+
+      // the only child after a param
+      if (NodeType.PARAM == n.nodeType) {
+        if (n.children.length != 1) {
+          return null;
+        }
+        n = n.writableChild(0, edit);
+        continue;
+      }
+
+      // a wildcard child, the catch-all child or a static child
+      final char c = path.charAt(offset);
+      if (n.wildChild && (c == ':' || NodeType.CATCH_ALL == n.nodeType)) {
+        final int i = n.wildcardChild(path.substring(offset));
+        if (i < 0) {
+          return null;
+        }
+        n = n.writableChild(i, edit);
+        continue;
+      }
+      if (c == '/' && offset + 1 < path.length() && path.charAt(offset + 1) == '*') {
+        final int i = n.catchAllChild();
+        if (i < 0) {
+          return null;
+        }
+        n = n.writableChild(i, edit);
+        continue;
+      }
+      for (int i = 0, staticChildren = n.staticChildren(); i < staticChildren; i++) {
+        if (c == n.indices[i]) {
+          n = n.writableChild(i, edit);
+          continue walk;
+        }
+      }
+      return null;
+    }
+  }
+
+  /**
+   * Calls the given action with every path registered in this tree, as passed to
+   * {@link #add(String, Object)}, and its value.
+   */
+  void forEachPath(final BiConsumer<String, ? super T> action) {
+    forEachPath(new StringBuilder(), action);
+  }
+
+  private void forEachPath(final StringBuilder prefix, final BiConsumer<String, ? super T> action) {
+    final int length = prefix.length();
+    prefix.append(this.path);
+    if (this.value != null) {
+      action.accept(prefix.toString(), this.value);
+    }
+    for (TreeNode<T> child : this.children) {
+      child.forEachPath(prefix, action);
+    }
+    prefix.setLength(length);
+  }
+
+  /**
+   * Tests if any node along the given registered path has a wildcard child next to other children,
+   * i.e. if a request path may match both the given path and another one, and only the one with the
+   * higher precedence is found.
+   */
+  boolean overlaps(String path) {
+    final List<TreeNode<T>> nodes = findPath(path, null);
+    if (nodes == null) {
+      return false;
+    }
+    for (TreeNode<T> n : nodes) {
+      if (n.children.length > 1 && n.children.length > n.staticChildren()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Replaces the value registered for the given path.
+   *
+   * @param path  the path, as passed to {@link #add(String, Object)}
+   * @param value the new value
+   * @return the previous value, or {@code null} if no value is registered for the path, in which
+   * case nothing is replaced
+   */
+  public T replace(String path, final T value) {
+    return replace(path, value, null);
+  }
+
+  /**
+   * Replaces the value registered for the given path. If an edit is given, every existing node is
+   * copied before it is modified, and this node must be owned by the edit.
+   */
+  T replace(String path, final T value, final TreeEdit edit) {
+    if (value == null) {
+      throw new NullPointerException("value cannot be null");
+    }
+
+    final TreeNode<T> n = findNode(path, edit);
+    if (n == null || n.value == null) {
+      return null;
+    }
+    final T previous = n.value;
+    n.value = value;
+    return previous;
+  }
+
+  /**
+   * Removes the value registered for the given path. Nodes left without a value and children are
+   * removed, and nodes left without a value and with a single child are merged with the child, so
+   * the tree has the same shape as if the path had never been added.
+   *
+   * @param path the path, as passed to {@link #add(String, Object)}
+   * @return the removed value, or {@code null} if no value is registered for the path
+   */
+  public T remove(String path) {
+    return remove(path, null);
+  }
+
+  /**
+   * Removes the value registered for the given path. If an edit is given, every existing node is
+   * copied before it is modified, and this node must be owned by the edit.
+   */
+  T remove(String path, final TreeEdit edit) {
+    final List<TreeNode<T>> nodes = findPath(path, edit);
+    if (nodes == null) {
+      return null;
+    }
+    final TreeNode<T> leaf = nodes.get(nodes.size() - 1);
+    final T value = leaf.value;
+    if (value == null) {
+      return null;
+    }
+    leaf.value = null;
+    leaf.route = null;
+
+    // one value less in each subtree along the path
+    for (TreeNode<T> n : nodes) {
+      n.priority--;
+    }
+
+    // walk back up, pruning and merging nodes
+    for (int i = nodes.size() - 1; i > 0; i--) {
+      final TreeNode<T> n = nodes.get(i);
+      final TreeNode<T> parent = nodes.get(i - 1);
+
+      int pos = 0;
+      while (parent.children[pos] != n) {
+        pos++;
+      }
+
+      if (n.value == null && n.children.length == 0) {
+        parent.removeChild(pos);
+      } else {
+        n.mergeChild();
+        n.updateMaxParams();
+        parent.decrementChildPriority(pos);
+      }
+    }
+
+    if (this.value == null && this.children.length == 0) {
+      // empty tree
+      this.path = "";
+      this.nodeType = NodeType.STATIC;
+      this.wildChild = false;
+      this.maxParams = 0;
+      this.indices = new char[0];
+      this.priority = 0;
+    } else {
+      mergeChild();
+      updateMaxParams();
+    }
+
+    return value;
+  }
+
+  /**
+   * Removes the child at the given position.
+   */
+  private void removeChild(int pos) {
+    if (pos < this.indices.length) {
+      this.indices = ArrayUtils.addAll(ArrayUtils.subarray(this.indices, 0, pos),
+        ArrayUtils.subarray(this.indices, pos + 1, this.indices.length));
+    }
+    this.children = ArrayUtils.addAll(ArrayUtils.subarray(this.children, 0, pos),
+      ArrayUtils.subarray(this.children, pos + 1, this.children.length));
+    // other params may be left
+    this.wildChild = this.wildChild && this.children.length > this.indices.length;
+  }
+
+  /**
+   * Merges this node with its child, if this node has no value and only a single static child.
+   */
+  private void mergeChild() {
+    if (this.value != null || this.wildChild || this.children.length != 1 ||
+      (NodeType.STATIC != this.nodeType && NodeType.ROOT != this.nodeType)) {
+      return;
+    }
+    final TreeNode<T> child = this.children[0];
+    if (NodeType.STATIC != child.nodeType) {
+      return;
+    }
+
+    this.path = this.path + child.path;
+    this.wildChild = child.wildChild;
+    // the child might be shared with another version of the tree
+    this.indices = child.indices.clone();
+    this.children = child.children.clone();
+    this.value = child.value;
+    this.route = child.route;
+  }
+
+  /**
+   * Recomputes maxParams from the children.
+   */
+  private void updateMaxParams() {
+    short maxParams = 0;
+    for (TreeNode<T> child : this.children) {
+      if (child.maxParams > maxParams) {
+        maxParams = child.maxParams;
+      }
+    }
+    if ((NodeType.PARAM == this.nodeType || NodeType.CATCH_ALL == this.nodeType) && !this.wildChild) {
+      maxParams++;
+    }
+    this.maxParams = maxParams;
+  }
+
+  /**
+   * Moves the given child, whose priority was decremented, back behind the children with a higher
+   * priority.
+   */
+  private void decrementChildPriority(int pos) {
+    final int staticChildren = staticChildren();
+    if (pos >= staticChildren) {
+      // params are ordered by constraint, the catch-all comes last
+      return;
+    }
+    final int priority = this.children[pos].priority;
+
+    int newPos = pos;
+    while (newPos + 1 < staticChildren && this.children[newPos + 1].priority > priority) {
+      newPos++;
+    }
+
+    if (newPos != pos) {
+      final TreeNode<T> child = this.children[pos];
+      System.arraycopy(this.children, pos + 1, this.children, pos, newPos - pos);
+      this.children[newPos] = child;
+
+      final char index = this.indices[pos];
+      System.arraycopy(this.indices, pos + 1, this.indices, pos, newPos - pos);
+      this.indices[newPos] = index;
+    }
+  }
+
+  /**
+   * Increments priority of the given child and reorders if necessary.
+   */
+  private int incrementChildPriority(int pos) {
+    this.children[pos].priority++;
+    int priority = this.children[pos].priority;
+
+    // adjust position (move to front)
+    int newPos = pos;
+    while (newPos > 0 && this.children[newPos - 1].priority < priority) {
+      // swap node positions
+      final TreeNode<T> tmp = this.children[newPos - 1];
+      this.children[newPos - 1] = this.children[newPos];
+      this.children[newPos] = tmp;
+
+      newPos--;
+    }
+
+    // move the index char along, the indices are owned by this node
+    if (newPos != pos) {
+      final char index = this.indices[pos];
+      System.arraycopy(this.indices, newPos, this.indices, newPos + 1, pos - newPos);
+      this.indices[newPos] = index;
+    }
+
+    return newPos;
+  }
+
+  private void insertChild(short numParams, String path, String fullPath, T value, TreeEdit edit) {
+    TreeNode<T> n = this; // local pointer
+
+    int offset = 0; // already handled bytes of the path
+
+    // find prefix until first wildcard (beginning with ':'' or '*'')
+    for (int i = 0, max = path.length(); numParams > 0; i++) {
+      char c = path.charAt(i);
+      if (c != ':' && c != '*') {
+        continue;
+      }
+
+      // find wildcard end (either '/' or path end)
+      int end = i + 1;
+      int nameEnd = -1;
+      while (end < max && path.charAt(end) != '/') {
+        switch (path.charAt(end)) {
+          // the wildcard name must not contain ':' and '*'
+          case ':':
+          case '*':
+            String subPath = path.substring(i);
+            String msg = String.format("only one wildcard per path segment is allowed, has: '%s' in path '%s'",
+              subPath, fullPath);
+            throw new IllegalArgumentException(msg);
+          case '<':
+            if (c == ':') {
+              // the constraint takes the rest of the segment
+              nameEnd = end;
+              end = path.indexOf('/', end);
+              if (end < 0) {
+                end = max;
+              }
+              break;
+            }
+            end++;
+            break;
+          default:
+            end++;
+            break;
+        }
+        if (nameEnd >= 0) {
+          break;
+        }
+      }
+
+      ParamConstraint constraint = null;
+      if (nameEnd >= 0) {
+        if (path.charAt(end - 1) != '>' || end - nameEnd < 3) {
+          String msg = String.format("invalid constraint of wildcard '%s' in path '%s', a constraint " +
+            "must end the path segment with '>' and cannot contain '/'", path.substring(i, end), fullPath);
+          throw new IllegalArgumentException(msg);
+        }
+        constraint = ParamConstraint.parse(path.substring(nameEnd + 1, end - 1));
+      } else {
+        nameEnd = end;
+      }
+
+      // check if this TreeNode existing children which would be
+      // unreachable if we insert the wildcard here
+      if (n.children.length > 0) {
+        String subPath = path.substring(i);
+        String msg = String.format("wildcard route '%s' conflicts with existing children in path '%s'",
+          subPath, fullPath);
+        throw new IllegalArgumentException(msg);
+      }
+
+      // check if the wildcard has a name
+      if ((nameEnd - i) < 2) {
+        String msg = String.format("wildcards must be named with a non-empty name in path '%s'", fullPath);
+        throw new IllegalArgumentException(msg);
+      }
+
+      if (c == ':') { // param
+        // split path at the beginning of the wildcard
+        if (i > 0) {
+          n.path = path.substring(offset, i);
+          offset = i;
+        }
+
+        final TreeNode<T> child = newNode(edit);
+        child.nodeType = NodeType.PARAM;
+        child.maxParams = numParams;
+        child.constraint = constraint;
+
+        n.children = new TreeNode[]{child};
+        n.wildChild = true;
+        n = child;
+        n.priority++;
+        numParams--;
+
+        // if the path doesn't end with the wildcard, then there
+        // will be another non-wildcard subpath starting with '/'
+        if (end < max) {
+          n.path = path.substring(offset, end);
+          offset = end;
+
+          final TreeNode<T> child2 = newNode(edit);
+          child2.maxParams = numParams;
+          child2.priority = 1;
+
+          n.children = new TreeNode[]{child2};
+          n = child2;
+        }
+
+        // continue after the param, a constraint may contain ':' and '*'
+        i = end - 1;
+
+      } else { // catchAll
+        if (end != max || numParams > 1) {
+          String msg = String.format("catch-all routes are only allowed at the end of the path in path '%s'", fullPath);
+          throw new IllegalArgumentException(msg);
+        }
+
+        if (n.path.length() > 0 && n.path.charAt(n.path.length() - 1) == '/') {
+          String msg = String.format("catch-all conflicts with existing handle for the path segment root in path '%s'", fullPath);
+          throw new IllegalArgumentException(msg);
+        }
+
+        // currently fixed width 1 for '/'
+        i--;
+        if (path.charAt(i) != '/') {
+          String msg = String.format("no / before catch-all in path '%s'", fullPath);
+          throw new IllegalArgumentException(msg);
+        }
+
+        n.path = path.substring(offset, i);
+
+        // first node: catchAll node with empty path
+        final TreeNode<T> child = newNode(edit);
+        child.wildChild = true;
+        child.nodeType = NodeType.CATCH_ALL;
+        child.maxParams = 1;
+
+        n.children = new TreeNode[]{child};
+        n.indices = new char[]{path.charAt(i)};
+        n = child;
+        n.priority++;
+
+        // second node: node holding the variable
+        final TreeNode<T> child2 = newNode(edit);
+        child2.path = path.substring(i);
+        child2.nodeType = NodeType.CATCH_ALL;
+        child2.maxParams = 1;
+        child2.value = value;
+        child2.route = fullPath;
+        child2.priority = 1;
+
+        n.children = new TreeNode[]{child2};
+
+        return;
+      }
+    }
+
+    // insert remaining path part and handle to the leaf
+    n.path = path.substring(offset);
+    n.value = value;
+    n.route = fullPath;
+  }
+
+  /**
+   * Returns the value registered with the given path (key). The values of wildcards are saved as
+   * offsets into the given path and only materialized when requested from the returned match.
+   * <p>
+   * The path is walked by offset, so matching a static route does not allocate anything except the
+   * returned match.
+   * <p>
+   * If no handle can be found, a TSR (trailing slash redirect) recommendation is made if a handle
+   * exists with an extra (without the) trailing slash for the given path.
+   * <p>
+   * Nodes with a single kind of child are walked without backtracking, in time linear in the length
+   * of the path. At a node whose static, param and catch-all children overlap, each of them may be
+   * walked in turn, so in the worst case, with {@code k} such nodes along the path and at most
+   * {@code c} overlapping children at each of them, the path is walked up to {@code c^k} times.
+   * Only the nodes registered with overlapping routes backtrack, so {@code k} is bounded by the
+   * number of path segments of the longest such route.
+   */
+  public NodeMatch<T> get(String path) {
+    if (path == null) {
       throw new NullPointerException("path cannot be null");
     }
 
+    return getValue(path, null);
+  }
+
+  /**
+   * Returns the value registered with the given path (key), like {@link #get(String)}, but fills in
+   * the given match instead of creating a new one. Looking up a path this way does not allocate.
+   *
+   * @param path  the path to look up
+   * @param match the match to fill in, its previous state is discarded
+   * @return the given match
+   */
+  public MutableNodeMatch<T> get(CharSequence path, MutableNodeMatch<T> match) {
+    if (path == null) {
+      throw new NullPointerException("path cannot be null");
+    }
+    if (match == null) {
+      throw new NullPointerException("match cannot be null");
+    }
+
+    match.reset(path);
+    match.ensureCapacity(maxParams);
+    getValue(path, match);
+    return match;
+  }
+
+  /**
+   * Returns the value registered with the given path, tolerating differences in slashes: a missing
+   * leading slash, runs of slashes in place of a single one, and a missing or extra trailing slash.
+   * A path which matches exactly is matched the same as by {@link #get(String)}. The path is still
+   * walked once and is never copied.
+   *
+   * @param path  the path to look up
+   * @param match the match to fill in, or {@code null} to create one if needed
+   * @return the match; misses never recommend a trailing slash redirect
+   * @see SlashMatching#TOLERANT
+   */
+  NodeMatch<T> getTolerant(CharSequence path, MutableNodeMatch<T> match) {
+    if (path == null) {
+      throw new NullPointerException("path cannot be null");
+    }
+
+    if (match != null) {
+      match.reset(path);
+      match.ensureCapacity(maxParams);
+    }
+    return getValueTolerant(path, match);
+  }
+
+  /**
+   * Returns the value registered with the given path, ignoring case. Parameter values are taken
+   * from the given path as they are. The path is walked once and is not converted up front.
+   *
+   * @param path the path to look up
+   * @return the match
+   * @see #findCaseInsensitivePath(CharSequence, boolean)
+   */
+  public NodeMatch<T> getCaseInsensitive(String path) {
+    if (path == null) {
+      throw new NullPointerException("path cannot be null");
+    }
+
+    final NodeMatch<T> match = new NodeMatch<>(maxParams);
+    match.reset(path);
+    final TreeNode<T> n = findCaseInsensitive(path, null, match, false);
+    if (n == null) {
+      return NodeMatch.notFound(false);
+    }
+    return NodeMatch.found(match, path, n.path, n.route, n.value, false);
+  }
+
+  /**
+   * Returns the value registered with the given path, ignoring case, like
+   * {@link #getCaseInsensitive(String)}, but fills in the given match instead of creating a new one.
+   *
+   * @param path  the path to look up
+   * @param match the match to fill in, its previous state is discarded
+   * @return the given match
+   */
+  public MutableNodeMatch<T> getCaseInsensitive(CharSequence path, MutableNodeMatch<T> match) {
+    if (path == null) {
+      throw new NullPointerException("path cannot be null");
+    }
+    if (match == null) {
+      throw new NullPointerException("match cannot be null");
+    }
+
+    match.reset(path);
+    match.ensureCapacity(maxParams);
+    final TreeNode<T> n = findCaseInsensitive(path, null, match, false);
+    if (n == null) {
+      NodeMatch.notFound(match, false);
+    } else {
+      NodeMatch.found(match, path, n.path, n.route, n.value, false);
+    }
+    return match;
+  }
+
+  /**
+   * Makes a case-insensitive lookup of the given path and returns the registered path it matches,
+   * with the case of the registered path and the parameter values of the given path. This is the
+   * target of a redirect to the canonical form of a path.
+   *
+   * @param path             the path to look up
+   * @param fixTrailingSlash whether a missing or extra trailing slash is added or removed
+   * @return the corrected path, or {@code null} if there is none
+   */
+  public String findCaseInsensitivePath(CharSequence path, boolean fixTrailingSlash) {
+    if (path == null) {
+      throw new NullPointerException("path cannot be null");
+    }
+
+    final StringBuilder ciPath = new StringBuilder(path.length() + 1);
+    if (findCaseInsensitive(path, ciPath, null, fixTrailingSlash) == null) {
+      return null;
+    }
+    return ciPath.toString();
+  }
+
+  /**
+   * Compiles this tree into an immutable tree laid out for lookups. Later changes to this tree are
+   * not reflected in the returned tree.
+   *
+   * @return the compiled tree
+   */
+  public CompiledTree<T> compile() {
+    return new CompiledTree<>(this);
+  }
+
+  /**
+   * Counts the nodes a lookup of the given path walks through. Parameter values are skipped, and
+   * the walk stops where the lookup would stop.
+   *
+   * @param path the looked up path
+   * @param hits the number of walks through each node, by node identity
+   */
+  void countHits(CharSequence path, Map<TreeNode<T>, int[]> hits) {
     TreeNode<T> n = this; // local pointer
-    Param[] params = EMPTY_PARAM_ARRAY;
-    boolean tsr = false;
+    int offset = 0; // already matched chars of the path
+
+    for (; ; ) {
+      hits.computeIfAbsent(n, node -> new int[1])[0]++;
+
+      final int prefixLength = n.path.length();
+      if (path.length() - offset <= prefixLength ||
+        !TreeNodeUtil.regionMatches(path, offset, n.path, prefixLength)) {
+        return;
+      }
+      offset += prefixLength;
+
+      // the static child, if any
+      final int i = n.indexOf(path.charAt(offset));
+      if (i >= 0 && NodeType.CATCH_ALL != n.children[i].nodeType) {
+        n = n.children[i];
+        continue;
+      }
+
+      if (n.wildChild) {
+        final TreeNode<T> wildcard = n.children[n.indices.length];
+        if (NodeType.PARAM != wildcard.nodeType) {
+          hits.computeIfAbsent(wildcard, node -> new int[1])[0]++;
+          return;
+        }
+
+        // skip the param value
+        int end = offset;
+        while (end < path.length() && path.charAt(end) != '/') {
+          end++;
+        }
+        final TreeNode<T> param = n.paramChild(path, offset, end);
+        if (param != null) {
+          hits.computeIfAbsent(param, node -> new int[1])[0]++;
+          if (end == path.length() || param.children.length == 0) {
+            return;
+          }
+          offset = end;
+          n = param.children[0];
+          continue;
+        }
+      }
+
+      // the catch-all child, if any
+      if (i < 0) {
+        return;
+      }
+      n = n.children[i];
+    }
+  }
+
+  /**
+   * Orders the children of the nodes of this tree by the given numbers of hits, most hit first,
+   * instead of by priority, so that lookups find the most requested children first. A child is only
+   * moved before a sibling if it has clearly more hits, so children with about the same number of
+   * hits keep their order instead of being shuffled by chance. Nodes are copied before they are
+   * reordered, as are their ancestors, and the subtrees without hits are left as they are.
+   *
+   * @param hits the number of hits of each node, see {@link #countHits(CharSequence, Map)}
+   * @param edit the edit copying the nodes
+   * @return this node, or its copy if any node of this tree was reordered
+   */
+  TreeNode<T> reorder(Map<TreeNode<T>, int[]> hits, TreeEdit edit) {
+    final TreeNode<T>[] children = this.children;
+    final int[] counts = new int[children.length];
+    TreeNode<T> n = this;
+
+    for (int i = 0; i < children.length; i++) {
+      final int[] count = hits.get(children[i]);
+      if (count != null) {
+        counts[i] = count[0];
+        final TreeNode<T> reordered = children[i].reorder(hits, edit);
+        if (reordered != children[i]) {
+          n = edit.writable(n);
+          n.children[i] = reordered;
+        }
+      }
+    }
+
+    // only the static children are ordered
+    final int staticChildren = staticChildren();
+    boolean sorted = true;
+    for (int i = 1; i < staticChildren; i++) {
+      if (moreHits(counts[i], counts[i - 1])) {
+        sorted = false;
+        break;
+      }
+    }
+    if (sorted) {
+      return n;
+    }
+
+    // insertion sort, stable; the counts are of the children before they were copied
+    n = edit.writable(n);
+    for (int i = 1; i < staticChildren; i++) {
+      final TreeNode<T> child = n.children[i];
+      final char index = n.indices[i];
+      final int count = counts[i];
+      int j = i;
+      while (j > 0 && moreHits(count, counts[j - 1])) {
+        n.children[j] = n.children[j - 1];
+        n.indices[j] = n.indices[j - 1];
+        counts[j] = counts[j - 1];
+        j--;
+      }
+      n.children[j] = child;
+      n.indices[j] = index;
+      counts[j] = count;
+    }
+    return n;
+  }
+
+  /**
+   * Tests if the first number of sampled hits is greater than the second by more than two standard
+   * deviations of their difference, i.e. {@code a - b > 2 * sqrt(a + b)}.
+   */
+  private static boolean moreHits(int a, int b) {
+    final long difference = a - b;
+    return difference > 0 && difference * difference > 4L * (a + b);
+  }
+
+  /**
+   * Walks the tree for the given path. If no match is given, one is only created if there is
+   * something to return; misses without parameters return a shared match.
+   */
+  private NodeMatch<T> getValue(CharSequence path, NodeMatch<T> match) {
+    return getValue(this, 0, -1, path, match);
+  }
+
+  /**
+   * Walks the tree for the given path from node {@code n}, whose label starts at the given offset.
+   * If a choice is given, the child at that position is walked after the label of node {@code n},
+   * instead of the child selected by the path.
+   */
+  private NodeMatch<T> getValue(TreeNode<T> n, int offset, int choice, CharSequence path,
+                                NodeMatch<T> match) {
+    boolean tsr;
 
     // outer loop for walking the tree
     walk:
     for (; ; ) {
-      if (path.length() > n.path.length()) {
-        if (path.substring(0, n.path.length()).compareTo(n.path) == 0) {
-          path = path.substring(n.path.length());
-          // If this node does not have a wildcard (param or catchAll)
-          // child,  we can just look up the next child node and continue
-          // to walk down the tree
-          if (!n.wildChild) {
-            char c = path.charAt(0);
-            for (int i = 0; i < n.indices.length; i++) {
-              if (c == n.indices[i]) {
-                n = n.children[i];
-                continue walk;
+      final int remaining = path.length() - offset;
+      final int prefixLength = n.path.length();
+      if (remaining > prefixLength) {
+        if (TreeNodeUtil.regionMatches(path, offset, n.path, prefixLength)) {
+          offset += prefixLength;
+          int i = choice; // the wildcard child to walk
+          if (i < 0) {
+            // If this node does not have a wildcard (param or catchAll)
+            // child,  we can just look up the next child node and continue
+            // to walk down the tree
+            if (!n.wildChild) {
+              char c = path.charAt(offset);
+              for (i = 0; i < n.indices.length; i++) {
+                if (c == n.indices[i]) {
+                  // the catch-all child is indexed by the same char as the static child
+                  if (i + 1 < n.indices.length && c == n.indices[i + 1]) {
+                    return getValueBacktracking(n, offset, path, match);
+                  }
+                  n = n.children[i];
+                  continue walk;
+                }
               }
+
+              // Nothing found.
+              // We can recommend to redirect to the same URL without a
+              // trailing slash if a leaf exists for that path.
+              tsr = (c == '/' && offset + 1 == path.length() && n.value != null);
+              return NodeMatch.notFound(match, tsr);
             }
 
-            // Nothing found.
-            // We can recommend to redirect to the same URL without a
-            // trailing slash if a leaf exists for that path.
-            tsr = (path.equals("/") && n.value != null);
-            return new NodeMatch<>(tsr);
+            // static children or other params next to the wildcard child
+            if (n.children.length > 1) {
+              return getValueBacktracking(n, offset, path, match);
+            }
+            i = 0;
+          } else {
+            choice = -1;
+            if (i < n.indices.length) {
+              n = n.children[i];
+              continue walk;
+            }
           }
 
           // handle wildcard child
-          n = n.children[0];
-          switch (n.nodeType) {
+          final TreeNode<T> child = n.children[i];
+          switch (child.nodeType) {
             case PARAM: {
               // find param end (either '/' or path end)
-              int end = 0;
+              int end = offset;
               while (end < path.length() && path.charAt(end) != '/') {
                 end++;
               }
 
-              // save param value
-              if (params.length == 0) {
-                // lazy allocation
-                params = new Param[0];
+              if (!child.accepts(path, offset, end)) {
+                return NodeMatch.notFound(match, false);
               }
-              int i = params.length;
-              params = Arrays.copyOf(params, i + 1); // expand within pre-allocated capacity
-              params[i] = new Param(n.path.substring(1, n.path.length()), path.substring(0, end));
+              n = child;
+
+              // save param value
+              match = NodeMatch.capture(match, path, n.path, offset, end, maxParams);
 
               // we need to go deeper!
               if (end < path.length()) {
                 if (n.children.length > 0) {
-                  path = path.substring(end);
+                  offset = end;
                   n = n.children[0];
                   continue walk;
                 }
 
                 // ... but we can't
                 tsr = (path.length() == end + 1);
-                return new NodeMatch<>(tsr);
+                return NodeMatch.notFound(match, tsr);
               }
 
               if (n.value != null) {
-                return new NodeMatch<>(n.path, n.value, params);
+                return NodeMatch.found(match, path, n.path, n.route, n.value, false);
               } else if (n.children.length == 1) {
                 // No handle found. Check if a handle for this path + a
                 // trailing slash exists for TSR recommendation
                 n = n.children[0];
-                tsr = (path.equals("/") && n.value != null);
+                tsr = ("/".equals(n.path) && n.value != null);
+              } else {
+                tsr = false;
               }
 
-              return new NodeMatch<>(n.path, null, params, tsr);
+              return NodeMatch.found(match, path, n.path, null, tsr);
             }
 
             case CATCH_ALL: {
+              n = child;
+
               // save param value
-              if (params.length == 0) {
-                // lazy allocation
-                params = new Param[0];
-              }
-              int i = params.length;
-              params = Arrays.copyOf(params, i + 1); // expand within pre-allocated capacity
-              params[i] = new Param(n.path.substring(2, n.path.length()), path);
+              match = NodeMatch.capture(match, path, n.path, offset, path.length(), maxParams);
 
-              return new NodeMatch<>(n.path, n.value, params);
+              return NodeMatch.found(match, path, n.path, n.route, n.value, false);
             }
 
             default:
@@ -446,41 +1654,593 @@ public final class TreeNode<T> {
           }
         }
 
-      } else if (path.compareTo(n.path) == 0) {
+      } else if (remaining == prefixLength && TreeNodeUtil.regionMatches(path, offset, n.path, prefixLength)) {
         // We should have reached the node containing the handle.
         // Check if this node has a handle registered.
         if (n.value != null) {
-          return new NodeMatch<>(n.path, n.value, params);
+          return NodeMatch.found(match, path, n.path, n.route, n.value, false);
         }
 
-        if (path.equals("/") && n.wildChild && NodeType.ROOT != n.nodeType) {
-          return new NodeMatch<>(n.path, null, params, true);
+        if ("/".equals(n.path) && n.wildChild && NodeType.ROOT != n.nodeType) {
+          return NodeMatch.found(match, path, n.path, null, true);
         }
 
         // No handle found. Check if a handle for this path + a
         // trailing slash exists for trailing slash recommendation
-        for (int i = 0; i < n.indices.length; i++) {
-          if (n.indices[i] == '/') {
-            n = n.children[i];
-            tsr = (n.path.length() == 1 && n.value != null) ||
-              (NodeType.CATCH_ALL == n.nodeType && n.children[0].value != null);
-            return new NodeMatch<>(tsr);
-          }
+        final int slash = n.indexOf('/');
+        if (slash >= 0) {
+          // the catch-all child may follow the static child
+          tsr = n.children[slash].isTrailingSlash() ||
+            (slash + 1 < n.indices.length && n.indices[slash + 1] == '/' && n.children[slash + 1].isTrailingSlash());
+          return NodeMatch.notFound(match, tsr);
         }
 
-        return new NodeMatch<>(n.path, null, params, false);
+        return NodeMatch.found(match, path, n.path, null, false);
       }
 
       // Nothing found. We can recommend to redirect to the same URL with an
       // extra trailing slash if a leaf exists for that path
-      tsr = (path.equals("/")) ||
-        (n.path.length() == path.length() + 1 &&
-          n.path.charAt(path.length()) == '/' &&
-          path.compareTo(n.path.substring(0, n.path.length() - 1)) == 0 &&
+      tsr = (remaining == 1 && path.charAt(offset) == '/') ||
+        (prefixLength == remaining + 1 &&
+          n.path.charAt(remaining) == '/' &&
+          TreeNodeUtil.regionMatches(path, offset, n.path, remaining) &&
           n.value != null);
 
-      return new NodeMatch<>(tsr);
+      return NodeMatch.notFound(match, tsr);
+    }
+  }
+
+  /**
+   * Tests if this child, indexed by '/', has a value for the path of its parent with a trailing
+   * slash.
+   */
+  private boolean isTrailingSlash() {
+    return (this.path.length() == 1 && this.value != null) ||
+      (NodeType.CATCH_ALL == this.nodeType && this.children[0].value != null);
+  }
+
+  /**
+   * Walks the children of node {@code n} for the rest of the path after its label, which ends at
+   * the given offset, in the order of {@link #nextChoice(int, char)} until one of them has a value
+   * for the path. The parameters captured by a child which has none are dropped before the next
+   * child is walked.
+   */
+  private NodeMatch<T> getValueBacktracking(TreeNode<T> n, int offset, CharSequence path,
+                                            NodeMatch<T> match) {
+    if (match == null) {
+      match = new NodeMatch<>(maxParams);
+      match.reset(path);
+    }
+    final int start = offset - n.path.length();
+    final int paramCount = match.paramCount;
+    final char c = path.charAt(offset);
+    boolean tsr = (c == '/' && offset + 1 == path.length() && n.value != null);
+
+    for (int i = n.nextChoice(-1, c); i >= 0; i = n.nextChoice(i, c)) {
+      getValue(n, start, i, path, match);
+      if (match.value != null) {
+        return match;
+      }
+      tsr |= match.trailingSlashRedirect;
+      match.paramCount = paramCount;
+    }
+    return NodeMatch.notFound(match, tsr);
+  }
+
+  /**
+   * Returns the position of the child to walk for a path which continues with the given char after
+   * the label of this node, if the child at the given position (or none, if -1) was walked before
+   * and had no value for the path, or -1 if there is none left. The children are walked in order of
+   * precedence: the static child indexed by the char, the param children, and the catch-all child.
+   */
+  private int nextChoice(int previous, char c) {
+    final int staticChildren = staticChildren();
+    int i;
+    if (previous < 0) {
+      for (i = 0; i < staticChildren; i++) {
+        if (c == this.indices[i]) {
+          return i;
+        }
+      }
+      i = this.indices.length;
+    } else if (previous < staticChildren) {
+      i = this.indices.length;
+    } else if (previous >= this.indices.length) {
+      i = previous + 1;
+    } else {
+      // the catch-all child was the last one
+      return -1;
+    }
+
+    if (i < this.children.length) {
+      return i;
+    }
+    return staticChildren < this.indices.length && c == this.indices[staticChildren] ? staticChildren : -1;
+  }
+
+  /**
+   * Walks the tree for the given path like {@link #getValue(CharSequence, NodeMatch)}, but compares
+   * the path as if its runs of slashes were single slashes and accepts the nodes a trailing slash
+   * redirect would be recommended for.
+   */
+  private NodeMatch<T> getValueTolerant(CharSequence path, NodeMatch<T> match) {
+    // a missing leading slash matches the leading slash of the root
+    final int from = (path.length() == 0 || path.charAt(0) != '/') && this.path.startsWith("/") ? 1 : 0;
+    return getValueTolerant(this, 0, from, -1, null, path, match);
+  }
+
+  /**
+   * Walks the tree for the given path like {@link #getValueTolerant(CharSequence, NodeMatch)} from
+   * node {@code n}, whose label from char {@code from} on starts at the given offset. If a choice
+   * is given, the child at that position is walked after the label of node {@code n}, instead of
+   * the child selected by the path. The given node, if any, matches the path without its trailing
+   * slashes.
+   */
+  private NodeMatch<T> getValueTolerant(TreeNode<T> n, int offset, int from, int choice,
+                                        TreeNode<T> trailing, CharSequence path, NodeMatch<T> match) {
+    final int length = path.length();
+
+    // outer loop for walking the tree
+    walk:
+    for (; ; ) {
+      final String label = n.path;
+      final int start = offset;
+      final int labelFrom = from;
+      final int end = TreeNodeUtil.matchSlashes(path, offset, label, from, label.length());
+      if (end < 0) {
+        // the path may lack the trailing slash of this node
+        if (n.value != null && label.length() > from && label.charAt(label.length() - 1) == '/' &&
+          TreeNodeUtil.matchSlashes(path, offset, label, from, label.length() - 1) == length) {
+          return NodeMatch.found(match, path, label, n.route, n.value, false);
+        }
+        break;
+      }
+      offset = end;
+      from = 0;
+
+      if (offset == length) {
+        if (n.value != null) {
+          return NodeMatch.found(match, path, label, n.route, n.value, false);
+        }
+
+        // the path may lack a trailing slash
+        final int i = n.indexOf('/');
+        if (i >= 0) {
+          final TreeNode<T> child = n.children[i];
+          if (child.path.length() == 1 && child.value != null) {
+            return NodeMatch.found(match, path, child.path, child.route, child.value, false);
+          }
+        }
+        break;
+      }
+
+      int i = choice; // the wildcard child to walk
+      if (i < 0) {
+        if (n.value != null && TreeNodeUtil.skipSlashes(path, offset) == length) {
+          trailing = n;
+        }
+
+        if (!n.wildChild) {
+          char c = path.charAt(offset);
+          for (i = 0; i < n.indices.length; i++) {
+            if (c == n.indices[i]) {
+              // the catch-all child is indexed by the same char as the static child
+              if (i + 1 < n.indices.length && c == n.indices[i + 1]) {
+                return getValueTolerantBacktracking(n, start, labelFrom, offset, trailing, path, match);
+              }
+              n = n.children[i];
+              continue walk;
+            }
+          }
+          break;
+        }
+
+        // static children or other params next to the wildcard child
+        if (n.children.length > 1) {
+          return getValueTolerantBacktracking(n, start, labelFrom, offset, trailing, path, match);
+        }
+        i = 0;
+      } else {
+        choice = -1;
+        if (i < n.indices.length) {
+          n = n.children[i];
+          continue walk;
+        }
+      }
+
+      // handle wildcard child
+      final TreeNode<T> child = n.children[i];
+      switch (child.nodeType) {
+        case PARAM: {
+          // find param end (either '/' or path end), empty segments were collapsed
+          int paramEnd = offset;
+          while (paramEnd < length && path.charAt(paramEnd) != '/') {
+            paramEnd++;
+          }
+          if (paramEnd == offset || !child.accepts(path, offset, paramEnd)) {
+            break walk;
+          }
+          n = child;
+
+          // save param value
+          match = NodeMatch.capture(match, path, n.path, offset, paramEnd, maxParams);
+
+          if (paramEnd < length) {
+            if (n.value != null && TreeNodeUtil.skipSlashes(path, paramEnd) == length) {
+              trailing = n;
+            }
+            if (n.children.length > 0) {
+              offset = paramEnd;
+              n = n.children[0];
+              continue walk;
+            }
+            break walk;
+          }
+
+          if (n.value != null) {
+            return NodeMatch.found(match, path, n.path, n.route, n.value, false);
+          }
+
+          // the path may lack a trailing slash
+          if (n.children.length == 1 && "/".equals(n.children[0].path) && n.children[0].value != null) {
+            n = n.children[0];
+            return NodeMatch.found(match, path, n.path, n.route, n.value, false);
+          }
+          break walk;
+        }
+
+        case CATCH_ALL: {
+          n = child;
+
+          // save param value
+          match = NodeMatch.capture(match, path, n.path, offset, length, maxParams);
+
+          return NodeMatch.found(match, path, n.path, n.route, n.value, false);
+        }
+
+        default:
+          throw new IllegalStateException("invalid node type");
+      }
+    }
+
+    // the path may have an extra trailing slash, nothing was captured after it
+    if (trailing != null) {
+      return NodeMatch.found(match, path, trailing.path, trailing.route, trailing.value, false);
+    }
+    return NodeMatch.notFound(match, false);
+  }
+
+  /**
+   * Walks the children of node {@code n} like {@link #getValueBacktracking(TreeNode, int,
+   * CharSequence, NodeMatch)}, but tolerating differences in slashes. The label of node {@code n}
+   * from char {@code from} on starts at {@code start} and ends at {@code offset}.
+   */
+  private NodeMatch<T> getValueTolerantBacktracking(TreeNode<T> n, int start, int from, int offset,
+                                                    TreeNode<T> trailing, CharSequence path,
+                                                    NodeMatch<T> match) {
+    if (match == null) {
+      match = new NodeMatch<>(maxParams);
+      match.reset(path);
+    }
+    final int paramCount = match.paramCount;
+    final char c = path.charAt(offset);
+
+    for (int i = n.nextChoice(-1, c); i >= 0; i = n.nextChoice(i, c)) {
+      getValueTolerant(n, start, from, i, null, path, match);
+      if (match.value != null) {
+        return match;
+      }
+      match.paramCount = paramCount;
+    }
+
+    // the path may have an extra trailing slash, nothing was captured after it
+    if (trailing != null) {
+      return NodeMatch.found(match, path, trailing.path, trailing.route, trailing.value, false);
+    }
+    return NodeMatch.notFound(match, false);
+  }
+
+  /**
+   * Returns the position of the child indexed by the given char, or -1 if there is none.
+   */
+  private int indexOf(char c) {
+    for (int i = 0; i < indices.length; i++) {
+      if (indices[i] == c) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Walks the tree for the given path ignoring case, appending the matched path to
+   * {@code ciPath}, if any, and capturing parameters into the given match, if any. Since a char may be
+   * indexed in more than one case, every case but the last one is tried recursively.
+   *
+   * @return the node with the value of the path, or {@code null} if there is none
+   */
+  private TreeNode<T> findCaseInsensitive(CharSequence path, StringBuilder ciPath, NodeMatch<T> match,
+                                          boolean fixTrailingSlash) {
+    return findCaseInsensitive(this, -1, path, 0, ciPath, match, fixTrailingSlash);
+  }
+
+  /**
+   * Walks the child at the given position of node {@code n}, whose label ends at the given offset,
+   * ignoring case, undoing its changes to the result if nothing was found.
+   */
+  private TreeNode<T> findCaseInsensitiveChild(TreeNode<T> n, int choice, CharSequence path, int offset,
+                                               StringBuilder ciPath, NodeMatch<T> match,
+                                               boolean fixTrailingSlash) {
+    final int mark = ciPath != null ? ciPath.length() : 0;
+    final int paramCount = match != null ? match.paramCount : 0;
+    final TreeNode<T> found = findCaseInsensitive(n, choice, path, offset, ciPath, match, fixTrailingSlash);
+    if (found == null) {
+      if (ciPath != null) {
+        ciPath.setLength(mark);
+      }
+      if (match != null) {
+        match.paramCount = paramCount;
+      }
+    }
+    return found;
+  }
+
+  /**
+   * Walks the tree ignoring case from node {@code n}. If a choice is given, the label of node
+   * {@code n} ends at the given offset and the child at that position is walked next; otherwise
+   * the label starts at the given offset.
+   */
+  private TreeNode<T> findCaseInsensitive(TreeNode<T> n, int choice, CharSequence path, int offset,
+                                          StringBuilder ciPath, NodeMatch<T> match,
+                                          boolean fixTrailingSlash) {
+    final int length = path.length();
+    TreeNode<T> parent = null;
+
+    // outer loop for walking the tree
+    walk:
+    for (; ; ) {
+      int i = choice; // the wildcard child to walk
+      if (i < 0) {
+        final int prefixLength = n.path.length();
+        if (length - offset < prefixLength ||
+          !TreeNodeUtil.regionMatchesIgnoreCase(path, offset, n.path, prefixLength)) {
+          break;
+        }
+
+        // add common prefix to result
+        offset += prefixLength;
+        if (ciPath != null) {
+          ciPath.append(n.path);
+        }
+
+        if (offset == length) {
+          // We should have reached the node containing the handle.
+          // Check if this node has a handle registered.
+          if (n.value != null) {
+            return n;
+          }
+
+          // No handle found.
+          // Try to fix the path by removing or adding a trailing slash
+          if (fixTrailingSlash) {
+            if ("/".equals(n.path) && parent != null && parent.value != null) {
+              if (ciPath != null) {
+                ciPath.setLength(ciPath.length() - 1);
+              }
+              return parent;
+            }
+            final int slash = n.indexOf('/');
+            if (slash >= 0 && slash < n.staticChildren()) {
+              final TreeNode<T> child = n.children[slash];
+              if (child.path.length() == 1 && child.value != null) {
+                if (ciPath != null) {
+                  ciPath.append('/');
+                }
+                return child;
+              }
+            }
+            final int catchAll = n.catchAllChild();
+            if (catchAll >= 0 && n.children[catchAll].children[0].value != null) {
+              if (ciPath != null) {
+                ciPath.append('/');
+              }
+              return n.children[catchAll].children[0];
+            }
+          }
+          return null;
+        }
+
+        // If this node does not have a wildcard (param or catchAll)
+        // child, we can just look up the next child node and continue
+        // to walk down the tree
+        if (!n.wildChild) {
+          final char c = path.charAt(offset);
+          final char lower = Character.toLowerCase(c);
+          final char upper = Character.toUpperCase(c);
+          final int exact = n.indexOf(c);
+          final int lowerCase = lower != c ? n.indexOf(lower) : -1;
+          final int upperCase = upper != c && upper != lower ? n.indexOf(upper) : -1;
+          int last = upperCase >= 0 ? upperCase : lowerCase >= 0 ? lowerCase : exact;
+
+          // the same path may be registered with both cases of this char, try all but the last
+          if (exact >= 0 && exact != last) {
+            final TreeNode<T> found =
+              findCaseInsensitiveChild(n, exact, path, offset, ciPath, match, fixTrailingSlash);
+            if (found != null) {
+              return found;
+            }
+          }
+          if (lowerCase >= 0 && lowerCase != last) {
+            final TreeNode<T> found =
+              findCaseInsensitiveChild(n, lowerCase, path, offset, ciPath, match, fixTrailingSlash);
+            if (found != null) {
+              return found;
+            }
+          }
+
+          // the catch-all child is indexed by the same char as the static child
+          if (last >= 0 && last + 1 < n.indices.length && n.indices[last + 1] == n.indices[last]) {
+            final TreeNode<T> found =
+              findCaseInsensitiveChild(n, last, path, offset, ciPath, match, fixTrailingSlash);
+            if (found != null) {
+              return found;
+            }
+            last++;
+          }
+
+          if (last >= 0) {
+            parent = n;
+            n = n.children[last];
+            continue;
+          }
+
+          // Nothing found. We can recommend to redirect to the same URL
+          // without a trailing slash if a leaf exists for that path
+          if (fixTrailingSlash && c == '/' && offset + 1 == length && n.value != null) {
+            return n;
+          }
+          return null;
+        }
+
+        // static children or other params next to the wildcard child
+        if (n.children.length > 1) {
+          return findCaseInsensitiveBacktracking(n, path, offset, ciPath, match, fixTrailingSlash);
+        }
+        i = 0;
+      } else {
+        choice = -1;
+        if (i < n.indices.length) {
+          parent = n;
+          n = n.children[i];
+          continue;
+        }
+      }
+
+      // handle wildcard child
+      final TreeNode<T> child = n.children[i];
+      switch (child.nodeType) {
+        case PARAM: {
+          // find param end (either '/' or path end)
+          int end = offset;
+          while (end < length && path.charAt(end) != '/') {
+            end++;
+          }
+
+          if (!child.accepts(path, offset, end)) {
+            return null;
+          }
+          n = child;
+
+          // add param value to case insensitive path
+          if (ciPath != null) {
+            ciPath.append(path, offset, end);
+          }
+          if (match != null) {
+            NodeMatch.capture(match, path, n.path, offset, end, maxParams);
+          }
+
+          // we need to go deeper!
+          if (end < length) {
+            if (n.children.length > 0) {
+              offset = end;
+              parent = n;
+              n = n.children[0];
+              continue walk;
+            }
+
+            // ... but we can't
+            if (fixTrailingSlash && length == end + 1 && n.value != null) {
+              return n;
+            }
+            return null;
+          }
+
+          if (n.value != null) {
+            return n;
+          } else if (fixTrailingSlash && n.children.length == 1) {
+            // No handle found. Check if a handle for this path + a
+            // trailing slash exists
+            n = n.children[0];
+            if ("/".equals(n.path) && n.value != null) {
+              if (ciPath != null) {
+                ciPath.append('/');
+              }
+              return n;
+            }
+          }
+          return null;
+        }
+
+        case CATCH_ALL: {
+          n = child;
+          if (ciPath != null) {
+            ciPath.append(path, offset, length);
+          }
+          if (match != null) {
+            NodeMatch.capture(match, path, n.path, offset, length, maxParams);
+          }
+          return n;
+        }
+
+        default:
+          throw new IllegalStateException("invalid node type");
+      }
+    }
+
+    // Nothing found.
+    // Try to fix the path by adding / removing a trailing slash
+    if (fixTrailingSlash) {
+      final int remaining = length - offset;
+      if (remaining == 1 && path.charAt(offset) == '/' && parent != null && parent.value != null) {
+        return parent;
+      }
+      if (remaining + 1 == n.path.length() && n.path.charAt(remaining) == '/' &&
+        TreeNodeUtil.regionMatchesIgnoreCase(path, offset, n.path, remaining) && n.value != null) {
+        if (ciPath != null) {
+          ciPath.append(n.path);
+        }
+        return n;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Walks the children of node {@code n} ignoring case, in order of precedence, until one of them
+   * has a value for the path: the static children indexed by the next char in any case, the param
+   * children, and the catch-all child. The label of node {@code n} ends at the given offset.
+   */
+  private TreeNode<T> findCaseInsensitiveBacktracking(TreeNode<T> n, CharSequence path, int offset,
+                                                      StringBuilder ciPath, NodeMatch<T> match,
+                                                      boolean fixTrailingSlash) {
+    final char c = path.charAt(offset);
+    final char lower = Character.toLowerCase(c);
+    final char upper = Character.toUpperCase(c);
+
+    final int staticChildren = n.staticChildren();
+    for (int i = 0; i < staticChildren; i++) {
+      final char index = n.indices[i];
+      if (index == c || index == lower || index == upper) {
+        final TreeNode<T> found = findCaseInsensitiveChild(n, i, path, offset, ciPath, match, fixTrailingSlash);
+        if (found != null) {
+          return found;
+        }
+      }
+    }
+    // the wildcard children after the static children
+    for (int i = n.nextChoice(staticChildren - 1, c); i >= 0; i = n.nextChoice(i, c)) {
+      final TreeNode<T> found = findCaseInsensitiveChild(n, i, path, offset, ciPath, match, fixTrailingSlash);
+      if (found != null) {
+        return found;
+      }
+    }
+
+    // Nothing found. We can recommend to redirect to the same URL
+    // without a trailing slash if a leaf exists for that path
+    if (fixTrailingSlash && c == '/' && offset + 1 == path.length() && n.value != null) {
+      return n;
     }
+    return null;
   }
 
   @Override
@@ -12,11 +12,20 @@ public final class TreeNodeUtil {
       throw new NullPointerException();
     }
     int n = 0;
-    for (char c : path.toCharArray()) {
-      if (c != ':' && c != '*') {
-        continue;
+    boolean param = false;
+    for (int i = 0; i < path.length(); i++) {
+      char c = path.charAt(i);
+      if (c == '/') {
+        param = false;
+      } else if (param && c == '<') {
+        // the constraint of the param, up to the end of the segment
+        while (i + 1 < path.length() && path.charAt(i + 1) != '/') {
+          i++;
+        }
+      } else if (c == ':' || c == '*') {
+        param = c == ':';
+        n++;
       }
-      n++;
     }
     if (n >= Short.MAX_VALUE) {
       return Short.MAX_VALUE;
@@ -24,6 +33,140 @@ public final class TreeNodeUtil {
     return (short) n;
   }
 
+  /**
+   * Tests if the region of the given sequence starting at {@code offset} is equal to the first
+   * {@code length} chars of the given string.
+   */
+  static boolean regionMatches(final CharSequence cs, int offset, final String other, int length) {
+    if (cs instanceof String) {
+      return ((String) cs).regionMatches(offset, other, 0, length);
+    }
+    for (int i = 0; i < length; i++) {
+      if (cs.charAt(offset + i) != other.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Tests if the region of the given sequence starting at {@code offset} is equal to the first
+   * {@code length} chars of the given string, ignoring case like
+   * {@link String#regionMatches(boolean, int, String, int, int)}.
+   */
+  static boolean regionMatchesIgnoreCase(final CharSequence cs, int offset, final String other,
+                                         int length) {
+    if (cs instanceof String) {
+      return ((String) cs).regionMatches(true, offset, other, 0, length);
+    }
+    for (int i = 0; i < length; i++) {
+      final char c1 = cs.charAt(offset + i);
+      final char c2 = other.charAt(i);
+      if (c1 != c2 && Character.toUpperCase(c1) != Character.toUpperCase(c2) &&
+        Character.toLowerCase(c1) != Character.toLowerCase(c2)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Tests if the region of the given sequence starting at {@code offset} matches the chars
+   * {@code from .. to} of the given string, where a run of slashes in the sequence matches a single
+   * slash of the string. A slash at the end of the region swallows all slashes following it.
+   *
+   * @return the offset in the sequence after the matched region, or -1 if it does not match
+   */
+  static int matchSlashes(final CharSequence cs, int offset, final String other, int from, int to) {
+    final int length = cs.length();
+    for (int i = from; i < to; i++) {
+      final char c = other.charAt(i);
+      if (offset == length || cs.charAt(offset) != c) {
+        return -1;
+      }
+      offset = c == '/' ? skipSlashes(cs, offset + 1) : offset + 1;
+    }
+    return offset;
+  }
+
+  /**
+   * Returns the offset of the first char at or after {@code offset} which is not a slash.
+   */
+  static int skipSlashes(final CharSequence cs, int offset) {
+    final int length = cs.length();
+    while (offset < length && cs.charAt(offset) == '/') {
+      offset++;
+    }
+    return offset;
+  }
+
+  /**
+   * Returns the name of a wildcard node path, i.e. {@code name} for {@code :name},
+   * {@code :name<constraint>} and {@code /*name}.
+   *
+   * @param wildcard the path of a param or catch-all node
+   * @return the wildcard name
+   */
+  static String wildcardName(final String wildcard) {
+    if (wildcard.charAt(0) == ':') {
+      return wildcard.substring(1, wildcardNameEnd(wildcard));
+    }
+    return wildcard.substring(2);
+  }
+
+  /**
+   * Tests if the given wildcard node path has the given name.
+   *
+   * @see #wildcardName(String)
+   */
+  static boolean wildcardNameEquals(final String wildcard, final String name) {
+    final int nameStart = wildcard.charAt(0) == ':' ? 1 : 2;
+    final int nameEnd = nameStart == 1 ? wildcardNameEnd(wildcard) : wildcard.length();
+    return nameEnd - nameStart == name.length() && wildcard.regionMatches(nameStart, name, 0, name.length());
+  }
+
+  /**
+   * Returns the end of the name of a param node path, i.e. the start of its constraint, if any.
+   */
+  private static int wildcardNameEnd(final String wildcard) {
+    final int constraint = wildcard.indexOf('<');
+    return constraint < 0 ? wildcard.length() : constraint;
+  }
+
+  /**
+   * Returns an estimate of the heap used by a radix tree, in bytes: its nodes with their paths,
+   * child arrays, param constraints and registered paths, but not their values.
+   * <p>
+   * Each node is counted with its owner field, the reference to the edit which may modify it,
+   * which every node has for copy-on-write editing. The field of a published node is cleared, so
+   * the edits themselves are neither retained nor counted.
+   *
+   * @param tree the tree
+   * @return the estimated number of bytes
+   * @see CompiledTree#memoryFootprint()
+   */
+  public static long memoryFootprint(TreeNode<?> tree) {
+    final MemoryFootprint footprint = new MemoryFootprint();
+    memoryFootprint(tree, footprint);
+    return footprint.bytes();
+  }
+
+  private static void memoryFootprint(TreeNode<?> node, MemoryFootprint footprint) {
+    // path, nodeType, indices, children, value, route, constraint, owner; priority, maxParams,
+    // wildChild
+    if (!footprint.object(node, 8, 4 + 2 + 1)) {
+      return;
+    }
+    footprint.string(node.path);
+    footprint.string(node.route);
+    footprint.array(node.indices);
+    footprint.array(node.children);
+    footprint.constraint(node.constraint);
+    for (TreeNode<?> child : node.children) {
+      memoryFootprint(child, footprint);
+    }
+  }
+
   /**
    * Prints a radix tree to <code>System.out</code>.
    *
@@ -0,0 +1,54 @@
+package com.zbiljic.switchz;
+
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class LatencyHistogramTest {
+
+  @Test
+  public void testBuckets() throws Exception {
+    LatencyHistogram histogram = new LatencyHistogram();
+
+    for (long value : new long[]{0, 1, 15, 16, 17, 100, 1000, 123456789, Long.MAX_VALUE}) {
+      int bucket = LatencyHistogram.bucketIndex(value);
+      long lower = histogram.getLowerBound(bucket);
+      assertTrue(lower <= value, value + " below " + lower);
+      assertTrue(value - lower <= value / 8, value + " too far from " + lower);
+      if (bucket + 1 < histogram.getBucketCount()) {
+        assertTrue(histogram.getLowerBound(bucket + 1) > value, String.valueOf(value));
+      }
+    }
+    assertEquals(LatencyHistogram.bucketIndex(Long.MAX_VALUE), histogram.getBucketCount() - 1);
+    for (int i = 1; i < histogram.getBucketCount(); i++) {
+      assertEquals(LatencyHistogram.bucketIndex(histogram.getLowerBound(i)), i);
+    }
+  }
+
+  @Test
+  public void testPercentiles() throws Exception {
+    LatencyHistogram histogram = new LatencyHistogram();
+    assertEquals(histogram.getValueAtPercentile(50), 0);
+
+    for (int i = 1; i <= 100; i++) {
+      histogram.record(i * 1000);
+    }
+    histogram.record(-5);
+    assertEquals(histogram.getTotalCount(), 101);
+    assertEquals(histogram.getCount(0), 1);
+    assertEquals(histogram.getValueAtPercentile(0), 0);
+    assertEquals(histogram.getValueAtPercentile(50), 49152);
+    assertEquals(histogram.getValueAtPercentile(100), 98304);
+
+    histogram.reset();
+    assertEquals(histogram.getTotalCount(), 0);
+
+    try {
+      histogram.getValueAtPercentile(101);
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+}
@@ -0,0 +1,115 @@
+package com.zbiljic.switchz;
+
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class MethodMatcherTest {
+
+  private static LinkedHashSet<String> methods(String... methods) {
+    return new LinkedHashSet<>(Arrays.asList(methods));
+  }
+
+  @Test
+  public void testHttpMethodLookup() throws Exception {
+    for (HttpMethod method : HttpMethod.values()) {
+      assertSame(HttpMethod.lookup(method.name()), method);
+      assertSame(HttpMethod.lookup(new StringBuilder(method.name())), method);
+    }
+
+    for (String name : new String[]{"", "G", "GE", "GETS", "get", "POS", "PROPFIND", "PURGE", "OPTION"}) {
+      assertNull(HttpMethod.lookup(name), name);
+    }
+  }
+
+  @Test
+  public void testMatch() throws Exception {
+    MethodMatcher<String> matcher = new MethodMatcher<String>()
+      .addPath(HttpMethod.GET, "/users", "list")
+      .addPath("POST", "/users", "create")
+      .addPath(HttpMethod.GET, "/users/:id", "get")
+      .addPath(HttpMethod.DELETE, "/users/:id", "delete")
+      .addPath("PURGE", "/users/:id", "purge");
+
+    assertEquals(matcher.match(HttpMethod.GET, "/users").getValue(), "list");
+    assertEquals(matcher.match("POST", "/users").getValue(), "create");
+    assertEquals(matcher.match(HttpMethod.DELETE, "/users/42").getParameterValue("id"), "42");
+    assertEquals(matcher.match("PURGE", "/users/42").getValue(), "purge");
+    assertEquals(matcher.match(new StringBuilder("PURGE"), "/users/42").getValue(), "purge");
+
+    assertNull(matcher.match(HttpMethod.PUT, "/users").getValue());
+    assertNull(matcher.match("LOCK", "/users/42").getValue());
+    assertTrue(matcher.match(HttpMethod.GET, "/users/").isTrailingSlashRedirect());
+
+    MutableNodeMatch<String> match = new MutableNodeMatch<>();
+    assertSame(matcher.match("GET", "/users/7", match), match);
+    assertEquals(match.getValue(), "get");
+    assertEquals(match.getParameterValue(0), "7");
+    assertNull(matcher.match("PUT", "/users/7", match).getValue());
+    assertEquals(match.getParameterCount(), 0);
+  }
+
+  @Test
+  public void testAllowedMethods() throws Exception {
+    MethodMatcher<String> matcher = new MethodMatcher<String>()
+      .addPath("PURGE", "/users/:id", "purge")
+      .addPath(HttpMethod.DELETE, "/users/:id", "delete")
+      .addPath(HttpMethod.GET, "/users/:id", "get")
+      .addPath("LOCK", "/users/:id", "lock")
+      .addPath(HttpMethod.POST, "/users", "create")
+      .addPath(HttpMethod.GET, "/files/*filepath", "files");
+
+    // standard methods first
+    assertEquals(matcher.allowedMethods("/users/42"), methods("GET", "DELETE", "LOCK", "PURGE"));
+    assertEquals(matcher.allowedMethods("/users"), methods("POST"));
+    assertEquals(matcher.allowedMethods("/files/a/b"), methods("GET"));
+    assertEquals(matcher.allowedMethods("/users/42/"), Collections.emptySet());
+    assertEquals(matcher.allowedMethods("/"), Collections.emptySet());
+
+    try {
+      matcher.allowedMethods("/users").add("PUT");
+      fail("unmodifiable set expected");
+    } catch (UnsupportedOperationException expected) {
+    }
+  }
+
+  @Test
+  public void testAllowedMethodsConflictingPaths() throws Exception {
+    // the paths of GET and POST overlap, so they are not kept in one tree
+    MethodMatcher<String> matcher = new MethodMatcher<String>()
+      .addPath(HttpMethod.GET, "/users/:id", "get")
+      .addPath(HttpMethod.POST, "/users/new", "create")
+      .addPath("PURGE", "/users/:id", "purge");
+
+    assertEquals(matcher.match(HttpMethod.GET, "/users/new").getValue(), "get");
+    assertEquals(matcher.match(HttpMethod.POST, "/users/new").getValue(), "create");
+
+    assertEquals(matcher.allowedMethods("/users/new"), methods("GET", "POST", "PURGE"));
+    assertEquals(matcher.allowedMethods("/users/42"), methods("GET", "PURGE"));
+    assertEquals(matcher.allowedMethods("/users"), Collections.emptySet());
+  }
+
+  @Test
+  public void testAddPathConflict() throws Exception {
+    MethodMatcher<String> matcher = new MethodMatcher<String>()
+      .addPath(HttpMethod.GET, "/users/:id", "get");
+
+    try {
+      matcher.addPath(HttpMethod.GET, "/users/:name", "other");
+      fail("wildcard conflict expected");
+    } catch (IllegalArgumentException expected) {
+    }
+
+    // a failed registration changes nothing
+    assertEquals(matcher.match(HttpMethod.GET, "/users/42").getValue(), "get");
+    assertEquals(matcher.allowedMethods("/users/42"), methods("GET"));
+  }
+}
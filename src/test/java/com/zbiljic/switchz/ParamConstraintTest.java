@@ -0,0 +1,84 @@
+package com.zbiljic.switchz;
+
+import org.testng.annotations.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.fail;
+
+public class ParamConstraintTest {
+
+  /** Checks the constraint on a value in the middle of a path, as chars and as bytes. */
+  private void check(String constraint, String value, boolean expected) {
+    ParamConstraint parsed = ParamConstraint.parse(constraint);
+    String path = "/a/" + value + "/b";
+    assertEquals(parsed.matches(path, 3, 3 + value.length()), expected, constraint + " " + value);
+
+    byte[] bytes = path.getBytes(StandardCharsets.UTF_8);
+    ByteBuffer buffer = ByteBuffer.wrap(bytes);
+    assertEquals(parsed.matches(buffer, 3, bytes.length - 2), expected, constraint + " " + value);
+  }
+
+  @Test
+  public void testNamed() throws Exception {
+    check("int", "42", true);
+    check("int", "0042", true);
+    check("int", "", false);
+    check("int", "-1", false);
+    check("int", "4a", false);
+    check("int", "٤٢", false); // non-ASCII digits
+
+    check("alpha", "abcXYZ", true);
+    check("alpha", "abc1", false);
+    check("alnum", "abc1", true);
+    check("alnum", "abc_1", false);
+    check("hex", "deadBEEF09", true);
+    check("hex", "xyz", false);
+
+    check("uuid", "123e4567-e89b-12d3-a456-426614174000", true);
+    check("uuid", "123E4567-E89B-12D3-A456-426614174000", true);
+    check("uuid", "123e4567e89b12d3a456426614174000", false);
+    check("uuid", "123e4567-e89b-12d3-a456-42661417400g", false);
+    check("uuid", "123e4567-e89b-12d3-a456-4266141740000", false);
+  }
+
+  @Test
+  public void testCharClass() throws Exception {
+    check("[a-z-]+", "my-post", true);
+    check("[a-z-]+", "My-post", false);
+    check("[a-z-]+", "", false);
+    check("[a-z]*", "", true);
+    check("[a-z0-9]{3}", "ab1", true);
+    check("[a-z0-9]{3}", "ab12", false);
+    check("[a-z0-9]{2,4}", "ab12", true);
+    check("[a-z0-9]{2,4}", "a", false);
+    check("[.~_]+", "~_.", true);
+    check("[a-z]+", "ä", false);
+  }
+
+  @Test
+  public void testRegex() throws Exception {
+    check("v\\d+(\\.\\d+)*", "v1.2.3", true);
+    check("v\\d+(\\.\\d+)*", "v1.", false);
+    check("[^/]+\\.json", "data.json", true);
+    check("[^/]+\\.json", "data.xml", false);
+    check("ü+", "üü", true);
+    check("(?i)[a-z]+", "ABC", true);
+
+    // the whole value must match
+    check("ab", "xaby", false);
+
+    try {
+      ParamConstraint.parse("[a-z");
+      fail("IllegalArgumentException expected");
+    } catch (IllegalArgumentException expected) {
+    }
+    try {
+      ParamConstraint.parse("");
+      fail("IllegalArgumentException expected");
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+}
@@ -0,0 +1,592 @@
+package com.zbiljic.switchz;
+
+import org.testng.annotations.Test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.fail;
+
+public class PathMatcherTest {
+
+  private PathMatcher<String> newMatcher() {
+    return new PathMatcher<>("default")
+      .addPath("/users", "users")
+      .addPath("/users/:id", "user")
+      .addPath("/users/:id/files/*filepath", "files");
+  }
+
+  @Test
+  public void testMatch() throws Exception {
+    PathMatcher<String> matcher = newMatcher();
+
+    assertEquals(matcher.match("/users").getValue(), "users");
+    assertEquals(matcher.match("/users/").getValue(), "users"); // normalized
+    assertEquals(matcher.match("users").getValue(), "users"); // normalized
+
+    NodeMatch<String> match = matcher.match("/users/42");
+    assertEquals(match.getValue(), "user");
+    assertEquals(match.getParameterValue("id"), "42");
+
+    assertEquals(matcher.match("/unknown").getValue(), "default");
+    assertEquals(matcher.match("/unknown").getMatched(), "");
+  }
+
+  @Test
+  public void testMatchInto() throws Exception {
+    PathMatcher<String> matcher = newMatcher();
+    MutableNodeMatch<String> match = new MutableNodeMatch<>();
+
+    assertSame(matcher.match("/users/42/files/a/b.txt", match), match);
+    assertEquals(match.getValue(), "files");
+    assertEquals(match.getParameterCount(), 2);
+    assertEquals(match.getParameterName(0), "id");
+    assertEquals(match.getParameterValue(0), "42");
+    assertEquals(match.getParameterStart(1), 15);
+    assertEquals(match.getParameterEnd(1), 23);
+    assertEquals(match.getParameterValue("filepath"), "/a/b.txt");
+    assertNull(match.getParameterValue("missing"));
+
+    assertEquals(matcher.match(new StringBuilder("/users/7/"), match).getValue(), "user");
+    assertEquals(match.getParametersAsMap().get("id"), "7");
+
+    assertEquals(matcher.match("/unknown", match).getValue(), "default");
+    assertEquals(match.getParameterCount(), 0);
+    assertEquals(match.getParameters().length, 0);
+  }
+
+  @Test
+  public void testSlashMatching() throws Exception {
+    PathMatcher<String> tolerant = newMatcher()
+      .addPath("/docs/", "docs")
+      .addPath("/cmd/:tool/", "tool");
+    MutableNodeMatch<String> match = new MutableNodeMatch<>();
+
+    for (String path : new String[]{"/users/42", "users/42", "//users//42", "/users/42/", "/users/42//"}) {
+      assertEquals(tolerant.match(path).getValue(), "user", path);
+      assertEquals(tolerant.match(path).getParameterValue("id"), "42", path);
+      assertEquals(tolerant.match(new StringBuilder(path), match).getParameterValue("id"), "42", path);
+    }
+    assertEquals(tolerant.match("/docs").getValue(), "docs");
+    assertEquals(tolerant.match("docs//").getValue(), "docs");
+    assertEquals(tolerant.match("/cmd/vet").getParameterValue("tool"), "vet");
+    assertEquals(tolerant.match("/users//42/files//a").getParameterValue("filepath"), "//a");
+    assertEquals(tolerant.match("/users//").getValue(), "users");
+    assertEquals(tolerant.match("").getValue(), "default");
+    assertEquals(tolerant.match("/users/42/x").getValue(), "default");
+
+    PathMatcher<String> strict = new PathMatcher<String>("default", SlashMatching.STRICT)
+      .addPath("/users/:id", "user")
+      .addPath("/docs/", "docs");
+    assertEquals(strict.match("/users/42").getValue(), "user");
+    assertEquals(strict.match("/docs/").getValue(), "docs");
+    for (String path : new String[]{"users/42", "//users/42", "/users/42/", "/docs", "/docs//"}) {
+      assertEquals(strict.match(path).getValue(), "default", path);
+      assertEquals(strict.match(path, match).getValue(), "default", path);
+    }
+  }
+
+  @Test
+  public void testFindCaseInsensitivePath() throws Exception {
+    PathMatcher<String> matcher = newMatcher();
+
+    assertEquals(matcher.findCaseInsensitivePath("/Users/42", false), "/users/42");
+    assertEquals(matcher.findCaseInsensitivePath("/USERS/Ab/FILES/X.txt", false), "/users/Ab/files/X.txt");
+    assertEquals(matcher.findCaseInsensitivePath("/Users/", true), "/users");
+    assertNull(matcher.findCaseInsensitivePath("/Users/", false));
+    assertNull(matcher.findCaseInsensitivePath("/groups", true));
+  }
+
+  @Test
+  public void testCache() throws Exception {
+    PathMatcher<String> matcher = new PathMatcher<String>("default", SlashMatching.TOLERANT, 8)
+      .addPath("/users", "users")
+      .addPath("/users/:id", "user")
+      .addPath("/health", "health");
+    MutableNodeMatch<String> match = new MutableNodeMatch<>();
+
+    // registered static paths are answered by the index, only other paths are cached
+    assertEquals(matcher.match("/health").getValue(), "health");
+    assertEquals(matcher.getCacheMissCount(), 0);
+    assertEquals(matcher.match("/health/").getValue(), "health");
+    assertEquals(matcher.getCacheHitCount(), 0);
+    assertEquals(matcher.getCacheMissCount(), 1);
+    assertSame(matcher.match("/health/"), matcher.match(new String("/health/")));
+    assertEquals(matcher.match(new StringBuilder("/health/"), match).getValue(), "health");
+    assertEquals(match.getMatched(), matcher.match("/health").getMatched());
+    assertEquals(match.getParameterCount(), 0);
+    assertEquals(matcher.getCacheHitCount(), 3);
+
+    // paths with parameters and misses are not cached
+    assertEquals(matcher.match("/users/42").getParameterValue("id"), "42");
+    assertEquals(matcher.match("/users/43", match).getParameterValue("id"), "43");
+    assertEquals(matcher.match("/unknown").getValue(), "default");
+    assertEquals(matcher.match("/unknown").getValue(), "default");
+    assertEquals(matcher.getCacheHitCount(), 3);
+    assertEquals(matcher.getCacheMissCount(), 1);
+
+    // every change of the tree starts a new cache
+    assertEquals(matcher.replacePath("/health", "health2"), "health");
+    assertEquals(matcher.match("/health/").getValue(), "health2");
+    matcher.addPath("/unknown/", "known");
+    assertEquals(matcher.match("/unknown").getValue(), "known");
+    matcher.removePath("/unknown/");
+    assertEquals(matcher.match("/unknown").getValue(), "default");
+
+    // the cache is bounded, evicted paths are walked again
+    for (int i = 0; i < 100; i++) {
+      matcher.addPath("/static/" + i, "static" + i);
+    }
+    for (int round = 0; round < 3; round++) {
+      for (int i = 0; i < 100; i++) {
+        assertEquals(matcher.match("static/" + i).getValue(), "static" + i);
+        assertEquals(matcher.match("/health/", match).getValue(), "health2");
+      }
+    }
+  }
+
+  @Test
+  public void testStaticOverParam() throws Exception {
+    PathMatcher<String> matcher = new PathMatcher<String>("default", SlashMatching.TOLERANT, 8)
+      .addPath("/users/:id", "user")
+      .addPath("/users/:id/edit", "edit");
+
+    // cached as a match of the param, until the static path is added
+    assertEquals(matcher.match("/users/new").getValue(), "user");
+    assertEquals(matcher.match("/users/new").getValue(), "user");
+    matcher.addPath("/users/new", "new");
+    matcher.addPath("/users/*rest", "rest");
+    assertEquals(matcher.match("/users/new").getValue(), "new");
+    assertEquals(matcher.match("/users/new/").getValue(), "new");
+    assertEquals(matcher.match("/users/new/edit").getParameterValue("id"), "new");
+    assertEquals(matcher.match("/users/new/x").getParameterValue("rest"), "/new/x");
+    assertEquals(matcher.match("/users/42").getParameterValue("id"), "42");
+
+    assertEquals(matcher.removePath("/users/new"), "new");
+    assertEquals(matcher.match("/users/new").getValue(), "user");
+  }
+
+  @Test
+  public void testStaticIndex() throws Exception {
+    PathMatcher<String> matcher = newMatcher()
+      .addPath("/docs/", "docs")
+      .addPath("/docs/go1.html", "go1");
+    MutableNodeMatch<String> match = new MutableNodeMatch<>();
+
+    // same results as the tree, including the matched node path
+    TreeNode<String> tree = new TreeNode<>();
+    tree.add("/users", "users");
+    tree.add("/users/:id", "user");
+    tree.add("/users/:id/files/*filepath", "files");
+    tree.add("/docs/", "docs");
+    tree.add("/docs/go1.html", "go1");
+    for (String path : new String[]{"/users", "/docs/", "/docs/go1.html"}) {
+      assertEquals(matcher.match(path).getValue(), tree.get(path).getValue());
+      assertEquals(matcher.match(path).getMatched(), tree.get(path).getMatched());
+      assertEquals(matcher.match(new StringBuilder(path), match).getMatched(), tree.get(path).getMatched());
+      assertEquals(match.getParameterCount(), 0);
+    }
+
+    // node paths change as paths are added, removed and replaced
+    matcher.addPath("/docs/go", "go");
+    matcher.addPath("/docs/go1.1.html", "go1.1");
+    matcher.replacePath("/docs/go1.html", "go1-2");
+    tree.add("/docs/go", "go");
+    tree.add("/docs/go1.1.html", "go1.1");
+    tree.replace("/docs/go1.html", "go1-2");
+    assertEquals(matcher.removePath("/docs/go"), "go");
+    tree.remove("/docs/go");
+    for (String path : new String[]{"/users", "/docs/", "/docs/go", "/docs/go1.html", "/docs/go1.1.html", "/users/1"}) {
+      assertEquals(matcher.match(path).getValue(), tree.get(path).getValue() != null ? tree.get(path).getValue() : "default", path);
+      if (tree.get(path).getValue() != null) {
+        assertEquals(matcher.match(path).getMatched(), tree.get(path).getMatched(), path);
+      }
+    }
+
+    // the static index is updated by bulk loading as well
+    Map<String, String> handlers = new HashMap<>();
+    for (int i = 0; i < 50; i++) {
+      handlers.put("/bulk/" + i, "bulk" + i);
+    }
+    matcher.addAll(handlers);
+    for (int i = 0; i < 50; i++) {
+      assertEquals(matcher.match("/bulk/" + i).getValue(), "bulk" + i);
+    }
+
+    // random changes, every static path must be matched like by the tree
+    Random random = new Random(42);
+    String[] paths = new String[40];
+    for (int i = 0; i < paths.length; i++) {
+      paths[i] = "/r/" + Integer.toString(random.nextInt(2000), 3);
+    }
+    for (int i = 0; i < 400; i++) {
+      String path = paths[random.nextInt(paths.length)];
+      if (tree.get(path).getValue() == null || !path.equals(tree.get(path).getValue())) {
+        matcher.addPath(path, path);
+        tree.add(path, path);
+      } else {
+        matcher.removePath(path);
+        tree.remove(path);
+      }
+      for (String p : paths) {
+        NodeMatch<String> expected = tree.get(p);
+        if (expected.getValue() != null) {
+          assertEquals(matcher.match(p).getMatched(), expected.getMatched(), p);
+          assertEquals(matcher.match(p).getValue(), expected.getValue(), p);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testAdaptiveOrdering() throws Exception {
+    PathMatcher<String> matcher = newMatcher()
+      .addPath("/admin/users", "admin-users")
+      .addPath("/admin/groups", "admin-groups")
+      .addPath("/admin/roles", "admin-roles")
+      .addPath("/admin/keys", "admin-keys");
+
+    // disabled by default
+    assertEquals(matcher.reorderChildren(), false);
+
+    // every lookup which walks the tree is sampled
+    matcher.setAdaptiveOrdering(1);
+    for (int i = 0; i < 100; i++) {
+      assertEquals(matcher.match("/users/" + i).getValue(), "user");
+    }
+    assertEquals(matcher.match("/admin/users").getValue(), "admin-users");
+    assertEquals(matcher.reorderChildren(), true);
+    assertEquals(matcher.reorderChildren(), false);
+
+    // lookups are not affected by the order
+    MutableNodeMatch<String> match = new MutableNodeMatch<>();
+    assertEquals(matcher.match("/users/42").getParameterValue("id"), "42");
+    assertEquals(matcher.match("/users/42/files/a.txt", match).getParameterValue("filepath"), "/a.txt");
+    assertEquals(matcher.match("/admin/roles").getValue(), "admin-roles");
+    assertEquals(matcher.match("/unknown").getValue(), "default");
+
+    matcher.setAdaptiveOrdering(0);
+    assertEquals(matcher.reorderChildren(), false);
+
+    try {
+      matcher.setAdaptiveOrdering(3);
+      fail("IllegalArgumentException expected");
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  @Test
+  public void testParamConstraints() throws Exception {
+    PathMatcher<String> matcher = new PathMatcher<>("default")
+      .addPath("/items/:id<int>", "by-id")
+      .addPath("/items/:key<uuid>", "by-key")
+      .addPath("/items/:name", "by-name");
+    MutableNodeMatch<String> match = new MutableNodeMatch<>();
+
+    assertEquals(matcher.match("/items/42").getValue(), "by-id");
+    assertEquals(matcher.match("/items/42").getParameterValue("id"), "42");
+    assertEquals(matcher.match("/items/123e4567-e89b-12d3-a456-426614174000", match).getParameterValue("key"),
+      "123e4567-e89b-12d3-a456-426614174000");
+    assertEquals(matcher.match("/items/hammer", match).getValue(), "by-name");
+    assertEquals(matcher.match("items//42/").getValue(), "by-id");
+
+    assertEquals(matcher.removePath("/items/:name"), "by-name");
+    assertEquals(matcher.match("/items/hammer").getValue(), "default");
+  }
+
+  @Test
+  public void testRemoveAndReplacePath() throws Exception {
+    PathMatcher<String> matcher = newMatcher();
+
+    assertEquals(matcher.replacePath("/users/:id", "user2"), "user");
+    assertEquals(matcher.match("/users/42").getValue(), "user2");
+    assertNull(matcher.replacePath("/groups/:id", "group"));
+    assertEquals(matcher.match("/groups/1").getValue(), "default");
+
+    assertEquals(matcher.removePath("/users/:id"), "user2");
+    assertNull(matcher.removePath("/users/:id"));
+    assertEquals(matcher.match("/users/42").getValue(), "default");
+    assertEquals(matcher.match("/users/42/files/a").getValue(), "files");
+    assertEquals(matcher.match("/users").getValue(), "users");
+
+    // the root path is the default handler
+    assertEquals(matcher.removePath("/"), "default");
+    assertNull(matcher.match("/unknown").getValue());
+    assertNull(matcher.replacePath("/", "fallback"));
+    assertEquals(matcher.match("/unknown").getValue(), "fallback");
+
+    matcher.addPath("/users/:id", "user3");
+    assertEquals(matcher.match("/users/42").getValue(), "user3");
+  }
+
+  @Test
+  public void testAddAll() throws Exception {
+    Map<String, String> handlers = new HashMap<>();
+    handlers.put("/", "default");
+    handlers.put("/users", "users");
+    handlers.put("/users/:id", "user");
+    handlers.put("/users/:id/files/*filepath", "files");
+
+    PathMatcher<String> matcher = new PathMatcher<String>().addAll(handlers);
+    assertEquals(matcher.match("/users").getValue(), "users");
+    assertEquals(matcher.match("/users/42").getParameterValue("id"), "42");
+    assertEquals(matcher.match("/users/42/files/a").getValue(), "files");
+    assertEquals(matcher.match("/unknown").getValue(), "default");
+
+    // nothing is registered if one of the paths conflicts
+    Map<String, String> conflicting = new HashMap<>();
+    conflicting.put("/groups", "groups");
+    conflicting.put("/users/:name/x", "conflict");
+    try {
+      matcher.addAll(conflicting);
+      fail("wildcard conflict expected");
+    } catch (IllegalArgumentException expected) {
+    }
+    assertEquals(matcher.match("/groups").getValue(), "default");
+    assertEquals(matcher.match("/users/42").getValue(), "user");
+  }
+
+  @Test
+  public void testNamedPaths() throws Exception {
+    PathMatcher<String> matcher = new PathMatcher<String>("default")
+      .addPath("user", "/users/:id", "user")
+      .addPath("files", "/users/:id/files/*filepath", "files");
+
+    assertEquals(matcher.buildPath("user", Collections.singletonMap("id", 42)), "/users/42");
+    assertEquals(matcher.buildPath("files", "42", "/a/b.txt"), "/users/42/files/a/b.txt");
+    assertEquals(matcher.match(matcher.buildPath("files", "7", "/x")).getValue(), "files");
+    assertEquals(matcher.getRoute("user").getPath(), "/users/:id");
+    assertNull(matcher.getRoute("unknown"));
+
+    try {
+      matcher.buildPath("unknown", Collections.emptyMap());
+      fail("unknown name");
+    } catch (IllegalArgumentException expected) {
+    }
+
+    // nothing is registered if the name is taken
+    try {
+      matcher.addPath("user", "/groups/:id", "group");
+      fail("duplicate name");
+    } catch (IllegalArgumentException expected) {
+    }
+    assertEquals(matcher.match("/groups/1").getValue(), "default");
+
+    // removing the path removes its name
+    assertEquals(matcher.removePath("/users/:id"), "user");
+    assertNull(matcher.getRoute("user"));
+    matcher.addPath("user", "/people/:id", "person");
+    assertEquals(matcher.buildPath("user", "42"), "/people/42");
+  }
+
+  @Test
+  public void testMatchListener() throws Exception {
+    PathMatcher<String> matcher = newMatcher()
+      .addPath("/people/:id", "user");
+    MatchMetrics<String> metrics = new MatchMetrics<>();
+    matcher.setMatchListener(metrics, 1);
+    MutableNodeMatch<String> match = new MutableNodeMatch<>();
+
+    matcher.match("/users");
+    matcher.match("/people/1");
+    matcher.match("/users/42");
+    matcher.match("users/42");
+    matcher.match("//users/42/");
+    matcher.match(new StringBuilder("/users/7/"), match);
+    matcher.match("/users/42/files//a");
+    matcher.match("/unknown");
+    matcher.match("/unknown", match);
+
+    // hits are counted by registered path, also if paths share a handler
+    assertEquals(metrics.getHitCount(), 7);
+    assertEquals(metrics.getHitCount("/users"), 1);
+    assertEquals(metrics.getHitCount("/users/:id"), 4);
+    assertEquals(metrics.getHitCount("/people/:id"), 1);
+    assertEquals(metrics.getHitCount("/users/:id/files/*filepath"), 1);
+    assertEquals(metrics.getHitCount("/missing"), 0);
+    assertEquals(metrics.getHitCounts().size(), 4);
+    assertEquals(metrics.getMissCount(), 2);
+    assertEquals(metrics.getDefaultHandlerCount(), 2);
+    assertEquals(metrics.getNormalizedCount(), 3);
+    assertEquals(metrics.getTrailingSlashRedirectCount(), 0);
+    assertEquals(metrics.getLatency().getTotalCount(), 9);
+
+    PathMatcher<String> strict = new PathMatcher<String>(null, SlashMatching.STRICT)
+      .addPath("/users", "users");
+    MatchMetrics<String> strictMetrics = new MatchMetrics<>();
+    strict.setMatchListener(strictMetrics);
+    strict.match("/users/");
+    strict.match("/unknown", match);
+    assertEquals(strictMetrics.getMissCount(), 2);
+    assertEquals(strictMetrics.getDefaultHandlerCount(), 0);
+    assertEquals(strictMetrics.getTrailingSlashRedirectCount(), 1);
+    assertEquals(strictMetrics.getLatency().getTotalCount(), 0);
+
+    matcher.setMatchListener(null);
+    matcher.match("/users");
+    assertEquals(metrics.getHitCount(), 7);
+
+    try {
+      matcher.setMatchListener(metrics, 3);
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  @Test
+  public void testBatchMatch() throws Exception {
+    PathMatcher<String> matcher = newMatcher();
+    BatchMatch<String> batch = new BatchMatch<>();
+
+    String[] paths = {"/users/42/files/a/b.txt", "/users", "/unknown", "/users/7", "users/7", "/users/42/files/a/b.txt"};
+    assertSame(matcher.match(paths, batch), batch);
+    assertEquals(batch.size(), 6);
+    assertEquals(batch.getPath(2), "/unknown");
+    assertEquals(batch.getValue(0), "files");
+    assertEquals(batch.getParameterCount(0), 2);
+    assertEquals(batch.getParameterName(0, 1), "filepath");
+    assertEquals(batch.getParameterStart(0, 1), 15);
+    assertEquals(batch.getParameterEnd(0, 1), 23);
+    assertEquals(batch.getParameterValue(0, 0), "42");
+    assertEquals(batch.getValue(1), "users");
+    assertEquals(batch.getParameterCount(1), 0);
+    assertEquals(batch.getValue(2), "default");
+    assertEquals(batch.getMatched(2), "");
+    assertEquals(batch.getParameterValue(3, 0), "7");
+    assertEquals(batch.getParameterValue(4, 0), "7");
+    assertEquals(batch.getValue(5), "files");
+    assertEquals(batch.getParameterValue(5, 1), "/a/b.txt");
+
+    matcher.match(new String[]{"/users/1"}, batch);
+    assertEquals(batch.size(), 1);
+    assertEquals(batch.getParameterValue(0, 0), "1");
+    try {
+      batch.getValue(1);
+      fail();
+    } catch (IndexOutOfBoundsException expected) {
+    }
+
+    // a large batch matched in a pool matches the same as one path at a time
+    Random random = new Random(7);
+    String[] segments = {"users", "42", "files", "a", "", "unknown"};
+    paths = new String[5000];
+    for (int i = 0; i < paths.length; i++) {
+      StringBuilder path = new StringBuilder();
+      for (int j = random.nextInt(6); j >= 0; j--) {
+        path.append('/').append(segments[random.nextInt(segments.length)]);
+      }
+      paths[i] = path.toString();
+    }
+    MatchMetrics<String> metrics = new MatchMetrics<>();
+    matcher.setMatchListener(metrics);
+    ForkJoinPool pool = new ForkJoinPool(4);
+    try {
+      matcher.match(paths, batch, pool);
+    } finally {
+      pool.shutdown();
+    }
+    for (int i = 0; i < paths.length; i++) {
+      NodeMatch<String> match = matcher.match(paths[i]);
+      assertEquals(batch.getValue(i), match.getValue(), paths[i]);
+      assertEquals(batch.getMatched(i), match.getMatched(), paths[i]);
+      assertEquals(batch.getParameterCount(i), match.getParameterCount(), paths[i]);
+      for (int j = 0; j < match.getParameterCount(); j++) {
+        assertEquals(batch.getParameterValue(i, j), match.getParameterValue(j), paths[i]);
+      }
+    }
+    assertEquals(metrics.getHitCount() + metrics.getMissCount(), paths.length * 2);
+    assertEquals(metrics.getHitCounts().values().stream().mapToLong(Long::longValue).sum(),
+      metrics.getHitCount());
+  }
+
+  @Test
+  public void testSetPaths() throws Exception {
+    PathMatcher<String> matcher = newMatcher()
+      .addPath("/about", "about")
+      .addPath("/docs/intro", "intro")
+      .addPath("old-docs", "/docs/old", "old");
+    NodeMatch<String> about = matcher.match("/about");
+
+    Map<String, String> paths = new HashMap<>();
+    paths.put("/", "root");
+    paths.put("/users", "users");
+    paths.put("/users/:uid", "user");
+    paths.put("/about", "about");
+    paths.put("/docs/intro", "introduction");
+    paths.put("/docs/faq", "faq");
+
+    // removes the files, the user and the old docs, replaces the intro, and adds the faq and the
+    // renamed user
+    assertEquals(matcher.setPaths(paths), 6);
+    assertEquals(matcher.match("/users").getValue(), "users");
+    assertEquals(matcher.match("/users/42").getParameterValue("uid"), "42");
+    assertEquals(matcher.match("/users/42/files/a").getValue(), "root");
+    assertEquals(matcher.match("/docs/intro").getValue(), "introduction");
+    assertEquals(matcher.match("/docs/faq").getValue(), "faq");
+    assertEquals(matcher.match("/docs/old").getValue(), "root");
+    assertNull(matcher.getRoute("old-docs"));
+    // the unchanged subtree is shared with the previous version
+    assertSame(matcher.match("/about"), about);
+
+    assertEquals(matcher.setPaths(paths), 0);
+
+    // a conflict changes nothing
+    paths.put("/users/:uid/:other", "conflict");
+    paths.put("/users/:name/x", "conflict");
+    paths.remove("/about");
+    try {
+      matcher.setPaths(paths);
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+    assertEquals(matcher.match("/about").getValue(), "about");
+    assertEquals(matcher.match("/users/42/x").getValue(), "root");
+  }
+
+  @Test
+  public void testConcurrentAddPath() throws Exception {
+    final PathMatcher<String> matcher = newMatcher();
+    final AtomicBoolean done = new AtomicBoolean();
+    final AtomicReference<String> failure = new AtomicReference<>();
+
+    Thread[] readers = new Thread[4];
+    for (int i = 0; i < readers.length; i++) {
+      readers[i] = new Thread(() -> {
+        MutableNodeMatch<String> match = new MutableNodeMatch<>();
+        while (!done.get()) {
+          if (!"user".equals(matcher.match("/users/42", match).getValue())
+            || !"42".equals(match.getParameterValue("id"))
+            || !"files".equals(matcher.match("/users/42/files/a", match).getValue())
+            || !"users".equals(matcher.match("/users").getValue())) {
+            failure.compareAndSet(null, "wrong match for a registered path");
+          }
+        }
+      });
+      readers[i].start();
+    }
+
+    try {
+      for (int i = 0; i < 2000; i++) {
+        matcher.addPath("/t" + i + "/users/:id", "tenant" + i);
+        matcher.addPath("/users/:id/t" + i, "user-tenant" + i);
+      }
+    } finally {
+      done.set(true);
+      for (Thread reader : readers) {
+        reader.join();
+      }
+    }
+
+    assertNull(failure.get(), failure.get());
+    assertEquals(matcher.match("/t1999/users/1").getValue(), "tenant1999");
+    assertEquals(matcher.match("/users/1/t1999").getValue(), "user-tenant1999");
+  }
+}
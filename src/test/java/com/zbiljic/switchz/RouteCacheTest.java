@@ -0,0 +1,54 @@
+package com.zbiljic.switchz;
+
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+
+public class RouteCacheTest {
+
+  @Test
+  public void testHash() throws Exception {
+    for (String path : new String[]{"", "/", "/health", "/api/v1/events", "/ünïcode"}) {
+      assertEquals(RouteCache.hash(new StringBuilder(path)), path.hashCode());
+    }
+  }
+
+  @Test
+  public void testGetAndPut() throws Exception {
+    RouteCache<String> cache = new RouteCache<>(new TreeNode<>(), 16);
+    NodeMatch<String> health = new NodeMatch<>("/health", "health");
+
+    assertNull(cache.get("/health", RouteCache.hash("/health")));
+    cache.put(new StringBuilder("/health"), RouteCache.hash("/health"), health);
+    assertSame(cache.get("/health", RouteCache.hash("/health")), health);
+    assertSame(cache.get(new StringBuilder("/health"), RouteCache.hash("/health")), health);
+
+    // paths with the same hash are told apart
+    assertEquals("Aa".hashCode(), "BB".hashCode());
+    NodeMatch<String> aa = new NodeMatch<>("Aa", "aa");
+    cache.put("Aa", "Aa".hashCode(), aa);
+    assertNull(cache.get("BB", "BB".hashCode()));
+    assertSame(cache.get("Aa", "Aa".hashCode()), aa);
+  }
+
+  @Test
+  public void testEviction() throws Exception {
+    // a single window of slots, every path competes with every other one
+    RouteCache<String> cache = new RouteCache<>(new TreeNode<>(), 4);
+    NodeMatch<String> hot = new NodeMatch<>("/hot", "hot");
+    cache.put("/hot", RouteCache.hash("/hot"), hot);
+
+    for (int i = 0; i < 100; i++) {
+      String path = "/cold/" + i;
+      cache.put(path, RouteCache.hash(path), new NodeMatch<>(path, path));
+
+      // a path which is looked up between evictions is not evicted by paths which are not
+      assertSame(cache.get("/hot", RouteCache.hash("/hot")), hot, path);
+    }
+    assertNotNull(cache.get("/cold/99", RouteCache.hash("/cold/99")));
+    assertNull(cache.get("/cold/0", RouteCache.hash("/cold/0")));
+  }
+}
@@ -0,0 +1,93 @@
+package com.zbiljic.switchz;
+
+import org.testng.annotations.Test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.fail;
+
+public class RouteTemplateTest {
+
+  @Test
+  public void testBuild() throws Exception {
+    RouteTemplate template = RouteTemplate.compile("/users/:id<int>/files/*filepath");
+    assertEquals(template.getParameterCount(), 2);
+    assertEquals(template.getParameterName(0), "id");
+    assertEquals(template.getParameterName(1), "filepath");
+
+    Map<String, Object> params = new HashMap<>();
+    params.put("id", 42);
+    params.put("filepath", "/a/b.txt");
+    params.put("unused", "x");
+    assertEquals(template.build(params), "/users/42/files/a/b.txt");
+    assertEquals(template.build(7, "/"), "/users/7/files/");
+
+    assertEquals(RouteTemplate.compile("/user_:name/about").build("gopher"), "/user_gopher/about");
+    assertEquals(RouteTemplate.compile("/:a/:b").build("x", "y"), "/x/y");
+    assertEquals(RouteTemplate.compile("/*all").build("/x/y"), "/x/y");
+
+    // the path itself is returned if it has no parameters
+    String path = "/health";
+    assertSame(RouteTemplate.compile(path).build(Collections.emptyMap()), path);
+    assertSame(RouteTemplate.compile(path).build(), path);
+  }
+
+  @Test
+  public void testBuildMatches() throws Exception {
+    String[] routes = new String[]{
+      "/users/:id",
+      "/users/:id/files/*filepath",
+      "/cmd/:tool/:sub",
+      "/src/*filepath",
+    };
+    TreeNode<String> tree = new TreeNode<>();
+    for (String route : routes) {
+      tree.add(route, route);
+    }
+
+    // a built path matches its route with the same parameters
+    for (String route : routes) {
+      RouteTemplate template = RouteTemplate.compile(route);
+      Map<String, String> params = new HashMap<>();
+      for (int i = 0; i < template.getParameterCount(); i++) {
+        String name = template.getParameterName(i);
+        params.put(name, name.equals("filepath") ? "/some/file.txt" : "value" + i);
+      }
+      NodeMatch<String> match = tree.get(template.build(params));
+      assertEquals(match.getValue(), route);
+      assertEquals(match.getParametersAsMap(), params);
+    }
+  }
+
+  @Test
+  public void testInvalid() throws Exception {
+    RouteTemplate template = RouteTemplate.compile("/users/:id/files/*filepath");
+    try {
+      template.build(Collections.singletonMap("id", "42"));
+      fail("missing value");
+    } catch (IllegalArgumentException expected) {
+    }
+    try {
+      template.build("42");
+      fail("missing value");
+    } catch (IllegalArgumentException expected) {
+    }
+    try {
+      template.build("42", null);
+      fail("missing value");
+    } catch (IllegalArgumentException expected) {
+    }
+
+    for (String path : new String[]{"/users/:", "/users/:<int>", "/src/*", "/src/*filepath/x"}) {
+      try {
+        RouteTemplate.compile(path);
+        fail("no panic for path '" + path + "'");
+      } catch (IllegalArgumentException expected) {
+      }
+    }
+  }
+}
@@ -2,11 +2,28 @@ package com.zbiljic.switchz;
 
 import org.testng.annotations.Test;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
 import java.util.function.Function;
 
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotSame;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
 import static org.testng.Assert.fail;
 
 public class TreeNodeTest {
@@ -37,29 +54,98 @@ public class TreeNodeTest {
 
   void checkRequests(TreeNode<Function<String, String>> tree, TestRequest[] testRequests) {
     for (TestRequest requests : testRequests) {
-      NodeMatch<Function<String, String>> match = tree.get(requests.path);
+      checkRequest(tree.get(requests.path), requests);
+    }
 
-      Function<String, String> handler = match.getValue();
-      Map<String, String> ps = match.getParametersAsMap();
+    // the same requests again, reusing a single match
+    MutableNodeMatch<Function<String, String>> reused = new MutableNodeMatch<>();
+    for (TestRequest requests : testRequests) {
+      checkRequest(tree.get(new StringBuilder(requests.path), reused), requests);
+    }
 
-      if (handler == null) {
-        if (!requests.nullHandler) {
-          fail(String.format("handler mismatch for route '%s': Expected non-null handler", requests.path));
-        }
-      } else if (requests.nullHandler) {
-        fail(String.format("handler mismatch for route '%s': Expected null handler", requests.path));
-      } else {
-        String handlerResult = handler.apply(null);
-        if (!Objects.equals(handlerResult, requests.route)) {
-          fail(String.format("handler mismatch for route '%s': Wrong handler (%s != %s)",
-            requests.path, handlerResult, requests.route));
-        }
+    // the compiled tree must return the same results
+    CompiledTree<Function<String, String>> compiled = tree.compile();
+    for (TestRequest requests : testRequests) {
+      checkRequest(compiled.get(requests.path), requests);
+      checkRequest(compiled.get(new StringBuilder(requests.path), reused), requests);
+      checkRequest(getBytes(compiled, requests.path, reused), requests);
+      checkRequest(getBuffer(compiled, requests.path, reused), requests);
+    }
+
+    // and so must the serialized tree
+    TreeImage<Function<String, String>> image = image(tree);
+    for (TestRequest requests : testRequests) {
+      checkRequest(image.get(requests.path), requests);
+      checkRequest(image.get(new StringBuilder(requests.path), reused), requests);
+    }
+  }
+
+  /** Serializes the tree with the values numbered in order of appearance, and loads it again. */
+  static <T> TreeImage<T> image(TreeNode<T> tree) {
+    List<T> values = new ArrayList<>();
+    collectValues(tree, values);
+    ByteBuffer image = TreeImage.write(tree, values::indexOf);
+
+    // from a direct buffer, at an offset
+    ByteBuffer direct = ByteBuffer.allocateDirect(image.remaining() + 3);
+    direct.position(3);
+    direct.put(image);
+    direct.position(3);
+    return new TreeImage<>(direct, values);
+  }
+
+  static <T> void collectValues(TreeNode<T> node, List<T> values) {
+    if (node.value != null && !values.contains(node.value)) {
+      values.add(node.value);
+    }
+    for (TreeNode<T> child : node.children) {
+      collectValues(child, values);
+    }
+  }
+
+  /** Looks up the path as UTF-8 bytes, in the middle of a larger array. */
+  static <T> MutableNodeMatch<T> getBytes(CompiledTree<T> tree, String path, MutableNodeMatch<T> match) {
+    byte[] bytes = ("GET " + path + " HTTP/1.1").getBytes(StandardCharsets.UTF_8);
+    return tree.get(bytes, 4, path.getBytes(StandardCharsets.UTF_8).length, match);
+  }
+
+  /** Looks up the path as UTF-8 bytes, in the middle of a direct buffer. */
+  static <T> MutableNodeMatch<T> getBuffer(CompiledTree<T> tree, String path, MutableNodeMatch<T> match) {
+    byte[] bytes = ("GET " + path + " HTTP/1.1").getBytes(StandardCharsets.UTF_8);
+    ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+    buffer.put(bytes);
+    return tree.get(buffer, 4, path.getBytes(StandardCharsets.UTF_8).length, match);
+  }
+
+  int countNodes(TreeNode<?> node) {
+    int count = 1;
+    for (TreeNode<?> child : node.children) {
+      count += countNodes(child);
+    }
+    return count;
+  }
+
+  void checkRequest(NodeMatch<Function<String, String>> match, TestRequest requests) {
+    Function<String, String> handler = match.getValue();
+    Map<String, String> ps = match.getParametersAsMap();
+
+    if (handler == null) {
+      if (!requests.nullHandler) {
+        fail(String.format("handler mismatch for route '%s': Expected non-null handler", requests.path));
       }
+    } else if (requests.nullHandler) {
+      fail(String.format("handler mismatch for route '%s': Expected null handler", requests.path));
+    } else {
+      String handlerResult = handler.apply(null);
+      if (!Objects.equals(handlerResult, requests.route)) {
+        fail(String.format("handler mismatch for route '%s': Wrong handler (%s != %s)",
+          requests.path, handlerResult, requests.route));
+      }
+    }
 
-      if (requests.ps != null && !match.isTrailingSlashRedirect()) {
-        if (!equalMaps(requests.ps, ps)) {
-          fail(String.format("Params mismatch for route '%s'", requests.path));
-        }
+    if (requests.ps != null && !match.isTrailingSlashRedirect()) {
+      if (!equalMaps(requests.ps, ps)) {
+        fail(String.format("Params mismatch for route '%s'", requests.path));
       }
     }
   }
@@ -230,4 +316,1288 @@ public class TreeNodeTest {
     checkPriorities(tree);
     checkMaxParams(tree);
   }
+
+  @Test
+  public void testTreeTrailingSlashRedirect() throws Exception {
+
+    final TreeNode<Function<String, String>> tree = new TreeNode<>();
+
+    String[] routes = new String[]{
+      "/hi",
+      "/b/",
+      "/search/:query",
+      "/cmd/:tool/",
+      "/src/*filepath",
+      "/x",
+      "/x/y",
+      "/y/",
+      "/y/z",
+      "/0/:id",
+      "/0/:id/1",
+      "/1/:id/",
+      "/1/:id/2",
+      "/aa",
+      "/a/",
+      "/admin",
+      "/admin/:category",
+      "/admin/:category/:page",
+      "/doc",
+      "/doc/go_faq.html",
+      "/doc/go1.html",
+      "/no/a",
+      "/no/b",
+      "/api/hello/:name",
+    };
+
+    for (String route : routes) {
+      tree.add(route, fakeHandler(route));
+    }
+
+    TreeNodeUtil.dumpTree(tree);
+
+    String[] tsrRoutes = new String[]{
+      "/hi/",
+      "/b",
+      "/search/gopher/",
+      "/cmd/vet",
+      "/src",
+      "/x/",
+      "/y",
+      "/0/go/",
+      "/1/go",
+      "/a",
+      "/admin/",
+      "/admin/config/",
+      "/admin/config/permissions/",
+      "/doc/",
+    };
+
+    CompiledTree<Function<String, String>> compiled = tree.compile();
+
+    for (String route : tsrRoutes) {
+      for (NodeMatch<Function<String, String>> match : Arrays.asList(tree.get(route), compiled.get(route),
+        getBytes(compiled, route, new MutableNodeMatch<>()))) {
+        if (match.getValue() != null) {
+          fail(String.format("non-null handler for TSR route '%s'", route));
+        } else if (!match.isTrailingSlashRedirect()) {
+          fail(String.format("expected TSR recommendation for route '%s'", route));
+        }
+      }
+    }
+
+    String[] noTsrRoutes = new String[]{
+      "/",
+      "/no",
+      "/no/",
+      "/_",
+      "/_/",
+      "/api/world/abc",
+    };
+
+    for (String route : noTsrRoutes) {
+      for (NodeMatch<Function<String, String>> match : Arrays.asList(tree.get(route), compiled.get(route),
+        getBytes(compiled, route, new MutableNodeMatch<>()))) {
+        if (match.getValue() != null) {
+          fail(String.format("non-null handler for No-TSR route '%s'", route));
+        } else if (match.isTrailingSlashRedirect()) {
+          fail(String.format("expected no TSR recommendation for route '%s'", route));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testTreeParamConstraints() throws Exception {
+
+    final TreeNode<Function<String, String>> tree = new TreeNode<>();
+
+    String[] routes = new String[]{
+      "/users/:id<int>",
+      "/users/:name",
+      "/users/:id<uuid>",
+      "/users/:id<int>/posts",
+      "/posts/:id<int>",
+      "/posts/:slug<[a-z-]+>/comments",
+      "/files/:hash<hex>/:ext<[a-z]{2,4}>",
+      "/releases/:version<v\\d+(\\.\\d+)*>",
+      "/a/:x<[a-z]*>/:y",
+      "/b/:x<(?:ab|cd)>/:y",
+    };
+
+    for (String route : routes) {
+      tree.add(route, fakeHandler(route));
+    }
+
+    TreeNodeUtil.dumpTree(tree);
+
+    checkRequests(tree, new TestRequest[]{
+      new TestRequest("/users/42", false, "/users/:id<int>", Collections.singletonMap("id", "42")),
+      new TestRequest("/users/42/posts", false, "/users/:id<int>/posts", Collections.singletonMap("id", "42")),
+      new TestRequest("/users/123e4567-e89b-12d3-a456-426614174000", false, "/users/:id<uuid>",
+        Collections.singletonMap("id", "123e4567-e89b-12d3-a456-426614174000")),
+      new TestRequest("/users/gordon", false, "/users/:name", Collections.singletonMap("name", "gordon")),
+      new TestRequest("/users/jürgen", false, "/users/:name", Collections.singletonMap("name", "jürgen")),
+      new TestRequest("/users/gordon/posts", true, "", null),
+      new TestRequest("/posts/7", false, "/posts/:id<int>", Collections.singletonMap("id", "7")),
+      new TestRequest("/posts/hello-world/comments", false, "/posts/:slug<[a-z-]+>/comments",
+        Collections.singletonMap("slug", "hello-world")),
+      new TestRequest("/posts/Hello/comments", true, "", null),
+      new TestRequest("/posts/", true, "", null),
+      new TestRequest("/files/cafe/txt", false, "/files/:hash<hex>/:ext<[a-z]{2,4}>", new HashMap<String, String>() {{
+        put("hash", "cafe");
+        put("ext", "txt");
+      }}),
+      new TestRequest("/files/cafe/t", true, "", null),
+      new TestRequest("/files/tea/txt", true, "", null),
+      new TestRequest("/releases/v1.2.3", false, "/releases/:version<v\\d+(\\.\\d+)*>",
+        Collections.singletonMap("version", "v1.2.3")),
+      new TestRequest("/releases/v1.", true, "", null),
+      new TestRequest("/a/xyz/1", false, "/a/:x<[a-z]*>/:y", new HashMap<String, String>() {{
+        put("x", "xyz");
+        put("y", "1");
+      }}),
+      new TestRequest("/b/cd/2", false, "/b/:x<(?:ab|cd)>/:y", new HashMap<String, String>() {{
+        put("x", "cd");
+        put("y", "2");
+      }}),
+      new TestRequest("/b/ef/2", true, "", null),
+    });
+
+    checkPriorities(tree);
+    checkMaxParams(tree);
+
+    assertEquals(tree.get("/users/42").getMatched(), ":id<int>");
+    assertEquals(tree.get("/users/42").getParameterName(0), "id");
+
+    // only params with the same constraint conflict, a failed add leaves the tree unchanged
+    String[] invalid = new String[]{
+      "/users/:other<int>",
+      "/users/:other",
+      "/x/:id<int",
+      "/x/:<int>",
+      "/x/:id<>",
+      "/x/:id<[a-z>",
+      "/x/:id<[^/]+>",
+    };
+    for (String route : invalid) {
+      try {
+        TreeEdit edit = new TreeEdit();
+        edit.writable(tree).add(route, fakeHandler(route), edit);
+        fail("no panic for route '" + route + "'");
+      } catch (IllegalArgumentException expected) {
+      }
+    }
+
+    // '<' is only special in a param
+    tree.add("/posts/:id<int>/x<y>", fakeHandler("/posts/:id<int>/x<y>"));
+    assertEquals(tree.get("/posts/1/x<y>").getValue().apply(""), "/posts/:id<int>/x<y>");
+
+    // removing a param leaves the others
+    assertEquals(tree.remove("/users/:id<uuid>").apply(""), "/users/:id<uuid>");
+    assertEquals(tree.get("/users/123e4567-e89b-12d3-a456-426614174000").getValue().apply(""), "/users/:name");
+    assertEquals(tree.remove("/users/:name").apply(""), "/users/:name");
+    assertNull(tree.get("/users/gordon").getValue());
+    assertEquals(tree.get("/users/42").getValue().apply(""), "/users/:id<int>");
+    assertEquals(tree.replace("/users/:id<int>", fakeHandler("int")).apply(""), "/users/:id<int>");
+    checkPriorities(tree);
+    checkMaxParams(tree);
+  }
+
+  @Test
+  public void testTreeStaticAndWildcardSiblings() throws Exception {
+
+    String[] routes = new String[]{
+      "/",
+      "/users",
+      "/users/new",
+      "/users/new/confirm",
+      "/users/:id",
+      "/users/:id/edit",
+      "/users/*rest",
+      "/files/readme",
+      "/files/:id<int>/meta",
+      "/files/*filepath",
+      "/docs/",
+      "/docs/*page",
+      "/a/b/c",
+      "/a/:x/d",
+      "/a/b/:y/e",
+    };
+
+    TestRequest[] requests = new TestRequest[]{
+      new TestRequest("/users", false, "/users", null),
+      new TestRequest("/users/new", false, "/users/new", null),
+      new TestRequest("/users/newer", false, "/users/:id", Collections.singletonMap("id", "newer")),
+      new TestRequest("/users/new/confirm", false, "/users/new/confirm", null),
+      new TestRequest("/users/new/edit", false, "/users/:id/edit", Collections.singletonMap("id", "new")),
+      new TestRequest("/users/new/x", false, "/users/*rest", Collections.singletonMap("rest", "/new/x")),
+      new TestRequest("/users/42", false, "/users/:id", Collections.singletonMap("id", "42")),
+      new TestRequest("/users/42/edit", false, "/users/:id/edit", Collections.singletonMap("id", "42")),
+      new TestRequest("/users/42/x/y", false, "/users/*rest", Collections.singletonMap("rest", "/42/x/y")),
+      new TestRequest("/users/", false, "/users/*rest", Collections.singletonMap("rest", "/")),
+      new TestRequest("/files/readme", false, "/files/readme", null),
+      new TestRequest("/files/42/meta", false, "/files/:id<int>/meta", Collections.singletonMap("id", "42")),
+      new TestRequest("/files/x/meta", false, "/files/*filepath", Collections.singletonMap("filepath", "/x/meta")),
+      new TestRequest("/files/42", false, "/files/*filepath", Collections.singletonMap("filepath", "/42")),
+      new TestRequest("/files", true, "", null),
+      new TestRequest("/docs/", false, "/docs/", null),
+      new TestRequest("/docs/intro", false, "/docs/*page", Collections.singletonMap("page", "/intro")),
+      new TestRequest("/a/b/c", false, "/a/b/c", null),
+      new TestRequest("/a/b/d", false, "/a/:x/d", Collections.singletonMap("x", "b")),
+      new TestRequest("/a/c/d", false, "/a/:x/d", Collections.singletonMap("x", "c")),
+      new TestRequest("/a/b/z/e", false, "/a/b/:y/e", Collections.singletonMap("y", "z")),
+      new TestRequest("/a/b/z/f", true, "", null),
+      new TestRequest("/a/b", true, "", null),
+    };
+
+    // the same lookups, whichever route was added first
+    for (boolean reversed : new boolean[]{false, true}) {
+      final TreeNode<Function<String, String>> tree = new TreeNode<>();
+      for (int i = 0; i < routes.length; i++) {
+        String route = routes[reversed ? routes.length - 1 - i : i];
+        tree.add(route, fakeHandler(route));
+      }
+
+      checkRequests(tree, requests);
+      checkPriorities(tree);
+      checkMaxParams(tree);
+      checkChildOrder(tree);
+
+      assertTrue(tree.get("/files").isTrailingSlashRedirect());
+      assertTrue(tree.get("/docs").isTrailingSlashRedirect());
+      assertTrue(tree.get("/a/b/c/").isTrailingSlashRedirect());
+    }
+
+    final TreeNode<Function<String, String>> tree = new TreeNode<>();
+    for (String route : routes) {
+      tree.add(route, fakeHandler(route));
+    }
+
+    // the same route, or a different wildcard at the same position, still conflicts
+    String[] invalid = new String[]{
+      "/users/*rest",
+      "/users/*other",
+      "/users/:name",
+      "/files/:id<int>/meta",
+      "/a/:z/d",
+    };
+    for (String route : invalid) {
+      try {
+        TreeEdit edit = new TreeEdit();
+        edit.writable(tree).add(route, fakeHandler(route), edit);
+        fail("no panic for route '" + route + "'");
+      } catch (IllegalArgumentException expected) {
+      }
+    }
+
+    checkTolerant(tree, "users//new/", "/users/new", null);
+    checkTolerant(tree, "/users//new//edit/", "/users/:id/edit", Collections.singletonMap("id", "new"));
+    checkTolerant(tree, "/files//x/", "/files/*filepath", Collections.singletonMap("filepath", "//x/"));
+
+    assertEquals(tree.findCaseInsensitivePath("/USERS/NEW", false), "/users/new");
+    assertEquals(tree.findCaseInsensitivePath("/USERS/NEW/CONFIRM", false), "/users/new/confirm");
+    assertEquals(tree.findCaseInsensitivePath("/USERS/NEW/EDIT", false), "/users/NEW/edit");
+    assertEquals(tree.findCaseInsensitivePath("/A/B/Z/E", false), "/a/b/Z/e");
+    assertEquals(tree.findCaseInsensitivePath("/FILES", true), "/files/");
+
+    // removing the static route uncovers the param
+    assertEquals(tree.remove("/users/new").apply(""), "/users/new");
+    assertEquals(tree.get("/users/new").getValue().apply(""), "/users/:id");
+    assertEquals(tree.get("/users/new/confirm").getValue().apply(""), "/users/new/confirm");
+    assertEquals(tree.remove("/users/*rest").apply(""), "/users/*rest");
+    assertNull(tree.get("/users/42/x/y").getValue());
+    assertEquals(tree.remove("/files/*filepath").apply(""), "/files/*filepath");
+    assertNull(tree.get("/files/x/meta").getValue());
+    assertEquals(tree.get("/files/42/meta").getValue().apply(""), "/files/:id<int>/meta");
+    checkPriorities(tree);
+    checkMaxParams(tree);
+    checkChildOrder(tree);
+  }
+
+  @Test
+  public void testTreeParamStorage() throws Exception {
+
+    final TreeNode<Function<String, String>> tree = new TreeNode<>();
+
+    tree.add("/:a/:b/:c", fakeHandler("/:a/:b/:c"));
+    checkMaxParams(tree);
+    assertEquals(tree.maxParams, 3);
+
+    tree.add("/:a/:b/:c/x/*d", fakeHandler("/:a/:b/:c/x/*d"));
+    checkMaxParams(tree);
+    assertEquals(tree.maxParams, 4);
+
+    TreeNodeUtil.dumpTree(tree);
+
+    MutableNodeMatch<Function<String, String>> match = new MutableNodeMatch<>();
+    tree.get("/1/2/3/x/y/z", match);
+    assertEquals(match.getParameterCount(), 4);
+    assertEquals(match.wildcards.length, 4); // allocated once, from maxParams
+
+    tree.get("/1/2/3", match);
+    assertEquals(match.getParameterCount(), 3);
+    assertEquals(match.wildcards.length, 4);
+    assertEquals(match.getParametersAsMap(), new HashMap<String, String>() {{
+      put("a", "1");
+      put("b", "2");
+      put("c", "3");
+    }});
+  }
+
+  @Test
+  public void testTreeGetTolerant() throws Exception {
+
+    final TreeNode<Function<String, String>> tree = new TreeNode<>();
+
+    String[] routes = new String[]{
+      "/",
+      "/hi",
+      "/contact",
+      "/doc/",
+      "/doc/go_faq.html",
+      "/src/*filepath",
+      "/user_:name",
+      "/user_:name/about",
+      "/files/:dir/*filepath",
+      "/info/:user/public",
+      "/info/:user/project/:project",
+      "/cmd/:tool/",
+      "/cmd/:tool/:sub",
+    };
+
+    for (String route : routes) {
+      tree.add(route, fakeHandler(route));
+    }
+
+    // paths which match exactly are matched the same as by the strict walk
+    for (String route : routes) {
+      String path = route.replace(":", "x").replace("*", "y");
+      NodeMatch<Function<String, String>> strict = tree.get(path);
+      NodeMatch<Function<String, String>> tolerant = tree.getTolerant(path, null);
+      assertSame(tolerant.getValue(), strict.getValue(), path);
+      assertEquals(tolerant.getParametersAsMap(), strict.getParametersAsMap(), path);
+    }
+
+    checkTolerant(tree, "hi", "/hi", null);
+    checkTolerant(tree, "//hi//", "/hi", null);
+    checkTolerant(tree, "/doc", "/doc/", null);
+    checkTolerant(tree, "//doc", "/doc/", null);
+    checkTolerant(tree, "doc///go_faq.html", "/doc/go_faq.html", null);
+    checkTolerant(tree, "/user_gopher/", "/user_:name", Collections.singletonMap("name", "gopher"));
+    checkTolerant(tree, "/user_gopher//about/", "/user_:name/about", Collections.singletonMap("name", "gopher"));
+    checkTolerant(tree, "/cmd/test", "/cmd/:tool/", Collections.singletonMap("tool", "test"));
+    checkTolerant(tree, "/cmd//test//3/", "/cmd/:tool/:sub", new HashMap<String, String>() {{
+      put("tool", "test");
+      put("sub", "3");
+    }});
+    checkTolerant(tree, "/info//gordon/public/", "/info/:user/public", Collections.singletonMap("user", "gordon"));
+    checkTolerant(tree, "/src//some/file.png", "/src/*filepath", Collections.singletonMap("filepath", "//some/file.png"));
+    checkTolerant(tree, "", "/", null);
+    checkTolerant(tree, "//", "/", null);
+
+    MutableNodeMatch<Function<String, String>> match = new MutableNodeMatch<>();
+    for (String path : new String[]{"/hi/x", "/user_", "/user_/", "/cmd//", "/info/gordon", "/info/gordon/project//", "/no"}) {
+      assertNull(tree.getTolerant(path, null).getValue(), path);
+      assertNull(tree.getTolerant(new StringBuilder(path), match).getValue(), path);
+      assertEquals(match.getParameterCount(), 0, path);
+    }
+  }
+
+  private void checkTolerant(TreeNode<Function<String, String>> tree, String path, String route,
+                             Map<String, String> ps) {
+    checkRequest(tree.getTolerant(path, null), new TestRequest(path, false, route, ps));
+    checkRequest(tree.getTolerant(new StringBuilder(path), new MutableNodeMatch<>()),
+      new TestRequest(path, false, route, ps));
+  }
+
+  @Test
+  public void testTreeFindCaseInsensitivePath() throws Exception {
+
+    final TreeNode<Function<String, String>> tree = new TreeNode<>();
+
+    String longPath = "/l" + "oooooooooooooooooo" + "ng";
+    String lOngPath = "/l" + "OOOOOOOOOOOOOOOOOO" + "ng/";
+
+    String[] routes = new String[]{
+      "/hi",
+      "/b/",
+      "/ABC/",
+      "/search/:query",
+      "/cmd/:tool/",
+      "/src/*filepath",
+      "/x",
+      "/x/y",
+      "/y/",
+      "/y/z",
+      "/0/:id",
+      "/0/:id/1",
+      "/1/:id/",
+      "/1/:id/2",
+      "/aa",
+      "/a/",
+      "/doc",
+      "/doc/go_faq.html",
+      "/doc/go1.html",
+      "/doc/go/away",
+      "/no/a",
+      "/no/b",
+      "/Π",
+      "/u/apfêl/",
+      "/u/äpfêl/",
+      "/u/öpfêl",
+      "/v/Äpfêl/",
+      "/v/Öpfêl",
+      "/w/♬",
+      "/w/♭/",
+      "/w/\uD841\uDF0E",
+      "/w/\uD841\uDF0F/",
+      longPath,
+    };
+
+    for (String route : routes) {
+      tree.add(route, fakeHandler(route));
+    }
+
+    // check out == in for all registered routes
+    for (String route : routes) {
+      assertEquals(tree.findCaseInsensitivePath(route, true), route);
+      assertEquals(tree.findCaseInsensitivePath(route, false), route);
+      assertEquals(tree.getCaseInsensitive(route).getValue().apply(null), route);
+    }
+
+    // in, out (null if not found), whether a trailing slash has to be fixed
+    Object[][] tests = new Object[][]{
+      {"/HI", "/hi", false},
+      {"/HI/", "/hi", true},
+      {"/B", "/b/", true},
+      {"/B/", "/b/", false},
+      {"/abc", "/ABC/", true},
+      {"/abc/", "/ABC/", false},
+      {"/aBc", "/ABC/", true},
+      {"/aBc/", "/ABC/", false},
+      {"/abC", "/ABC/", true},
+      {"/abC/", "/ABC/", false},
+      {"/SEARCH/QUERY", "/search/QUERY", false},
+      {"/SEARCH/QUERY/", "/search/QUERY", true},
+      {"/CMD/TOOL/", "/cmd/TOOL/", false},
+      {"/CMD/TOOL", "/cmd/TOOL/", true},
+      {"/SRC/FILE/PATH", "/src/FILE/PATH", false},
+      {"/x/Y", "/x/y", false},
+      {"/x/Y/", "/x/y", true},
+      {"/X/y", "/x/y", false},
+      {"/X/y/", "/x/y", true},
+      {"/X/Y", "/x/y", false},
+      {"/X/Y/", "/x/y", true},
+      {"/Y/", "/y/", false},
+      {"/Y", "/y/", true},
+      {"/Y/z", "/y/z", false},
+      {"/Y/z/", "/y/z", true},
+      {"/Y/Z", "/y/z", false},
+      {"/Y/Z/", "/y/z", true},
+      {"/y/Z", "/y/z", false},
+      {"/y/Z/", "/y/z", true},
+      {"/Aa", "/aa", false},
+      {"/Aa/", "/aa", true},
+      {"/AA", "/aa", false},
+      {"/AA/", "/aa", true},
+      {"/aA", "/aa", false},
+      {"/aA/", "/aa", true},
+      {"/A/", "/a/", false},
+      {"/A", "/a/", true},
+      {"/DOC", "/doc", false},
+      {"/DOC/", "/doc", true},
+      {"/NO", null, true},
+      {"/DOC/GO", null, true},
+      {"/π", "/Π", false},
+      {"/π/", "/Π", true},
+      {"/u/ÄPFÊL/", "/u/äpfêl/", false},
+      {"/u/ÄPFÊL", "/u/äpfêl/", true},
+      {"/u/ÖPFÊL/", "/u/öpfêl", true},
+      {"/u/ÖPFÊL", "/u/öpfêl", false},
+      {"/v/äpfêL/", "/v/Äpfêl/", false},
+      {"/v/äpfêL", "/v/Äpfêl/", true},
+      {"/v/öpfêL/", "/v/Öpfêl", true},
+      {"/v/öpfêL", "/v/Öpfêl", false},
+      {"/w/♬/", "/w/♬", true},
+      {"/w/♭", "/w/♭/", true},
+      {"/w/\uD841\uDF0E/", "/w/\uD841\uDF0E", true},
+      {"/w/\uD841\uDF0F", "/w/\uD841\uDF0F/", true},
+      {lOngPath, longPath, true},
+    };
+
+    MutableNodeMatch<Function<String, String>> match = new MutableNodeMatch<>();
+    for (Object[] test : tests) {
+      String in = (String) test[0];
+      String out = (String) test[1];
+      boolean slash = (Boolean) test[2];
+
+      assertEquals(tree.findCaseInsensitivePath(in, true), out, in);
+      assertEquals(tree.findCaseInsensitivePath(new StringBuilder(in), true), out, in);
+      assertEquals(tree.findCaseInsensitivePath(in, false), slash ? null : out, in);
+
+      // the value of the corrected path, if no trailing slash has to be fixed
+      Function<String, String> expected = slash || out == null ? null : tree.get(out).getValue();
+      assertSame(tree.getCaseInsensitive(in).getValue(), expected, in);
+      assertSame(tree.getCaseInsensitive(new StringBuilder(in), match).getValue(), expected, in);
+    }
+
+    // parameter values are taken from the path as they are
+    assertEquals(tree.getCaseInsensitive("/CMD/Vet/").getParameterValue("tool"), "Vet");
+    assertEquals(tree.getCaseInsensitive("/Src/A/b.TXT", match).getParameterValue("filepath"), "/A/b.TXT");
+    assertEquals(tree.getCaseInsensitive("/0/Ab/1", match).getParametersAsMap(), Collections.singletonMap("id", "Ab"));
+
+    // parameters captured on a path which was given up are discarded
+    final TreeNode<String> cases = new TreeNode<>();
+    cases.add("/ab/:id/x", "lower");
+    cases.add("/AB/:name/y", "upper");
+    MutableNodeMatch<String> casesMatch = new MutableNodeMatch<>();
+    assertEquals(cases.getCaseInsensitive("/Ab/1/Y", casesMatch).getValue(), "upper");
+    assertEquals(casesMatch.getParameterCount(), 1);
+    assertEquals(casesMatch.getParametersAsMap(), Collections.singletonMap("name", "1"));
+    assertEquals(cases.findCaseInsensitivePath("/aB/1/Y", false), "/AB/1/y");
+  }
+
+  @Test
+  public void testTreeCompile() throws Exception {
+
+    final TreeNode<Function<String, String>> tree = new TreeNode<>();
+
+    String[] routes = new String[]{
+      "/",
+      "/cmd/:tool/:sub",
+      "/cmd/:tool/",
+      "/src/*filepath",
+      "/info/:user/public",
+    };
+
+    for (String route : routes) {
+      tree.add(route, fakeHandler(route));
+    }
+
+    CompiledTree<Function<String, String>> compiled = tree.compile();
+    assertEquals(compiled.size(), countNodes(tree));
+
+    // later changes to the tree are not visible in the compiled tree
+    tree.add("/info/:user/project/:project", fakeHandler("/info/:user/project/:project"));
+    assertEquals(compiled.get("/info/gordon/project/go").getValue(), null);
+    assertEquals(tree.compile().get("/info/gordon/project/go").getParameterValue("project"), "go");
+  }
+
+  @Test
+  public void testCompiledTreeBytes() throws Exception {
+
+    final TreeNode<String> tree = new TreeNode<>();
+    tree.add("/user/:name/files/*filepath", "files");
+    tree.add("/ünïcode/:name", "unicode");
+
+    CompiledTree<String> compiled = tree.compile();
+    MutableNodeMatch<String> match = new MutableNodeMatch<>();
+
+    // parameter values are decoded from the buffer
+    ByteBuffer buffer = ByteBuffer.allocateDirect(64);
+    buffer.put("/user/jürgen/files/ä/b.txt".getBytes(StandardCharsets.UTF_8));
+    buffer.flip();
+    compiled.get(buffer, 0, buffer.limit(), match);
+    assertEquals(match.getValue(), "files");
+    assertEquals(match.getParameterValue("name"), "jürgen");
+    assertEquals(match.getParameterValue("filepath"), "/ä/b.txt");
+    assertEquals(match.getParameterStart(0), 6);
+    assertEquals(match.getParameterEnd(0), 13);
+    assertSame(match.getBuffer(), buffer);
+    assertNull(match.getPath());
+    assertEquals(buffer.position(), 0);
+
+    byte[] bytes = "/ünïcode/ß".getBytes(StandardCharsets.UTF_8);
+    assertEquals(compiled.get(bytes, 0, bytes.length, match).getParameterValue(0), "ß");
+    assertNull(compiled.get(bytes, 0, bytes.length - 3, match).getValue());
+
+    // a path lookup forgets the buffer
+    compiled.get("/ünïcode/x", match);
+    assertNull(match.getBuffer());
+    assertEquals(match.getParameterValue(0), "x");
+
+    // labels splitting a surrogate pair cannot be encoded on their own
+    final TreeNode<String> surrogates = new TreeNode<>();
+    surrogates.add("/\uD83D\uDE00", "grinning");
+    surrogates.add("/\uD83D\uDE01", "beaming");
+    try {
+      surrogates.compile().get(bytes, 0, bytes.length, match);
+      fail("UnsupportedOperationException expected");
+    } catch (UnsupportedOperationException expected) {
+    }
+  }
+
+  @Test
+  public void testTreeImageFile() throws Exception {
+
+    final TreeNode<String> tree = new TreeNode<>();
+    List<String> values = Arrays.asList("users", "user", "files", "item");
+    tree.add("/users", "users");
+    tree.add("/users/:id", "user");
+    tree.add("/users/:id/files/*filepath", "files");
+    tree.add("/items/:id<int>", "item");
+
+    Path file = Files.createTempFile("tree", ".img");
+    try {
+      TreeImage.write(tree, values::indexOf, file);
+      TreeImage<String> image = TreeImage.map(file, values);
+      assertEquals(image.size(), tree.compile().size());
+
+      MutableNodeMatch<String> match = new MutableNodeMatch<>();
+      assertEquals(image.get("/users/42/files/a/b.txt", match).getValue(), "files");
+      assertEquals(match.getParameterValue("id"), "42");
+      assertEquals(match.getParameterValue("filepath"), "/a/b.txt");
+      assertEquals(image.get("/items/7").getParameterValue("id"), "7");
+      assertNull(image.get("/items/x").getValue());
+      assertTrue(image.get("/users/").isTrailingSlashRedirect());
+
+      // every value id needs a value
+      try {
+        TreeImage.map(file, values.subList(0, 3));
+        fail("IllegalArgumentException expected");
+      } catch (IllegalArgumentException expected) {
+      }
+    } finally {
+      Files.delete(file);
+    }
+
+    try {
+      new TreeImage<>(ByteBuffer.wrap("not an image".getBytes(StandardCharsets.UTF_8)), values);
+      fail("IllegalArgumentException expected");
+    } catch (IllegalArgumentException expected) {
+    }
+    ByteBuffer truncated = TreeImage.write(tree, values::indexOf);
+    truncated.limit(truncated.limit() - 1);
+    try {
+      new TreeImage<>(truncated.slice(), values);
+      fail("IllegalArgumentException expected");
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  @Test
+  public void testCompiledTreeFanout() throws Exception {
+
+    final TreeNode<Function<String, String>> tree = new TreeNode<>();
+
+    // more children than a linear scan is used for, ASCII and not
+    List<String> routes = new ArrayList<>();
+    routes.add("/docs/");
+    for (char c = '0'; c <= '9'; c++) {
+      routes.add("/docs" + c);
+    }
+    routes.add("/docsä");
+    routes.add("/docsö");
+    routes.add("/docs😀");
+
+    for (String route : routes) {
+      tree.add(route, fakeHandler(route));
+    }
+
+    List<TestRequest> requests = new ArrayList<>();
+    for (String route : routes) {
+      requests.add(new TestRequest(route, false, route, null));
+    }
+    requests.add(new TestRequest("/docsx", true, "", null));
+    requests.add(new TestRequest("/docsü", true, "", null));
+    requests.add(new TestRequest("/docs😁", true, "", null));
+    checkRequests(tree, requests.toArray(new TestRequest[0]));
+
+    CompiledTree<Function<String, String>> compiled = tree.compile();
+    for (String route : Arrays.asList("/docs", "/docs0/")) {
+      for (NodeMatch<Function<String, String>> match : Arrays.asList(tree.get(route), compiled.get(route),
+        getBytes(compiled, route, new MutableNodeMatch<>()))) {
+        assertNull(match.getValue());
+        assertTrue(match.isTrailingSlashRedirect(), route);
+      }
+    }
+  }
+
+  @Test
+  public void testTreeCopyOnWriteAdd() throws Exception {
+
+    final TreeNode<Function<String, String>> tree = new TreeNode<>();
+
+    String[] routes = new String[]{
+      "/hi",
+      "/contact",
+      "/doc/",
+      "/doc/go_faq.html",
+      "/src/*filepath",
+      "/user_:name",
+      "/user_:name/about",
+    };
+
+    Map<String, Function<String, String>> handlers = new HashMap<>();
+    for (String route : routes) {
+      handlers.put(route, fakeHandler(route));
+      tree.add(route, handlers.get(route));
+    }
+
+    final String before = tree.toString();
+
+    TreeEdit edit = new TreeEdit();
+    TreeNode<Function<String, String>> copy = edit.writable(tree);
+    copy.add("/doc/go1.html", fakeHandler("/doc/go1.html"), edit);
+    copy.add("/user_:name/files", fakeHandler("/user_:name/files"), edit);
+    copy.add("/co", fakeHandler("/co"), edit);
+
+    // a failed edit leaves the tree it started from unchanged
+    final String copyBefore = copy.toString();
+    TreeEdit failedEdit = new TreeEdit();
+    try {
+      failedEdit.writable(copy).add("/user_:other", fakeHandler("/user_:other"), failedEdit);
+      fail("wildcard conflict expected");
+    } catch (IllegalArgumentException expected) {
+      assertEquals(copy.toString(), copyBefore);
+    }
+
+    TreeNodeUtil.dumpTree(copy);
+
+    // a released edit owns no node of the tree it made
+    assertTrue(edit.owns(copy));
+    edit.release(copy);
+    assertFalse(edit.owns(copy));
+    for (TreeNode<Function<String, String>> child : copy.children) {
+      assertFalse(edit.owns(child));
+    }
+
+    // the original tree is unchanged
+    assertEquals(tree.toString(), before);
+    checkRequests(tree, new TestRequest[]{
+      new TestRequest("/doc/go_faq.html", false, "/doc/go_faq.html", null),
+      new TestRequest("/doc/go1.html", true, "", null),
+      new TestRequest("/user_gopher/files", true, "", null),
+      new TestRequest("/co", true, "", null),
+    });
+
+    checkRequests(copy, new TestRequest[]{
+      new TestRequest("/hi", false, "/hi", null),
+      new TestRequest("/contact", false, "/contact", null),
+      new TestRequest("/co", false, "/co", null),
+      new TestRequest("/doc/go_faq.html", false, "/doc/go_faq.html", null),
+      new TestRequest("/doc/go1.html", false, "/doc/go1.html", null),
+      new TestRequest("/src/some/file.png", false, "/src/*filepath", new HashMap<String, String>() {{
+        put("filepath", "/some/file.png");
+      }}),
+      new TestRequest("/user_gopher/about", false, "/user_:name/about", new HashMap<String, String>() {{
+        put("name", "gopher");
+      }}),
+      new TestRequest("/user_gopher/files", false, "/user_:name/files", new HashMap<String, String>() {{
+        put("name", "gopher");
+      }}),
+    });
+
+    checkPriorities(copy);
+    checkMaxParams(copy);
+
+    // untouched subtrees are shared, modified ones are not
+    assertSame(findNode(copy, handlers.get("/src/*filepath")), findNode(tree, handlers.get("/src/*filepath")));
+    assertNotSame(findNode(copy, handlers.get("/doc/go_faq.html")), findNode(tree, handlers.get("/doc/go_faq.html")));
+  }
+
+  @Test
+  public void testTreeRemove() throws Exception {
+
+    String[] routes = new String[]{
+      "/",
+      "/hi",
+      "/contact",
+      "/co",
+      "/c",
+      "/a",
+      "/ab",
+      "/α",
+      "/β",
+      "/cmd/:tool/:sub",
+      "/cmd/:tool/",
+      "/src/*filepath",
+      "/search/",
+      "/search/:query",
+      "/user_:name",
+      "/user_:name/about",
+      "/files/:dir/*filepath",
+      "/doc/",
+      "/doc/go_faq.html",
+      "/doc/go1.html",
+      "/info/:user/public",
+      "/info/:user/project/:project",
+    };
+
+    Map<String, Function<String, String>> handlers = new HashMap<>();
+    for (String route : routes) {
+      handlers.put(route, fakeHandler(route));
+    }
+
+    // remove the routes one by one, in different orders
+    for (long seed = 0; seed < 20; seed++) {
+      final TreeNode<Function<String, String>> tree = new TreeNode<>();
+      for (String route : routes) {
+        tree.add(route, handlers.get(route));
+      }
+
+      List<String> remaining = new ArrayList<>(Arrays.asList(routes));
+      List<String> removals = new ArrayList<>(remaining);
+      Collections.shuffle(removals, new Random(seed));
+
+      for (String removed : removals) {
+        assertSame(tree.remove(removed), handlers.get(removed));
+        assertNull(tree.remove(removed));
+        remaining.remove(removed);
+
+        // the tree looks as if it had been built without the removed routes
+        final TreeNode<Function<String, String>> expected = new TreeNode<>();
+        for (String route : remaining) {
+          expected.add(route, handlers.get(route));
+        }
+        assertEquals(shape(tree), shape(expected), "after removing " + removed);
+        checkPriorities(tree);
+        checkMaxParams(tree);
+
+        for (String route : routes) {
+          assertSame(tree.get(route).getValue(), expected.get(route).getValue(), route);
+        }
+      }
+
+      assertEquals(tree.toString(), new TreeNode<>().toString());
+
+      // the empty tree can be filled again
+      tree.add("/a/:b", handlers.get("/a"));
+      assertSame(tree.get("/a/c").getValue(), handlers.get("/a"));
+    }
+  }
+
+  @Test
+  public void testTreeRemoveMissing() throws Exception {
+
+    final TreeNode<Function<String, String>> tree = new TreeNode<>();
+
+    String[] routes = new String[]{
+      "/doc/",
+      "/doc/go1.html",
+      "/cmd/:tool/",
+      "/src/*filepath",
+    };
+
+    for (String route : routes) {
+      tree.add(route, fakeHandler(route));
+    }
+
+    final String before = tree.toString();
+    for (String path : new String[]{"", "/", "/do", "/doc", "/doc/go1", "/cmd/:tool", "/cmd/:name/", "/cmd/x/", "/src/", "/src/*path"}) {
+      assertNull(tree.remove(path), path);
+      assertNull(tree.replace(path, fakeHandler(path)), path);
+    }
+    assertEquals(tree.toString(), before);
+  }
+
+  @Test
+  public void testTreeReplace() throws Exception {
+
+    final TreeNode<Function<String, String>> tree = new TreeNode<>();
+
+    String[] routes = new String[]{
+      "/doc/",
+      "/doc/go1.html",
+      "/cmd/:tool/",
+      "/src/*filepath",
+    };
+
+    Map<String, Function<String, String>> handlers = new HashMap<>();
+    for (String route : routes) {
+      handlers.put(route, fakeHandler(route));
+      tree.add(route, handlers.get(route));
+    }
+
+    TreeEdit edit = new TreeEdit();
+    TreeNode<Function<String, String>> copy = edit.writable(tree);
+    for (String route : routes) {
+      Function<String, String> replacement = fakeHandler(route);
+      assertSame(copy.replace(route, replacement, edit), handlers.get(route));
+      assertSame(copy.get(route).getValue(), replacement);
+
+      // the original tree is unchanged
+      assertSame(tree.get(route).getValue(), handlers.get(route));
+    }
+
+    checkPriorities(copy);
+    checkMaxParams(copy);
+  }
+
+  @Test
+  public void testTreeCopyOnWriteRemove() throws Exception {
+
+    final TreeNode<Function<String, String>> tree = new TreeNode<>();
+
+    String[] routes = new String[]{
+      "/doc/",
+      "/doc/go1.html",
+      "/doc/go_faq.html",
+      "/src/*filepath",
+    };
+
+    for (String route : routes) {
+      tree.add(route, fakeHandler(route));
+    }
+
+    final String before = tree.toString();
+
+    TreeEdit edit = new TreeEdit();
+    TreeNode<Function<String, String>> copy = edit.writable(tree);
+    copy.remove("/doc/go_faq.html", edit);
+    copy.remove("/doc/", edit);
+    copy.add("/doc/go1.html/x", fakeHandler("/doc/go1.html/x"), edit);
+
+    assertEquals(tree.toString(), before);
+    assertNull(copy.get("/doc/").getValue());
+    assertEquals(copy.get("/doc/go1.html/x").getValue().apply(""), "/doc/go1.html/x");
+
+    // matches report the path as registered, also after nodes were split and merged
+    assertEquals(tree.get("/doc/").route, "/doc/");
+    assertEquals(copy.get("/doc/go1.html").route, "/doc/go1.html");
+    assertEquals(copy.get("/doc/go1.html/x").route, "/doc/go1.html/x");
+    assertEquals(copy.get("/src/a/b.png").route, "/src/*filepath");
+    assertNull(copy.get("/doc/").route);
+    checkPriorities(copy);
+    checkMaxParams(copy);
+  }
+
+  @Test
+  public void testTreeReorder() throws Exception {
+
+    final TreeNode<Function<String, String>> tree = new TreeNode<>();
+
+    String[] routes = new String[]{
+      "/admin/users",
+      "/admin/groups",
+      "/admin/roles",
+      "/public/:id",
+      "/public/:id/files",
+    };
+
+    for (String route : routes) {
+      tree.add(route, fakeHandler(route));
+    }
+
+    final String before = tree.toString();
+    assertEquals(tree.children[0].path, "admin/");
+
+    Map<TreeNode<Function<String, String>>, int[]> hits = new IdentityHashMap<>();
+    for (int i = 0; i < 10; i++) {
+      for (String path : Arrays.asList("/public/1", "/public/2/files", "/public/3", "/admin/roles", "/missing")) {
+        tree.countHits(path, hits);
+      }
+    }
+    assertEquals(hits.get(tree)[0], 50);
+    assertEquals(hits.get(tree.children[1])[0], 30);
+    assertEquals(hits.get(tree.children[1].children[0])[0], 30);
+
+    TreeNode<Function<String, String>> reordered = tree.reorder(hits, new TreeEdit());
+
+    // the hot children come first, the others keep their order
+    assertEquals(tree.toString(), before);
+    assertEquals(reordered.children[0].path, "public/");
+    assertEquals(new String(reordered.indices), "pa");
+    assertEquals(reordered.children[1].children[0].path, "roles");
+    assertSame(reordered.children[0], tree.children[1]);
+    assertSame(reordered.children[1].children[1], tree.children[0].children[0]);
+
+    for (String route : routes) {
+      assertEquals(reordered.get(route.replace(":id", "42")).getValue().apply(""), route);
+    }
+    checkPriorities(reordered);
+    checkMaxParams(reordered);
+
+    // already in order
+    assertSame(reordered.reorder(hits, new TreeEdit()), reordered);
+
+    // a few more hits are not enough to reorder
+    hits.clear();
+    for (String path : Arrays.asList("/admin/users", "/admin/groups", "/admin/groups")) {
+      tree.countHits(path, hits);
+    }
+    assertSame(tree.reorder(hits, new TreeEdit()), tree);
+  }
+
+  @Test
+  public void testTreeAddAll() throws Exception {
+
+    String[] routes = new String[]{
+      "/",
+      "/hi",
+      "/contact",
+      "/co",
+      "/c",
+      "/a",
+      "/ab",
+      "/α",
+      "/β",
+      "/cmd/:tool/:sub",
+      "/cmd/:tool/",
+      "/src/*filepath",
+      "/search/",
+      "/search/:query",
+      "/user_:name",
+      "/user_:name/about",
+      "/files/:dir/*filepath",
+      "/doc/",
+      "/doc/go_faq.html",
+      "/doc/go1.html",
+      "/info/:user/public",
+      "/info/:user/project/:project",
+    };
+
+    Map<String, Function<String, String>> handlers = new HashMap<>();
+    for (String route : routes) {
+      handlers.put(route, fakeHandler(route));
+    }
+    final TreeNode<Function<String, String>> expected = addOneByOne(handlers);
+
+    final TreeNode<Function<String, String>> tree = new TreeNode<>();
+    tree.addAll(handlers);
+
+    TreeNodeUtil.dumpTree(tree);
+
+    assertEquals(tree.toString(), expected.toString());
+    checkPriorities(tree);
+    checkMaxParams(tree);
+    checkChildOrder(tree);
+    for (String route : routes) {
+      assertSame(tree.get(route).getValue(), handlers.get(route), route);
+    }
+
+    // add to an existing tree, without modifying it
+    final TreeNode<Function<String, String>> half = new TreeNode<>();
+    Map<String, Function<String, String>> rest = new HashMap<>();
+    for (int i = 0; i < routes.length; i++) {
+      if (i % 2 == 0) {
+        half.add(routes[i], handlers.get(routes[i]));
+      } else {
+        rest.put(routes[i], handlers.get(routes[i]));
+      }
+    }
+    final String before = half.toString();
+
+    TreeEdit edit = new TreeEdit();
+    TreeNode<Function<String, String>> copy = edit.writable(half);
+    copy.addAll(rest, edit);
+
+    assertEquals(half.toString(), before);
+    assertEquals(shape(copy), shape(expected));
+    checkPriorities(copy);
+    checkMaxParams(copy);
+    checkChildOrder(copy);
+  }
+
+  @Test
+  public void testTreeAddAllManyPaths() throws Exception {
+
+    String[] templates = new String[]{
+      "",
+      "/",
+      "/users",
+      "/users/:id",
+      "/users/:id/",
+      "/users/:id/files/*filepath",
+      "/users/:id/repos/:repo",
+      "/users/:id/repos/:repo/issues",
+      "/static/*filepath",
+      "/about",
+      "/abc/",
+    };
+
+    Map<String, Function<String, String>> handlers = new HashMap<>();
+    for (int tenant = 0; tenant < 120; tenant++) {
+      for (String template : templates) {
+        String route = "/t" + tenant + template;
+        handlers.put(route, fakeHandler(route));
+      }
+    }
+    final TreeNode<Function<String, String>> expected = addOneByOne(handlers);
+
+    final TreeNode<Function<String, String>> tree = new TreeNode<>();
+    tree.addAll(handlers);
+
+    assertEquals(tree.toString(), expected.toString());
+    checkPriorities(tree);
+    checkMaxParams(tree);
+    checkChildOrder(tree);
+    for (String route : handlers.keySet()) {
+      assertSame(tree.get(route).getValue(), handlers.get(route), route);
+    }
+
+    // conflicts are detected as when adding the paths one by one
+    Map<String, Function<String, String>> conflicting = new HashMap<>();
+    conflicting.put("/t1/users/:name/x", fakeHandler("conflict"));
+    conflicting.put("/t1/a", fakeHandler("/t1/a"));
+    try {
+      tree.addAll(conflicting);
+      fail("wildcard conflict expected");
+    } catch (IllegalArgumentException ignored) {
+    }
+  }
+
+  @Test
+  public void testTreeAddAllParallel() throws Exception {
+
+    String[] templates = new String[]{
+      "",
+      "/",
+      "/users",
+      "/users/:id",
+      "/users/:id/files/*filepath",
+      "/users/:id<int>/repos/:repo",
+      "/static/*filepath",
+      "-archive",
+    };
+    String[] shared = new String[]{
+      "/",
+      "/:lang/about",
+      "/user_:name",
+      "/*path",
+    };
+
+    Map<String, Function<String, String>> handlers = new HashMap<>();
+    for (int tenant = 0; tenant < 300; tenant++) {
+      for (String template : templates) {
+        String route = "/t" + tenant + template;
+        handlers.put(route, fakeHandler(route));
+      }
+    }
+    for (String route : shared) {
+      handlers.put(route, fakeHandler(route));
+    }
+    final TreeNode<Function<String, String>> expected = addOneByOne(handlers);
+
+    final ForkJoinPool pool = new ForkJoinPool(4);
+    try {
+      final TreeNode<Function<String, String>> tree = new TreeNode<>();
+      tree.addAll(handlers, pool);
+
+      assertEquals(tree.toString(), expected.toString());
+      assertEquals(tree.nodeType, NodeType.ROOT);
+      checkPriorities(tree);
+      checkMaxParams(tree);
+      checkChildOrder(tree);
+      for (String route : handlers.keySet()) {
+        assertSame(tree.get(route.replace(":id<int>", "7")).getValue(), handlers.get(route), route);
+      }
+
+      Map<String, Function<String, String>> registered = new HashMap<>();
+      tree.forEachPath(registered::put);
+      assertEquals(registered, handlers);
+
+      // conflicts are detected as when adding the paths one by one
+      handlers.put("/t7/users/:name/x", fakeHandler("conflict"));
+      try {
+        new TreeNode<Function<String, String>>().addAll(handlers, pool);
+        fail("wildcard conflict expected");
+      } catch (IllegalArgumentException ignored) {
+      }
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  @Test
+  public void testTreeAddAllRandom() throws Exception {
+
+    String[] segments = new String[]{"a", "ab", "abc", "b", "ba", "user_"};
+    String[] wildcards = new String[]{":id", ":id/x", "*path"}; // a catch-all ends the path
+    final Random random = new Random(42);
+    final ForkJoinPool pool = new ForkJoinPool(4);
+    try {
+      for (int round = 0; round < 300; round++) {
+        // random tables, with many children of equal priority, every tenth one built in parallel
+        Map<String, Function<String, String>> handlers = new HashMap<>();
+        final int size = round % 10 == 0 ? 2000 : 1 + random.nextInt(80);
+        final int tenants = 1 + size / 4;
+        for (int i = 0; i < size; i++) {
+          StringBuilder route = new StringBuilder();
+          final int depth = 1 + random.nextInt(3);
+          for (int d = 0; d < depth; d++) {
+            route.append(d == 0 ? "/t" + random.nextInt(tenants) : "/");
+            if (d > 0) {
+              route.append(random.nextInt(8) > 0
+                ? segments[random.nextInt(segments.length)]
+                : wildcards[random.nextInt(d + 1 < depth ? 2 : 3)]);
+            }
+          }
+          handlers.put(route.toString(), fakeHandler(route.toString()));
+        }
+
+        final TreeNode<Function<String, String>> expected = addOneByOne(handlers);
+
+        final TreeNode<Function<String, String>> tree = new TreeNode<>();
+        tree.addAll(handlers);
+        assertEquals(tree.toString(), expected.toString(), handlers.keySet().toString());
+
+        final TreeNode<Function<String, String>> parallel = new TreeNode<>();
+        parallel.addAll(handlers, pool);
+        assertEquals(parallel.toString(), expected.toString(), handlers.keySet().toString());
+      }
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  /**
+   * Returns a tree with the given paths added one by one, in the iteration order of the map.
+   */
+  TreeNode<Function<String, String>> addOneByOne(Map<String, Function<String, String>> handlers) {
+    final TreeNode<Function<String, String>> tree = new TreeNode<>();
+    for (Map.Entry<String, Function<String, String>> entry : handlers.entrySet()) {
+      tree.add(entry.getKey(), entry.getValue());
+    }
+    return tree;
+  }
+
+  void checkChildOrder(TreeNode<?> n) {
+    // only the static children are ordered, the catch-all and param children come after them
+    int staticChildren = n.indices.length;
+    if (staticChildren > 0 && NodeType.CATCH_ALL == n.children[staticChildren - 1].nodeType) {
+      staticChildren--;
+    }
+    for (int i = 1; i < staticChildren; i++) {
+      if (n.children[i - 1].priority < n.children[i].priority) {
+        fail(String.format("children of node '%s' not sorted by priority", n.path));
+      }
+    }
+    for (int i = 0; i < n.indices.length; i++) {
+      if (NodeType.CATCH_ALL != n.children[i].nodeType && n.indices[i] != n.children[i].path.charAt(0)) {
+        fail(String.format("index mismatch for child '%s' of node '%s'", n.children[i].path, n.path));
+      }
+    }
+    for (TreeNode<?> child : n.children) {
+      checkChildOrder(child);
+    }
+  }
+
+  /**
+   * Returns the shape of a subtree, independent of the order of the children.
+   */
+  String shape(TreeNode<?> n) {
+    List<String> children = new ArrayList<>();
+    for (TreeNode<?> child : n.children) {
+      children.add(shape(child));
+    }
+    Collections.sort(children);
+    // whether a param node indexes its only child depends on the order the paths were added
+    int indices = NodeType.PARAM == n.nodeType ? 0 : n.indices.length;
+    return n.path + "|" + n.nodeType + "|" + n.wildChild + "|" + n.maxParams + "|" + n.priority + "|" +
+      n.value + "|" + indices + children;
+  }
+
+  <T> TreeNode<T> findNode(TreeNode<T> n, T value) {
+    if (n.value == value) {
+      return n;
+    }
+    for (TreeNode<T> child : n.children) {
+      TreeNode<T> found = findNode(child, value);
+      if (found != null) {
+        return found;
+      }
+    }
+    return null;
+  }
 }
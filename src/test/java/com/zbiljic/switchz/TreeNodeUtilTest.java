@@ -2,6 +2,8 @@ package com.zbiljic.switchz;
 
 import org.testng.annotations.Test;
 
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
 import static org.testng.Assert.fail;
 
 public class TreeNodeUtilTest {
@@ -20,4 +22,29 @@ public class TreeNodeUtilTest {
     }
   }
 
+  @Test
+  public void testMemoryFootprint() throws Exception {
+    // the node, its empty path and its empty index and child arrays
+    assertEquals(TreeNodeUtil.memoryFootprint(new TreeNode<>()), 56 + (24 + 16) + 16 + 16);
+
+    TreeNode<String> tree = new TreeNode<>();
+    TreeNode<String> other = new TreeNode<>();
+    int routes = 0;
+    for (int tenant = 0; tenant < 100; tenant++) {
+      for (String route : new String[]{"/users", "/users/:id<int>", "/users/:id/files/*filepath", "/health"}) {
+        tree.add("/tenants/t" + tenant + route, route);
+        other.add("/tenants/t" + tenant + route, route + " of tenant " + tenant);
+        routes++;
+      }
+    }
+
+    // the values are not counted
+    long bytes = TreeNodeUtil.memoryFootprint(tree);
+    assertEquals(TreeNodeUtil.memoryFootprint(other), bytes);
+
+    // the compiled tree has no node objects
+    long compiled = tree.compile().memoryFootprint();
+    assertTrue(compiled < bytes / 2, compiled + " of " + bytes + " bytes for " + routes + " routes");
+  }
+
 }